@@ -51,13 +51,18 @@
 // [16] Length of this blob (not including header)
 // [20] Blob
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. The instance of this class can be
+// used by multiple threads concurrently. Lookups only take a shared lock and
+// read the blobs with positional reads, so they can proceed in parallel.
+// Inserts, region flips and entry clearing take the exclusive lock.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public int insert(long[] keys, byte[][] data, int count) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public ByteBuffer lookupBuffer(LookupRequest req) throws IOException;
+// public boolean contains(long key);
 // public void close();
 // public void syncIndex();
 // public void syncAll();
@@ -71,10 +76,13 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -106,6 +114,8 @@ public class BlobCache implements Closeable {
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
+    private FileChannel mDataChannel0;
+    private FileChannel mDataChannel1;
     private FileChannel mIndexChannel;
     private MappedByteBuffer mIndexBuffer;
 
@@ -118,12 +128,49 @@ public class BlobCache implements Closeable {
 
     private RandomAccessFile mActiveDataFile;
     private RandomAccessFile mInactiveDataFile;
+    private FileChannel mActiveDataChannel;
+    private FileChannel mInactiveDataChannel;
+
+    // lookupBuffer() reads the blobs through a few read-only memory mappings
+    // of the active data file, each covering a window of it, so the address
+    // space used stays bounded whatever the size of the cache. The mappings
+    // are dropped when the region is flipped.
+    private static final int MAP_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int MAP_WINDOW_COUNT = 4;
+
+    private static class DataWindow {
+        public final int region;
+        public final int start;
+        public final MappedByteBuffer map;
+
+        public DataWindow(int region, int start, MappedByteBuffer map) {
+            this.region = region;
+            this.start = start;
+            this.map = map;
+        }
+
+        public boolean covers(int region, int begin, int end) {
+            return this.region == region && start <= begin
+                    && start + map.capacity() >= end;
+        }
+    }
+
+    // The most recently used window first. Guarded by mDataMapLock.
+    private final ArrayList<DataWindow> mDataWindows = new ArrayList<DataWindow>();
+    // Whether a data file has been mapped. Such a file is never truncated,
+    // since a buffer returned by lookupBuffer() may still refer to it.
+    private final boolean[] mDataMapped = new boolean[2];
+    private final Object mDataMapLock = new Object();
     private int mActiveHashStart;
     private int mInactiveHashStart;
     private byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Lookups hold the read lock; anything that modifies the index or the
+    // data files (insert, flip, clear, close) holds the write lock.
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -140,6 +187,8 @@ public class BlobCache implements Closeable {
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
+        mDataChannel0 = mDataFile0.getChannel();
+        mDataChannel1 = mDataFile1.getChannel();
         mVersion = version;
 
         if (!reset && loadIndex()) {
@@ -174,13 +223,21 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mLock.writeLock().lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mLock.writeLock().unlock();
+        }
     }
 
     private void closeAll() {
+        dropDataWindows();
         closeSilently(mIndexChannel);
         closeSilently(mIndexFile);
+        closeSilently(mDataChannel0);
+        closeSilently(mDataChannel1);
         closeSilently(mDataFile0);
         closeSilently(mDataFile1);
     }
@@ -284,7 +341,15 @@ public class BlobCache implements Closeable {
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
+        mActiveDataChannel = (mActiveRegion == 0) ? mDataChannel0 : mDataChannel1;
+        mInactiveDataChannel = (mActiveRegion == 1) ? mDataChannel0 : mDataChannel1;
+        // Don't truncate a data file which is memory mapped: the buffers
+        // returned by lookupBuffer() may still refer to that mapping, and
+        // accessing a mapping past the end of the file is fatal. The stale
+        // data is harmless since the (cleared) hash region doesn't refer to it.
+        if (!isDataMapped(mActiveRegion)) {
+            mActiveDataFile.setLength(mActiveBytes);
+        }
         mActiveDataFile.seek(mActiveBytes);
 
         mActiveHashStart = INDEX_HEADER_SIZE;
@@ -325,6 +390,7 @@ public class BlobCache implements Closeable {
 
     // Flip the active region and the inactive region.
     private void flipRegion() throws IOException {
+        dropDataWindows();
         mActiveRegion = 1 - mActiveRegion;
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
@@ -364,30 +430,79 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
-        }
+        mLock.writeLock().lock();
+        try {
+            if (!hasRoomFor(data.length)) {
+                flipRegion();
+            }
+
+            if (!lookupInternal(key, mActiveHashStart)) {
+                // If we don't have an existing entry with the same key, increase
+                // the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
         }
+    }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+    // Inserts count (key, data) pairs into the cache. The write lock is taken
+    // and the index header is updated only once, so this is cheaper than count
+    // calls to insert(). The index is not synced: the caller calls
+    // syncIndex() once it's done. The blobs which are too large are skipped.
+    // Returns the number of inserted blobs.
+    public int insert(long[] keys, byte[][] data, int count) throws IOException {
+        int inserted = 0;
+        mLock.writeLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data[i].length > mMaxBytes) {
+                    Log.w(TAG, "blob is too large: " + data[i].length);
+                    continue;
+                }
+                if (!hasRoomFor(data[i].length)) {
+                    flipRegion();
+                }
+                if (!lookupInternal(keys[i], mActiveHashStart)) {
+                    mActiveEntries++;
+                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                }
+                insertInternal(keys[i], data[i], data[i].length);
+                ++inserted;
+            }
+            if (inserted > 0) updateIndexHeader();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return inserted;
     }
 
     public void clearEntry(long key) throws IOException {
-        if (!lookupInternal(key, mActiveHashStart)) {
-            return; // Nothing to clear
+        mLock.writeLock().lock();
+        try {
+            if (!lookupInternal(key, mActiveHashStart)) {
+                return; // Nothing to clear
+            }
+            byte[] header = mBlobHeader;
+            Arrays.fill(header, (byte) 0);
+            long oldPosition = mActiveDataFile.getFilePointer();
+            mActiveDataFile.seek(mFileOffset);
+            mActiveDataFile.write(header);
+            mActiveDataFile.seek(oldPosition);
+        } finally {
+            mLock.writeLock().unlock();
         }
-        byte[] header = mBlobHeader;
-        Arrays.fill(header, (byte) 0);
-        mActiveDataFile.seek(mFileOffset);
-        mActiveDataFile.write(header);
+    }
+
+    // Returns true if a blob of the given length can be appended to the
+    // active region without flipping.
+    private boolean hasRoomFor(int length) {
+        return mActiveBytes + BLOB_HEADER_SIZE + length <= mMaxBytes
+                && mActiveEntries * 2 < mMaxEntries;
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -418,17 +533,28 @@ public class BlobCache implements Closeable {
 
     // This method is for one-off lookup. For repeated lookup, use the version
     // accepting LookupRequest to avoid repeated memory allocation.
-    private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = new LookupRequest();
+        req.key = key;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
     }
 
+    // Returns true if there is a blob for the given key in either region. The
+    // blob itself is neither read nor verified, so this is only a hint.
+    public boolean contains(long key) {
+        mLock.readLock().lock();
+        try {
+            return findBlobOffset(key, mActiveHashStart) != 0
+                    || findBlobOffset(key, mInactiveHashStart) != 0;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
     // Returns true if the associated blob for the given key is available.
     // The blob is stored in the buffer pointed by req.buffer, and the length
     // is in stored in the req.length variable.
@@ -439,59 +565,65 @@ public class BlobCache implements Closeable {
     //
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
+    //
+    // Only the read lock is held while searching and reading, so concurrent
+    // lookups do not block each other. The write lock is taken only when a
+    // blob found in the inactive region is copied over to the active region.
     public boolean lookup(LookupRequest req) throws IOException {
-        // Look up in the active region first.
-        if (lookupInternal(req.key, mActiveHashStart)) {
-            if (getBlob(mActiveDataFile, mFileOffset, req)) {
+        mLock.readLock().lock();
+        try {
+            // Look up in the active region first.
+            int offset = findBlobOffset(req.key, mActiveHashStart);
+            if (offset != 0 && getBlob(mActiveDataChannel, offset, req)) {
                 return true;
             }
-        }
 
-        // We want to copy the data from the inactive file to the active file
-        // if it's available. So we keep the offset of the hash entry so we can
-        // avoid looking it up again.
-        int insertOffset = mSlotOffset;
-
-        // Look up in the inactive region.
-        if (lookupInternal(req.key, mInactiveHashStart)) {
-            if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-                // If we don't have enough space to insert this blob into
-                // the active file, just return it.
-                if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
-                    || mActiveEntries * 2 >= mMaxEntries) {
-                    return true;
-                }
-                // Otherwise copy it over.
-                mSlotOffset = insertOffset;
-                try {
-                    insertInternal(req.key, req.buffer, req.length);
-                    mActiveEntries++;
-                    writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-                    updateIndexHeader();
-                } catch (Throwable t) {
-                    Log.e(TAG, "cannot copy over");
-                }
-                return true;
+            // Look up in the inactive region.
+            offset = findBlobOffset(req.key, mInactiveHashStart);
+            if (offset == 0 || !getBlob(mInactiveDataChannel, offset, req)) {
+                return false;
             }
+
+            // If we don't have enough space to insert this blob into
+            // the active file, just return it.
+            if (!hasRoomFor(req.length)) return true;
+        } finally {
+            mLock.readLock().unlock();
         }
 
-        return false;
+        // Otherwise copy it over. The regions may have changed after we
+        // released the read lock, so check again with the write lock held.
+        mLock.writeLock().lock();
+        try {
+            if (hasRoomFor(req.length)
+                    && !lookupInternal(req.key, mActiveHashStart)) {
+                insertInternal(req.key, req.buffer, req.length);
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+                updateIndexHeader();
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        return true;
     }
 
-
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
     // assign it to req.buffer.
     // Returns false if the blob is not available (either the index file is
     // not sync with the data file, or one of them is corrupted). The length
     // of the blob is stored in the req.length variable.
-    private boolean getBlob(RandomAccessFile file, int offset,
+    //
+    // This uses positional reads only, so it is safe to call concurrently
+    // with other lookups while holding the read lock.
+    private boolean getBlob(FileChannel channel, int offset,
             LookupRequest req) throws IOException {
-        byte[] header = mBlobHeader;
-        long oldPosition = file.getFilePointer();
+        byte[] header = new byte[BLOB_HEADER_SIZE];
         try {
-            file.seek(offset);
-            if (file.read(header) != BLOB_HEADER_SIZE) {
+            if (!readFully(channel, offset, header, BLOB_HEADER_SIZE)) {
                 Log.w(TAG, "cannot read blob header");
                 return false;
             }
@@ -521,11 +653,13 @@ public class BlobCache implements Closeable {
             byte[] blob = req.buffer;
             req.length = length;
 
-            if (file.read(blob, 0, length) != length) {
+            if (!readFully(channel, offset + BLOB_HEADER_SIZE, blob, length)) {
                 Log.w(TAG, "cannot read blob data");
                 return false;
             }
-            if (checkSum(blob, 0, length) != sum) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(blob, 0, length);
+            if ((int) adler32.getValue() != sum) {
                 Log.w(TAG, "blob checksum does not match: " + sum);
                 return false;
             }
@@ -533,8 +667,171 @@ public class BlobCache implements Closeable {
         } catch (Throwable t)  {
             Log.e(TAG, "getBlob failed.", t);
             return false;
+        }
+    }
+
+    // Reads exactly "length" bytes at "position" of the channel into buf.
+    // This does not change the position of the channel.
+    private static boolean readFully(FileChannel channel, long position,
+            byte[] buf, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+        while (dst.hasRemaining()) {
+            int rc = channel.read(dst, position + dst.position());
+            if (rc < 0) return false;
+        }
+        return true;
+    }
+
+    // Read-only version of lookupInternal() which is safe to call while only
+    // holding the read lock. Returns the file offset of the blob for the given
+    // key, or 0 if it is not in the specified hash region.
+    private int findBlobOffset(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        int slotBegin = slot;
+        while (true) {
+            int offset = hashStart + slot * 12;
+            long candidateKey = mIndexBuffer.getLong(offset);
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            } else if (candidateKey == key) {
+                return candidateOffset;
+            } else {
+                if (++slot >= mMaxEntries) {
+                    slot = 0;
+                }
+                if (slot == slotBegin) {
+                    Log.w(TAG, "corrupted index: key not found.");
+                    return 0;
+                }
+            }
+        }
+    }
+
+    // Returns a read-only buffer holding the blob for req.key, or null if it
+    // is not available.
+    //
+    // If the blob is in the active region, the returned buffer is a slice of
+    // a memory mapping of the data file, so neither a read syscall nor a copy
+    // to the heap is needed. Its checksum is verified before it's returned.
+    // The content of the slice stays valid until the region is reused after
+    // two flips, so the caller should consume it right away.
+    //
+    // Otherwise this falls back to lookup(req), which stores the blob in
+    // req.buffer (allocating it if needed), and returns a wrapper of it.
+    public ByteBuffer lookupBuffer(LookupRequest req) throws IOException {
+        mLock.readLock().lock();
+        try {
+            int offset = findBlobOffset(req.key, mActiveHashStart);
+            if (offset != 0) {
+                ByteBuffer blob = getMappedBlob(mActiveRegion, offset, req.key);
+                if (blob != null) {
+                    req.length = blob.remaining();
+                    return blob;
+                }
+            }
         } finally {
-            file.seek(oldPosition);
+            mLock.readLock().unlock();
+        }
+
+        if (!lookup(req)) return null;
+        return ByteBuffer.wrap(req.buffer, 0, req.length).asReadOnlyBuffer();
+    }
+
+    // The same as getBlob() except the blob is read from the memory mapping
+    // of the data file of the given region. Returns null if the blob is not
+    // available. Must be called with the read lock held.
+    private ByteBuffer getMappedBlob(int region, int offset, long key) {
+        try {
+            DataWindow window = mapDataFile(region, offset, offset + BLOB_HEADER_SIZE);
+            if (window == null) return null;
+            MappedByteBuffer map = window.map;
+            int header = offset - window.start;
+
+            long blobKey = map.getLong(header + BH_KEY);
+            if (blobKey == 0) {
+                return null; // This entry has been cleared.
+            }
+            if (blobKey != key) {
+                Log.w(TAG, "blob key does not match: " + blobKey);
+                return null;
+            }
+            int sum = map.getInt(header + BH_CHECKSUM);
+            int blobOffset = map.getInt(header + BH_OFFSET);
+            if (blobOffset != offset) {
+                Log.w(TAG, "blob offset does not match: " + blobOffset);
+                return null;
+            }
+            int length = map.getInt(header + BH_LENGTH);
+            int start = offset + BLOB_HEADER_SIZE;
+            // The blobs of the active region are all before mActiveBytes.
+            if (length < 0 || length > mActiveBytes - start) {
+                Log.w(TAG, "invalid blob length: " + length);
+                return null;
+            }
+
+            window = mapDataFile(region, start, start + length);
+            if (window == null) {
+                Log.w(TAG, "cannot read blob data");
+                return null;
+            }
+            ByteBuffer blob = window.map.duplicate();
+            blob.limit(start - window.start + length);
+            blob.position(start - window.start);
+            blob = blob.slice();
+
+            if (checkSum(blob) != sum) {
+                Log.w(TAG, "blob checksum does not match: " + sum);
+                return null;
+            }
+            return blob;
+        } catch (Throwable t)  {
+            Log.e(TAG, "getMappedBlob failed.", t);
+            return null;
+        }
+    }
+
+    private boolean isDataMapped(int region) {
+        synchronized (mDataMapLock) {
+            return mDataMapped[region];
+        }
+    }
+
+    private void dropDataWindows() {
+        synchronized (mDataMapLock) {
+            mDataWindows.clear();
+        }
+    }
+
+    // Returns a read-only mapping of the data file of the given region which
+    // covers at least [begin, end), or null if the file is shorter than that.
+    // A new mapping starts at a multiple of MAP_WINDOW_SIZE, and replaces the
+    // least recently used one if there are MAP_WINDOW_COUNT of them.
+    private DataWindow mapDataFile(int region, int begin, int end) throws IOException {
+        synchronized (mDataMapLock) {
+            ArrayList<DataWindow> windows = mDataWindows;
+            for (int i = 0, n = windows.size(); i < n; i++) {
+                DataWindow window = windows.get(i);
+                if (window.covers(region, begin, end)) {
+                    if (i != 0) windows.add(0, windows.remove(i));
+                    return window;
+                }
+            }
+
+            FileChannel channel = (region == 0) ? mDataChannel0 : mDataChannel1;
+            long fileSize = channel.size();
+            if (fileSize < end) return null;
+            int start = begin - begin % MAP_WINDOW_SIZE;
+            long size = Math.min(fileSize - start, Math.max(MAP_WINDOW_SIZE, end - start));
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            mDataMapped[region] = true;
+
+            DataWindow window = new DataWindow(region, start, map);
+            windows.add(0, window);
+            if (windows.size() > MAP_WINDOW_COUNT) windows.remove(windows.size() - 1);
+            return window;
         }
     }
 
@@ -628,6 +925,29 @@ public class BlobCache implements Closeable {
         return (int) mAdler32.getValue();
     }
 
+    // Computes the checksum of the remaining bytes of the buffer without
+    // changing its position. This is safe to be called concurrently.
+    private static final int CHECKSUM_CHUNK_SIZE = 4096;
+    private static final ThreadLocal<byte[]> sChecksumChunk =
+            new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHECKSUM_CHUNK_SIZE];
+        }
+    };
+
+    static int checkSum(ByteBuffer data) {
+        Adler32 adler32 = new Adler32();
+        byte[] chunk = sChecksumChunk.get();
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            int todo = Math.min(src.remaining(), CHECKSUM_CHUNK_SIZE);
+            src.get(chunk, 0, todo);
+            adler32.update(chunk, 0, todo);
+        }
+        return (int) adler32.getValue();
+    }
+
     static void closeSilently(Closeable c) {
         if (c == null) return;
         try {
@@ -18,10 +18,10 @@ package com.android.gallery3d.util;
 
 import android.util.Log;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
@@ -35,6 +35,16 @@ public class ThreadPool {
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Job priority. Queued jobs with a higher priority run first, and jobs
+    // with the same priority run in the order they are submitted.
+    public static final int PRIORITY_BACKGROUND = 0;  // e.g. cache warm-up
+    public static final int PRIORITY_PREFETCH = 1;    // e.g. off-screen slots
+    public static final int PRIORITY_VISIBLE = 2;     // what the user is seeing
+    public static final int PRIORITY_DEFAULT = PRIORITY_VISIBLE;
+    // Cancelled jobs are moved to the front of the queue, so they can finish
+    // (without running) and notify their listeners right away.
+    private static final int PRIORITY_CANCELLED = Integer.MAX_VALUE;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
     ResourceCounter mCpuCounter = new ResourceCounter(2);
@@ -78,33 +88,67 @@ public class ThreadPool {
         }
     }
 
-    private final Executor mExecutor;
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final AtomicLong mJobSequence = new AtomicLong();
 
     public ThreadPool() {
         this(CORE_POOL_SIZE, MAX_POOL_SIZE);
     }
 
     public ThreadPool(int initPoolSize, int maxPoolSize) {
+        // Since the queue is unbounded, only the core threads are used.
+        mQueue = new PriorityBlockingQueue<Runnable>();
         mExecutor = new ThreadPoolExecutor(
                 initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, mQueue,
                 new PriorityThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
     }
 
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
-    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        Worker<T> w = new Worker<T>(job, listener, priority,
+                mJobSequence.getAndIncrement());
         mExecutor.execute(w);
         return w;
     }
 
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, PRIORITY_DEFAULT);
+    }
+
     public <T> Future<T> submit(Job<T> job) {
-        return submit(job, null);
+        return submit(job, null, PRIORITY_DEFAULT);
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    // Changes the priority of a job submitted to this pool. It only has an
+    // effect if the job is still waiting in the queue.
+    public void setPriority(Future<?> future, int priority) {
+        if (!(future instanceof Worker)) return;
+        Worker<?> w = (Worker<?>) future;
+        if (w.isCancelled()) return;
+        requeue(w, priority);
+    }
+
+    // The order of the workers in the queue depends on mPriority, so a worker
+    // must be removed before its priority is changed and then added back.
+    private void requeue(Worker<?> w, int priority) {
+        synchronized (w) {
+            if (w.mPriority == priority) return;
+            if (mQueue.remove(w)) {
+                w.mPriority = priority;
+                mQueue.offer(w);
+            } else {
+                w.mPriority = priority;
+            }
+        }
+    }
+
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Worker";
         private Job<T> mJob;
@@ -115,10 +159,25 @@ public class ThreadPool {
         private boolean mIsDone;
         private T mResult;
         private int mMode;
+        private int mPriority;
+        private final long mSequence;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority,
+                long sequence) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        // This is only called by the queue, with the lock of the queue held.
+        @Override
+        public int compareTo(Worker<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1
+                    : (mSequence == other.mSequence ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
@@ -147,17 +206,20 @@ public class ThreadPool {
 
         // Below are the methods for Future.
         @Override
-        public synchronized void cancel() {
-            if (mIsCancelled) return;
-            mIsCancelled = true;
-            if (mWaitOnResource != null) {
-                synchronized (mWaitOnResource) {
-                    mWaitOnResource.notifyAll();
+        public void cancel() {
+            synchronized (this) {
+                if (mIsCancelled) return;
+                mIsCancelled = true;
+                if (mWaitOnResource != null) {
+                    synchronized (mWaitOnResource) {
+                        mWaitOnResource.notifyAll();
+                    }
+                }
+                if (mCancelListener != null) {
+                    mCancelListener.onCancel();
                 }
             }
-            if (mCancelListener != null) {
-                mCancelListener.onCancel();
-            }
+            requeue(this, PRIORITY_CANCELLED);
         }
 
         @Override
@@ -239,6 +239,13 @@ public class AlbumSetDataLoader {
         public MediaSet item;
         public MediaItem cover;
         public int totalCount;
+        // Whether the cover and the count were not loaded, because the set
+        // is the one in the slot.
+        public boolean unchanged;
+
+        // What is in the slot now.
+        public MediaSet cachedItem;
+        public long cachedItemVersion;
     }
 
     private class GetUpdateInfo implements Callable<UpdateInfo> {
@@ -267,6 +274,11 @@ public class AlbumSetDataLoader {
             info.version = mSourceVersion;
             info.index = index;
             info.size = mSize;
+            if (index != INDEX_NONE) {
+                int pos = index % mData.length;
+                info.cachedItem = mData[pos];
+                info.cachedItemVersion = mItemVersion[pos];
+            }
             return info;
         }
     }
@@ -294,6 +306,16 @@ public class AlbumSetDataLoader {
             // Note: info.index could be INDEX_NONE, i.e., -1
             if (info.index >= mContentStart && info.index < mContentEnd) {
                 int pos = info.index % mCoverItem.length;
+                if (info.unchanged) {
+                    // The slot is only up to date if it still holds what
+                    // GetUpdateInfo saw. Otherwise its version is left
+                    // stale, so it's loaded again.
+                    if (mData[pos] == info.cachedItem
+                            && mItemVersion[pos] == info.cachedItemVersion) {
+                        mSetVersion[pos] = info.version;
+                    }
+                    return null;
+                }
                 mSetVersion[pos] = info.version;
                 long itemVersion = info.item.getDataVersion();
                 if (mItemVersion[pos] == itemVersion) return null;
@@ -370,8 +392,15 @@ public class AlbumSetDataLoader {
                 if (info.index != INDEX_NONE) {
                     info.item = mSource.getSubMediaSet(info.index);
                     if (info.item == null) continue;
-                    info.cover = info.item.getCoverMediaItem();
-                    info.totalCount = info.item.getTotalMediaItemCount();
+                    // Only the sets which have changed are loaded again: the
+                    // others keep their version, and UpdateContent keeps
+                    // their cover and count.
+                    info.unchanged = info.item == info.cachedItem
+                            && info.item.getDataVersion() == info.cachedItemVersion;
+                    if (!info.unchanged) {
+                        info.cover = info.item.getCoverMediaItem();
+                        info.totalCount = info.item.getTotalMediaItemCount();
+                    }
                 }
                 executeAndWait(new UpdateContent(info));
             }
@@ -85,6 +85,9 @@ public final class GalleryActivity extends AbstractGalleryActivity implements On
             //进行初始化
             initializeByIntent();
         }
+
+        // Generate the missing thumbnails in the background.
+        ThumbnailWarmUpService.start(this);
     }
 
     //初始化界面
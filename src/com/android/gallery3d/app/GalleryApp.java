@@ -24,6 +24,7 @@ import android.os.Looper;
 import com.android.gallery3d.data.DataManager;
 import com.android.gallery3d.data.DownloadCache;
 import com.android.gallery3d.data.ImageCacheService;
+import com.android.gallery3d.data.TileCacheService;
 import com.android.gallery3d.util.ThreadPool;
 
 public interface GalleryApp {
@@ -31,6 +32,8 @@ public interface GalleryApp {
 
     //获取图片缓存Service
     public ImageCacheService getImageCacheService();
+    //获取大图分块缓存Service
+    public TileCacheService getTileCacheService();
     //获取下载缓存
     public DownloadCache getDownloadCache();
     //获得线程池
@@ -16,6 +16,7 @@
 
 package com.android.gallery3d.app;
 
+import android.drm.DrmHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapRegionDecoder;
 import android.os.Handler;
@@ -27,16 +28,19 @@ import com.android.gallery3d.common.BitmapUtils;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.CameraShortcutImage;
 import com.android.gallery3d.data.ContentListener;
+import com.android.gallery3d.data.LocalImage;
 import com.android.gallery3d.data.LocalMediaItem;
 import com.android.gallery3d.data.MediaItem;
 import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaSet;
 import com.android.gallery3d.data.Path;
 import com.android.gallery3d.data.SnailItem;
+import com.android.gallery3d.data.TileCacheService;
 import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.ui.PhotoView;
 import com.android.gallery3d.ui.ScreenNail;
 import com.android.gallery3d.ui.SynchronizedHandler;
+import com.android.gallery3d.ui.TileImageView;
 import com.android.gallery3d.ui.TileImageViewAdapter;
 import com.android.gallery3d.ui.TiledScreenNail;
 import com.android.gallery3d.util.Future;
@@ -45,6 +49,7 @@ import com.android.gallery3d.util.MediaSetUtils;
 import com.android.gallery3d.util.ThreadPool;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
+import com.android.photos.data.GalleryBitmapPool;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -105,6 +110,15 @@ public class PhotoDataAdapter implements PhotoPage.Model {
     }
 
     private final TileImageViewAdapter mTileProvider = new TileImageViewAdapter();
+    private final TileCacheService mTileCache;
+
+    // The coarsest tile levels of the photo next to the current one are
+    // decoded into the tile cache ahead of time, first in the direction of the
+    // last swipe (+1 or -1).
+    private static final int MAX_PREFETCH_TILES = 64;
+    private int mSwipeDirection = 1;
+    private Future<Void> mTilePrefetchTask;
+    private Path mTilePrefetchPath;
 
     // PhotoDataAdapter caches MediaItems (data) and ImageEntries (image).
     //
@@ -189,6 +203,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         mIsPanorama = isPanorama;
         mIsStaticCamera = isStaticCamera;
         mThreadPool = activity.getThreadPool();
+        mTileCache = ((GalleryApp) activity.getApplication()).getTileCacheService();
         mNeedFullImage = true;
 
         Arrays.fill(mChanges, MediaObject.INVALID_DATA_VERSION);
@@ -385,6 +400,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         mReloadTask = null;
 
         mSource.removeContentListener(mSourceListener);
+        cancelTilePrefetch();
 
         for (ImageEntry entry : mImageCache.values()) {
             if (entry.fullImageTask != null) entry.fullImageTask.cancel();
@@ -410,6 +426,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 
     private void updateCurrentIndex(int index) {
         if (mCurrentIndex == index) return;
+        mSwipeDirection = index > mCurrentIndex ? 1 : -1;
         mCurrentIndex = index;
         updateSlidingWindow();
 
@@ -637,7 +654,12 @@ public class PhotoDataAdapter implements PhotoPage.Model {
             if (fullImage != null) {
                 mTileProvider.setScreenNail(screenNail,
                         fullImage.getWidth(), fullImage.getHeight());
-                mTileProvider.setRegionDecoder(fullImage);
+                MediaItem item = getItem(mCurrentIndex);
+                mTileProvider.setRegionDecoder(fullImage, getRegionDecoderPath(item));
+                if (isTileCacheable(item)) {
+                    mTileProvider.setTileCache(mTileCache, item.getPath(),
+                            ((LocalImage) item).dateModifiedInSec);
+                }
             } else {
                 int width = screenNail.getWidth();
                 int height = screenNail.getHeight();
@@ -648,6 +670,22 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         }
     }
 
+    // Returns the file the region decoder of the item reads, so more decoders
+    // can be opened on it, or null if there is none.
+    private static String getRegionDecoderPath(MediaItem item) {
+        if (!(item instanceof LocalImage)) return null;
+        String filePath = item.getFilePath();
+        if (filePath == null || DrmHelper.isDrmFile(filePath)) return null;
+        return filePath;
+    }
+
+    // The tiles are compressed as JPEG in the cache, so only the tiles of
+    // JPEG images are cached.
+    private static boolean isTileCacheable(MediaItem item) {
+        return getRegionDecoderPath(item) != null
+                && "image/jpeg".equalsIgnoreCase(item.getMimeType());
+    }
+
     private void updateSlidingWindow() {
         // 1. Update the image window
         int start = Utils.clamp(mCurrentIndex - IMAGE_CACHE_SIZE / 2,
@@ -734,6 +772,109 @@ public class PhotoDataAdapter implements PhotoPage.Model {
                 entry.requestedFullImage = MediaObject.INVALID_DATA_VERSION;
             }
         }
+
+        // 3. Prefetch the tiles of a neighbour when nothing else is loading.
+        updateTilePrefetch(task == null);
+    }
+
+    private void updateTilePrefetch(boolean idle) {
+        MediaItem target = null;
+        ImageEntry targetEntry = null;
+        for (int i = 0; idle && i < 2; i++) {
+            int index = mCurrentIndex + (i == 0 ? mSwipeDirection : -mSwipeDirection);
+            if (index < mActiveStart || index >= mActiveEnd) continue;
+            MediaItem item = getItem(index);
+            if (item == null || !isTileCacheable(item)) continue;
+            ImageEntry entry = mImageCache.get(item.getPath());
+            if (entry == null || entry.tilesPrefetched || entry.fullImage == null
+                    || entry.screenNail == null) continue;
+            target = item;
+            targetEntry = entry;
+            break;
+        }
+
+        Path path = target == null ? null : target.getPath();
+        if (mTilePrefetchTask != null && mTilePrefetchPath == path) return;
+        // The swipe direction has changed, or the neighbour is gone.
+        cancelTilePrefetch();
+        if (target == null) return;
+
+        mTilePrefetchPath = path;
+        mTilePrefetchTask = mThreadPool.submit(
+                new TilePrefetchJob(target, targetEntry),
+                new TilePrefetchListener(path), ThreadPool.PRIORITY_BACKGROUND);
+    }
+
+    private void cancelTilePrefetch() {
+        if (mTilePrefetchTask == null) return;
+        mTilePrefetchTask.cancel();
+        mTilePrefetchTask = null;
+        mTilePrefetchPath = null;
+    }
+
+    // Decodes the tiles of the two coarsest levels into the tile cache, which
+    // are the ones TileImageView shows first.
+    private class TilePrefetchJob implements Job<Void> {
+        private final TileImageViewAdapter mTiles = new TileImageViewAdapter();
+
+        public TilePrefetchJob(MediaItem item, ImageEntry entry) {
+            BitmapRegionDecoder decoder = entry.fullImage;
+            mTiles.setScreenNail(entry.screenNail,
+                    decoder.getWidth(), decoder.getHeight());
+            mTiles.setRegionDecoder(decoder);
+            mTiles.setTileCache(mTileCache, item.getPath(),
+                    ((LocalImage) item).dateModifiedInSec);
+        }
+
+        @Override
+        public Void run(JobContext jc) {
+            int tileSize = TileImageView.getTileSize();
+            if (tileSize == 0) return null;
+            int levelCount = mTiles.getLevelCount();
+            int width = mTiles.getImageWidth();
+            int height = mTiles.getImageHeight();
+            int count = 0;
+            int minLevel = Math.max(TileCacheService.MIN_LEVEL, levelCount - 2);
+            for (int level = levelCount - 1; level >= minLevel; level--) {
+                int size = tileSize << level;
+                for (int y = 0; y < height; y += size) {
+                    for (int x = 0; x < width; x += size) {
+                        if (jc.isCancelled() || ++count > MAX_PREFETCH_TILES) {
+                            return null;
+                        }
+                        Bitmap tile = mTiles.getTile(level, x, y, tileSize);
+                        if (tile != null) GalleryBitmapPool.getInstance().put(tile);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private class TilePrefetchListener implements Runnable, FutureListener<Void> {
+        private final Path mPath;
+        private Future<Void> mFuture;
+
+        public TilePrefetchListener(Path path) {
+            mPath = path;
+        }
+
+        @Override
+        public void onFutureDone(Future<Void> future) {
+            mFuture = future;
+            mMainHandler.sendMessage(
+                    mMainHandler.obtainMessage(MSG_RUN_OBJECT, this));
+        }
+
+        @Override
+        public void run() {
+            if (mTilePrefetchTask != mFuture) return;
+            mTilePrefetchTask = null;
+            mTilePrefetchPath = null;
+            ImageEntry entry = mImageCache.get(mPath);
+            if (entry != null && !mFuture.isCancelled()) entry.tilesPrefetched = true;
+            updateImageRequests();
+        }
     }
 
     private class ScreenNailJob implements Job<ScreenNail> {
@@ -824,11 +965,18 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         Utils.assertTrue(item != null);
         long version = item.getDataVersion();
 
+        // The image being shown goes before the preloading of its neighbors.
+        int priority = (index == mCurrentIndex)
+                ? ThreadPool.PRIORITY_VISIBLE
+                : ThreadPool.PRIORITY_PREFETCH;
+
         if (which == BIT_SCREEN_NAIL && entry.screenNailTask != null
                 && entry.requestedScreenNail == version) {
+            mThreadPool.setPriority(entry.screenNailTask, priority);
             return entry.screenNailTask;
         } else if (which == BIT_FULL_IMAGE && entry.fullImageTask != null
                 && entry.requestedFullImage == version) {
+            mThreadPool.setPriority(entry.fullImageTask, priority);
             return entry.fullImageTask;
         }
 
@@ -836,7 +984,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
             entry.requestedScreenNail = version;
             entry.screenNailTask = mThreadPool.submit(
                     new ScreenNailJob(item),
-                    new ScreenNailListener(item));
+                    new ScreenNailListener(item), priority);
             // request screen nail
             return entry.screenNailTask;
         }
@@ -846,7 +994,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
             entry.requestedFullImage = version;
             entry.fullImageTask = mThreadPool.submit(
                     new FullImageJob(item),
-                    new FullImageListener(item));
+                    new FullImageListener(item), priority);
             // request full image
             return entry.fullImageTask;
         }
@@ -948,6 +1096,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
         public long requestedScreenNail = MediaObject.INVALID_DATA_VERSION;
         public long requestedFullImage = MediaObject.INVALID_DATA_VERSION;
         public boolean failToLoad = false;
+        public boolean tilesPrefetched = false;
     }
 
     private class SourceListener implements ContentListener {
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.app;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.LocalMediaItem;
+import com.android.gallery3d.data.MediaItem;
+import com.android.gallery3d.data.ThumbnailWarmer;
+import com.android.gallery3d.util.ThreadPool;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks all the local images and videos and generates the missing
+ * micro-thumbnails and thumbnails in the background, so browsing a freshly
+ * imported folder does not have to decode the original images.
+ *
+ * The items are read from the MediaStore in the order of their ids, so the
+ * walk doesn't touch the albums shown by the app. The walk is resumable: the
+ * id of the last processed item is saved, and the next walk starts from
+ * there. Once a walk completes, the generation of the MediaStore is saved,
+ * and there is no walk until it changes. Items which are already cached are
+ * skipped without being decoded. The walk only uses a fraction of the CPU
+ * time while the screen is on, backs off while the system is busy, and stops
+ * when the battery is low.
+ */
+public class ThumbnailWarmUpService extends IntentService {
+    private static final String TAG = "ThumbnailWarmUpService";
+
+    // Where the next walk starts: whether the images are done, and the id of
+    // the last processed item.
+    private static final String KEY_RESUME_VIDEO = "thumbnail-warm-up-video";
+    private static final String KEY_RESUME_ID = "thumbnail-warm-up-id";
+    // The generation of the MediaStore when the last walk completed.
+    private static final String KEY_GENERATION = "thumbnail-warm-up-generation";
+
+    // The items are read CHECKPOINT_INTERVAL at a time. The resume id is
+    // saved after each of them, which is also when the battery and the
+    // system load are checked.
+    private static final int CHECKPOINT_INTERVAL = 50;
+
+    // The fraction of the time spent generating thumbnails, depending on
+    // whether the screen is on.
+    private static final float DUTY_CYCLE_SCREEN_ON = 0.25f;
+    private static final float DUTY_CYCLE_SCREEN_OFF = 0.75f;
+
+    // Stop when the battery is below this level and not charging.
+    private static final int MIN_BATTERY_PERCENT = 20;
+
+    // Pause for BUSY_BACKOFF_MS while the load average exceeds the number of
+    // CPUs.
+    private static final long BUSY_BACKOFF_MS = 2000;
+
+    private static final AtomicInteger sTotalCount = new AtomicInteger();
+    private static final AtomicInteger sProcessedCount = new AtomicInteger();
+    private static final AtomicInteger sGeneratedCount = new AtomicInteger();
+    private static final AtomicInteger sCachedCount = new AtomicInteger();
+    private static final AtomicInteger sFailedCount = new AtomicInteger();
+    private static final AtomicInteger sSkippedCount = new AtomicInteger();
+    private static final AtomicLong sWorkTimeMs = new AtomicLong();
+
+    private volatile boolean mStopped;
+    private PowerManager mPowerManager;
+    private SharedPreferences mPrefs;
+
+    public ThumbnailWarmUpService() {
+        super(TAG);
+    }
+
+    public static void start(Context context) {
+        context.startService(new Intent(context, ThumbnailWarmUpService.class));
+    }
+
+    // Number of items in the current (or last) walk.
+    public static int getTotalCount() {
+        return sTotalCount.get();
+    }
+
+    // Number of items processed by the current (or last) walk, including
+    // the ones skipped when it was resumed.
+    public static int getProcessedCount() {
+        return sProcessedCount.get();
+    }
+
+    // Number of images generated since the process was started.
+    public static int getGeneratedCount() {
+        return sGeneratedCount.get();
+    }
+
+    // Number of images found in the cache since the process was started.
+    public static int getCachedCount() {
+        return sCachedCount.get();
+    }
+
+    // Number of images which failed to be generated since the process was
+    // started.
+    public static int getFailedCount() {
+        return sFailedCount.get();
+    }
+
+    // Number of images which are never cached (like the thumbnails of DRM
+    // images) since the process was started.
+    public static int getSkippedCount() {
+        return sSkippedCount.get();
+    }
+
+    // Images generated per second of work, not counting the throttling.
+    public static float getThroughput() {
+        long workTimeMs = sWorkTimeMs.get();
+        return workTimeMs == 0 ? 0 : sGeneratedCount.get() * 1000f / workTimeMs;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        mStopped = true;
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        if (isBatteryLow()) return;
+
+        // Nothing has changed since the last walk completed.
+        String generation = ThumbnailWarmer.getMediaGeneration(this);
+        if (generation == null) return;
+        if (generation.equals(mPrefs.getString(KEY_GENERATION, null))) return;
+
+        GalleryApp app = (GalleryApp) getApplication();
+        boolean resumeVideo = mPrefs.getBoolean(KEY_RESUME_VIDEO, false);
+        int resumeId = mPrefs.getInt(KEY_RESUME_ID, 0);
+        int total = ThumbnailWarmer.getItemCount(app, true, 0)
+                + ThumbnailWarmer.getItemCount(app, false, 0);
+        int remaining = resumeVideo
+                ? ThumbnailWarmer.getItemCount(app, false, resumeId)
+                : ThumbnailWarmer.getItemCount(app, true, resumeId)
+                        + ThumbnailWarmer.getItemCount(app, false, 0);
+        sTotalCount.set(total);
+        sProcessedCount.set(total - remaining);
+
+        boolean done = (resumeVideo || walk(app, true, resumeId))
+                && walk(app, false, resumeVideo ? resumeId : 0);
+        if (done) {
+            // The next walk starts over, once the MediaStore has changed.
+            mPrefs.edit().putBoolean(KEY_RESUME_VIDEO, false).putInt(KEY_RESUME_ID, 0)
+                    .putString(KEY_GENERATION, generation).apply();
+        }
+        Log.d(TAG, "warm-up " + (done ? "done" : "paused")
+                + ": generated=" + sGeneratedCount.get()
+                + ", cached=" + sCachedCount.get()
+                + ", skipped=" + sSkippedCount.get()
+                + ", failed=" + sFailedCount.get()
+                + ", " + getThroughput() + " images/s");
+    }
+
+    // Walks the images (or the videos) with an id above afterId. Returns
+    // false if the walk is paused.
+    private boolean walk(GalleryApp app, boolean isImage, int afterId) {
+        while (true) {
+            ArrayList<LocalMediaItem> items =
+                    ThumbnailWarmer.getItems(app, isImage, afterId, CHECKPOINT_INTERVAL);
+            if (items.isEmpty()) return true;
+            for (int i = 0, n = items.size(); i < n; i++) {
+                if (mStopped) {
+                    saveResumeId(!isImage, afterId);
+                    return false;
+                }
+                LocalMediaItem item = items.get(i);
+                long start = SystemClock.uptimeMillis();
+                warmUp(item, MediaItem.TYPE_MICROTHUMBNAIL);
+                warmUp(item, MediaItem.TYPE_THUMBNAIL);
+                long workTime = SystemClock.uptimeMillis() - start;
+                sWorkTimeMs.addAndGet(workTime);
+                sProcessedCount.incrementAndGet();
+                afterId = item.id;
+
+                // Sleep so the work only takes the duty cycle of the time.
+                float duty = mPowerManager.isScreenOn()
+                        ? DUTY_CYCLE_SCREEN_ON : DUTY_CYCLE_SCREEN_OFF;
+                SystemClock.sleep((long) (workTime * (1 - duty) / duty));
+            }
+            saveResumeId(!isImage, afterId);
+            if (!waitForIdle()) return false;
+        }
+    }
+
+    // Waits while the system is busy. Returns false if the walk should be
+    // paused.
+    private boolean waitForIdle() {
+        if (isBatteryLow()) return false;
+        while (isSystemBusy()) {
+            if (mStopped) return false;
+            SystemClock.sleep(BUSY_BACKOFF_MS);
+        }
+        return !mStopped;
+    }
+
+    private void saveResumeId(boolean isVideo, int id) {
+        mPrefs.edit().putBoolean(KEY_RESUME_VIDEO, isVideo).putInt(KEY_RESUME_ID, id).apply();
+    }
+
+    private static void warmUp(MediaItem item, int type) {
+        switch (ThumbnailWarmer.warmUp(ThreadPool.JOB_CONTEXT_STUB, item, type)) {
+            case ThumbnailWarmer.RESULT_CACHED:
+                sCachedCount.incrementAndGet();
+                break;
+            case ThumbnailWarmer.RESULT_GENERATED:
+                sGeneratedCount.incrementAndGet();
+                break;
+            case ThumbnailWarmer.RESULT_SKIPPED:
+                sSkippedCount.incrementAndGet();
+                break;
+            default:
+                sFailedCount.incrementAndGet();
+                break;
+        }
+    }
+
+    private boolean isBatteryLow() {
+        Intent battery = registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return false;
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) return false;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) return false;
+        return level * 100 < MIN_BATTERY_PERCENT * scale;
+    }
+
+    // Returns true if the 1-minute load average exceeds the number of CPUs.
+    private static boolean isSystemBusy() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/loadavg"));
+            String line = reader.readLine();
+            if (line == null) return false;
+            int end = line.indexOf(' ');
+            float load = Float.parseFloat(end < 0 ? line : line.substring(0, end));
+            return load > Runtime.getRuntime().availableProcessors();
+        } catch (IOException e) {
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            Utils.closeSilently(reader);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.android.photos.data.GalleryBitmapPool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The in-memory tier in front of {@link ImageCacheService}. It keeps the
+ * recently decoded thumbnails and micro-thumbnails, keyed by (path,
+ * timeModified, type), within a byte budget and evicts the least recently
+ * used ones first.
+ *
+ * The bitmaps given to the callers are recycled into the GalleryBitmapPool
+ * and reused by the decoder, so the cache keeps its own copy of each bitmap
+ * and hands out a copy of it on a hit. Copying pixels is still much cheaper
+ * than decoding the JPEG data again.
+ *
+ * The cached copies are never recycled: an evicted copy is left to the
+ * garbage collector, so a copy being made from it outside of the lock is
+ * still valid.
+ */
+public class BitmapMemoryCache {
+    @SuppressWarnings("unused")
+    private static final String TAG = "BitmapMemoryCache";
+
+    // Use 1/16 of the heap, which holds a few screens of micro-thumbnails.
+    private static final int CAPACITY_BYTES =
+            (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 32 * 1024 * 1024);
+
+    private static final BitmapMemoryCache sInstance =
+            new BitmapMemoryCache(CAPACITY_BYTES);
+
+    private static class Key {
+        final Path mPath;
+        final long mTimeModified;
+        final int mType;
+
+        Key(Path path, long timeModified, int type) {
+            mPath = path;
+            mTimeModified = timeModified;
+            mType = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            // Paths are interned, so they can be compared by identity.
+            return mPath == k.mPath && mTimeModified == k.mTimeModified
+                    && mType == k.mType;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(mPath);
+            h = 31 * h + (int) (mTimeModified ^ (mTimeModified >>> 32));
+            return 31 * h + mType;
+        }
+    }
+
+    private final LinkedHashMap<Key, Bitmap> mMap =
+            new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    private final int mCapacityBytes;
+    private int mSizeBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private BitmapMemoryCache(int capacityBytes) {
+        mCapacityBytes = capacityBytes;
+    }
+
+    public static BitmapMemoryCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return A copy of the cached bitmap, or null if it is not cached.
+     */
+    public Bitmap get(Path path, long timeModified, int type) {
+        Bitmap cached;
+        synchronized (this) {
+            cached = mMap.get(new Key(path, timeModified, type));
+            if (cached == null) {
+                ++mMissCount;
+                return null;
+            }
+            ++mHitCount;
+        }
+        return copyOf(cached);
+    }
+
+    /**
+     * Adds a copy of the given bitmap to the cache.
+     */
+    public void put(Path path, long timeModified, int type, Bitmap bitmap) {
+        int size = bitmap.getByteCount();
+        if (size > mCapacityBytes / 4) return;
+        Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+        if (copy == null) return;
+
+        synchronized (this) {
+            Bitmap old = mMap.put(new Key(path, timeModified, type), copy);
+            if (old != null) mSizeBytes -= old.getByteCount();
+            mSizeBytes += size;
+            trimToSize(mCapacityBytes);
+        }
+    }
+
+    /**
+     * Releases memory according to the level given to
+     * {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            trimToSize(mCapacityBytes / 2);
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return Total size in bytes of the bitmaps in the cache.
+     */
+    public synchronized int getSize() {
+        return mSizeBytes;
+    }
+
+    public int getCapacity() {
+        return mCapacityBytes;
+    }
+
+    // Must be called with the lock held.
+    private void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<Key, Bitmap>> iter = mMap.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iter.hasNext()) {
+            Bitmap bitmap = iter.next().getValue();
+            iter.remove();
+            mSizeBytes -= bitmap.getByteCount();
+            ++mEvictionCount;
+        }
+    }
+
+    private static Bitmap copyOf(Bitmap bitmap) {
+        Bitmap result = GalleryBitmapPool.getInstance().get(
+                bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        if (result == null) {
+            return bitmap.copy(bitmap.getConfig(), true);
+        }
+        result.eraseColor(0);
+        new Canvas(result).drawBitmap(bitmap, 0, 0, null);
+        return result;
+    }
+}
@@ -221,6 +221,15 @@ class BucketHelper {
         public int bucketId;
         public int dateTaken;
 
+        // The number of images and videos in the bucket, and the id of the
+        // newest of each, when the entry comes from the BucketIndex. The
+        // count is UNKNOWN_COUNT otherwise.
+        public static final int UNKNOWN_COUNT = -1;
+        public int imageCount = UNKNOWN_COUNT;
+        public int imageCoverId;
+        public int videoCount = UNKNOWN_COUNT;
+        public int videoCoverId;
+
         public BucketEntry(int id, String name) {
             bucketId = id;
             bucketName = Utils.ensureNotNull(name);
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Files;
+import android.provider.MediaStore.Files.FileColumns;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.provider.MediaStore.Video;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.common.ApiHelper;
+import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BucketHelper.BucketEntry;
+import com.android.gallery3d.util.CacheManager;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// A summary of the local buckets: the name, the number of items, the newest
+// datetaken and the cover item of each (bucket_id, media_type) album. It
+// replaces the GROUP BY query over the whole Files table done by
+// BucketHelper.loadBucketEntries(). The counts and cover items are handed
+// out with the entries, so the albums don't have to query them either.
+//
+// The index is persisted, so the album list can be shown from it right
+// after the process starts, while it's verified against the media database
+// in the background. Once verified, it's kept up to date with the deltas from
+// the MediaStoreTracker: only the buckets which have changed are queried
+// again.
+//
+// An entry is only used if the media database is the same as when it was
+// saved.
+@TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+class BucketIndex {
+    private static final String TAG = "BucketIndex";
+
+    private static final String BUCKET_INDEX_FILE = "bucketindex";
+    private static final int BUCKET_INDEX_MAX_ENTRIES = 4;
+    private static final int BUCKET_INDEX_MAX_BYTES = 1024 * 1024;
+    private static final int BUCKET_INDEX_VERSION = 1;
+    private static final String BUCKET_INDEX_KEY = "local-buckets";
+
+    // If more buckets than this have changed, the whole index is rebuilt
+    // instead of querying the buckets one by one.
+    private static final int MAX_BUCKET_REFRESH = 32;
+
+    // The bucket id and media type must be the first two columns, so the
+    // index of MediaStore can be used (see BucketHelper). With a MAX()
+    // aggregate, SQLite takes the bare _id column from the row holding the
+    // maximum, that is, the newest item of the bucket.
+    private static final String[] PROJECTION_SUMMARY = {
+            ImageColumns.BUCKET_ID,
+            FileColumns.MEDIA_TYPE,
+            ImageColumns.BUCKET_DISPLAY_NAME,
+            "count(*)",
+            "MAX(" + ImageColumns.DATE_TAKEN + ")",
+            ImageColumns._ID};
+
+    private static final int INDEX_BUCKET_ID = 0;
+    private static final int INDEX_MEDIA_TYPE = 1;
+    private static final int INDEX_BUCKET_NAME = 2;
+    private static final int INDEX_COUNT = 3;
+    private static final int INDEX_DATE_TAKEN = 4;
+    private static final int INDEX_COVER_ID = 5;
+
+    // See BucketHelper for how the GROUP BY clause is put into the WHERE
+    // parameter.
+    private static final String SUMMARY_WHERE = FileColumns.MEDIA_TYPE + " IN ("
+            + FileColumns.MEDIA_TYPE_IMAGE + "," + FileColumns.MEDIA_TYPE_VIDEO
+            + ")) GROUP BY 1,(2";
+    private static final String BUCKET_WHERE = ImageColumns.BUCKET_ID + " = ? AND "
+            + FileColumns.MEDIA_TYPE + " = ?";
+
+    private static BucketIndex sInstance;
+
+    private static class Summary {
+        int bucketId;
+        int mediaType;
+        String name;
+        int count;
+        long dateTaken;
+        int coverId;
+
+        long getKey() {
+            return makeKey(bucketId, mediaType);
+        }
+    }
+
+    private static final Comparator<Summary> sNewestFirst = new Comparator<Summary>() {
+        @Override
+        public int compare(Summary a, Summary b) {
+            if (a.dateTaken != b.dateTaken) return a.dateTaken > b.dateTaken ? -1 : 1;
+            return Utils.compare(a.bucketId, b.bucketId);
+        }
+    };
+
+    private final ContentResolver mResolver;
+    private final BlobCache mCache;
+    private final String mGeneration;
+    private final Uri mFilesUri = Files.getContentUri("external");
+
+    // The summaries, keyed by makeKey(bucketId, mediaType). Guarded by this.
+    private HashMap<Long, Summary> mSummaries;
+    private boolean mLoaded;
+    private boolean mVerified;
+
+    // The deltas which haven't been applied yet. Guarded by itself, so the
+    // main thread doesn't wait for the queries done with the index locked.
+    private final ArrayList<PendingDelta> mPendingDeltas = new ArrayList<PendingDelta>();
+
+    private static class PendingDelta {
+        final int mediaType;
+        final MediaStoreTracker.Delta delta;
+
+        PendingDelta(int mediaType, MediaStoreTracker.Delta delta) {
+            this.mediaType = mediaType;
+            this.delta = delta;
+        }
+    }
+
+    private class DeltaListener implements MediaStoreTracker.Listener {
+        private final int mMediaType;
+
+        DeltaListener(int mediaType) {
+            mMediaType = mediaType;
+        }
+
+        @Override
+        public void onDelta(MediaStoreTracker.Delta delta) {
+            synchronized (mPendingDeltas) {
+                mPendingDeltas.add(new PendingDelta(mMediaType, delta));
+            }
+        }
+    }
+
+    public static synchronized BucketIndex getInstance(GalleryApp application) {
+        if (sInstance == null) {
+            sInstance = new BucketIndex(application);
+        }
+        return sInstance;
+    }
+
+    private BucketIndex(GalleryApp application) {
+        Context context = application.getAndroidContext();
+        mResolver = application.getContentResolver();
+        mCache = CacheManager.getCache(context, BUCKET_INDEX_FILE,
+                BUCKET_INDEX_MAX_ENTRIES, BUCKET_INDEX_MAX_BYTES,
+                BUCKET_INDEX_VERSION);
+        mGeneration = MediaStore.getVersion(context);
+
+        // The deltas are dispatched before the change notifiers are called,
+        // so they are queued before the album sets start reloading.
+        DataManager manager = application.getDataManager();
+        manager.registerDeltaListener(Images.Media.EXTERNAL_CONTENT_URI,
+                new DeltaListener(FileColumns.MEDIA_TYPE_IMAGE));
+        manager.registerDeltaListener(Video.Media.EXTERNAL_CONTENT_URI,
+                new DeltaListener(FileColumns.MEDIA_TYPE_VIDEO));
+    }
+
+    // Returns true if the index has to be checked against the media database
+    // before it can be trusted, which is the case after the process starts
+    // and after a change which the MediaStoreTracker can't describe.
+    public synchronized boolean needsVerification() {
+        return !mVerified || hasFullDelta();
+    }
+
+    // Returns the buckets of the given type (see MediaObject.MEDIA_TYPE_*) as
+    // saved in the index, without querying the media database. Returns null
+    // if there is nothing in the index.
+    public synchronized BucketEntry[] peekEntries(int type) {
+        if (!mLoaded) {
+            mLoaded = true;
+            mSummaries = load();
+        }
+        return mSummaries == null ? null : toEntries(type);
+    }
+
+    // Returns the current buckets of the given type. The index is brought up
+    // to date with the changes since the last call, or rebuilt from the media
+    // database if needed. Returns null if the job is cancelled.
+    public synchronized BucketEntry[] getEntries(JobContext jc, int type) {
+        ArrayList<PendingDelta> deltas = takePendingDeltas();
+        if (!mVerified || !applyDeltas(jc, deltas)) {
+            HashMap<Long, Summary> summaries = loadSummaries(jc);
+            if (summaries == null) {
+                // Verify again next time.
+                mVerified = false;
+                return null;
+            }
+            mSummaries = summaries;
+            mLoaded = true;
+            mVerified = true;
+            save();
+        } else if (!deltas.isEmpty()) {
+            save();
+        }
+        return jc.isCancelled() ? null : toEntries(type);
+    }
+
+    private boolean hasFullDelta() {
+        synchronized (mPendingDeltas) {
+            for (PendingDelta pending : mPendingDeltas) {
+                if (pending.delta.isFull()) return true;
+            }
+            return false;
+        }
+    }
+
+    private ArrayList<PendingDelta> takePendingDeltas() {
+        synchronized (mPendingDeltas) {
+            ArrayList<PendingDelta> deltas = new ArrayList<PendingDelta>(mPendingDeltas);
+            mPendingDeltas.clear();
+            return deltas;
+        }
+    }
+
+    // Queries the changed buckets again. Returns false if the index has to be
+    // rebuilt instead.
+    private boolean applyDeltas(JobContext jc, ArrayList<PendingDelta> deltas) {
+        HashSet<Long> keys = new HashSet<Long>();
+        for (PendingDelta pending : deltas) {
+            if (pending.delta.isFull()) return false;
+            for (int bucketId : pending.delta.getBuckets()) {
+                keys.add(makeKey(bucketId, pending.mediaType));
+            }
+        }
+        if (keys.size() > MAX_BUCKET_REFRESH) return false;
+
+        for (Long key : keys) {
+            int bucketId = (int) (key >> 32);
+            int mediaType = (int) (long) key;
+            Summary summary = loadSummary(bucketId, mediaType);
+            if (summary == null) {
+                mSummaries.remove(key);
+            } else {
+                mSummaries.put(key, summary);
+            }
+        }
+        return true;
+    }
+
+    private BucketEntry[] toEntries(int type) {
+        int typeBits = 0;
+        if ((type & MediaObject.MEDIA_TYPE_IMAGE) != 0) {
+            typeBits |= (1 << FileColumns.MEDIA_TYPE_IMAGE);
+        }
+        if ((type & MediaObject.MEDIA_TYPE_VIDEO) != 0) {
+            typeBits |= (1 << FileColumns.MEDIA_TYPE_VIDEO);
+        }
+
+        ArrayList<Summary> summaries = new ArrayList<Summary>(mSummaries.size());
+        for (Summary summary : mSummaries.values()) {
+            if ((typeBits & (1 << summary.mediaType)) != 0) summaries.add(summary);
+        }
+        Summary[] sorted = summaries.toArray(new Summary[summaries.size()]);
+        Arrays.sort(sorted, sNewestFirst);
+
+        // A bucket with both images and videos is put at the place of its
+        // newest item. The index has all the buckets, so a bucket without
+        // items of one of the types has none of them.
+        ArrayList<BucketEntry> entries = new ArrayList<BucketEntry>(sorted.length);
+        HashMap<Integer, BucketEntry> seen = new HashMap<Integer, BucketEntry>();
+        for (Summary summary : sorted) {
+            BucketEntry entry = seen.get(summary.bucketId);
+            if (entry == null) {
+                entry = new BucketEntry(summary.bucketId, summary.name);
+                if ((typeBits & (1 << FileColumns.MEDIA_TYPE_IMAGE)) != 0) {
+                    entry.imageCount = 0;
+                }
+                if ((typeBits & (1 << FileColumns.MEDIA_TYPE_VIDEO)) != 0) {
+                    entry.videoCount = 0;
+                }
+                seen.put(summary.bucketId, entry);
+                entries.add(entry);
+            }
+            if (summary.mediaType == FileColumns.MEDIA_TYPE_IMAGE) {
+                entry.imageCount = summary.count;
+                entry.imageCoverId = summary.coverId;
+            } else {
+                entry.videoCount = summary.count;
+                entry.videoCoverId = summary.coverId;
+            }
+        }
+        return entries.toArray(new BucketEntry[entries.size()]);
+    }
+
+    private HashMap<Long, Summary> loadSummaries(JobContext jc) {
+        Cursor cursor = mResolver.query(mFilesUri, PROJECTION_SUMMARY,
+                SUMMARY_WHERE, null, null);
+        if (cursor == null) {
+            Log.w(TAG, "cannot open local database: " + mFilesUri);
+            return new HashMap<Long, Summary>();
+        }
+        try {
+            HashMap<Long, Summary> summaries = new HashMap<Long, Summary>();
+            while (cursor.moveToNext()) {
+                Summary summary = readSummary(cursor);
+                summaries.put(summary.getKey(), summary);
+                if (jc.isCancelled()) return null;
+            }
+            return summaries;
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+    }
+
+    // Returns null if there is no item of the given type in the bucket.
+    private Summary loadSummary(int bucketId, int mediaType) {
+        Cursor cursor = mResolver.query(mFilesUri, PROJECTION_SUMMARY, BUCKET_WHERE,
+                new String[] {String.valueOf(bucketId), String.valueOf(mediaType)},
+                null);
+        if (cursor == null) {
+            Log.w(TAG, "cannot open local database: " + mFilesUri);
+            return null;
+        }
+        try {
+            if (!cursor.moveToNext() || cursor.getInt(INDEX_COUNT) == 0) return null;
+            return readSummary(cursor);
+        } finally {
+            Utils.closeSilently(cursor);
+        }
+    }
+
+    private static Summary readSummary(Cursor cursor) {
+        Summary summary = new Summary();
+        summary.bucketId = cursor.getInt(INDEX_BUCKET_ID);
+        summary.mediaType = cursor.getInt(INDEX_MEDIA_TYPE);
+        summary.name = Utils.ensureNotNull(cursor.getString(INDEX_BUCKET_NAME));
+        summary.count = cursor.getInt(INDEX_COUNT);
+        summary.dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
+        summary.coverId = cursor.getInt(INDEX_COVER_ID);
+        return summary;
+    }
+
+    private static long makeKey(int bucketId, int mediaType) {
+        return ((long) bucketId << 32) | (mediaType & 0xffffffffL);
+    }
+
+    private HashMap<Long, Summary> load() {
+        if (mCache == null) return null;
+        try {
+            byte[] data = mCache.lookup(Utils.crc64Long(BUCKET_INDEX_KEY));
+            if (data == null) return null;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (!mGeneration.equals(in.readUTF())) return null;
+            int n = in.readInt();
+            HashMap<Long, Summary> summaries = new HashMap<Long, Summary>(n * 2);
+            for (int i = 0; i < n; i++) {
+                Summary summary = new Summary();
+                summary.bucketId = in.readInt();
+                summary.mediaType = in.readInt();
+                summary.name = in.readUTF();
+                summary.count = in.readInt();
+                summary.dateTaken = in.readLong();
+                summary.coverId = in.readInt();
+                summaries.put(summary.getKey(), summary);
+            }
+            return summaries;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot load bucket index", e);
+            return null;
+        }
+    }
+
+    private void save() {
+        if (mCache == null) return;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeUTF(mGeneration);
+            out.writeInt(mSummaries.size());
+            for (Summary summary : mSummaries.values()) {
+                out.writeInt(summary.bucketId);
+                out.writeInt(summary.mediaType);
+                out.writeUTF(summary.name);
+                out.writeInt(summary.count);
+                out.writeLong(summary.dateTaken);
+                out.writeInt(summary.coverId);
+            }
+            out.flush();
+            mCache.insert(Utils.crc64Long(BUCKET_INDEX_KEY), bos.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save bucket index", e);
+        } catch (RuntimeException e) {
+            // The index is too large for the cache.
+            Log.w(TAG, "cannot save bucket index", e);
+        }
+    }
+}
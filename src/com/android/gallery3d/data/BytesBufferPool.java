@@ -61,31 +61,128 @@ public class BytesBufferPool {
         }
     }
 
-    private final int mPoolSize;
-    private final int mBufferSize;
-    private final ArrayList<BytesBuffer> mList;
-
-    public BytesBufferPool(int poolSize, int bufferSize) {
-        mList = new ArrayList<BytesBuffer>(poolSize);
-        mPoolSize = poolSize;
-        mBufferSize = bufferSize;
+    // Buffers are pooled in power-of-two size classes from MIN_BUFFER_SIZE
+    // to MAX_BUFFER_SIZE. A buffer in class i has a capacity of at least
+    // (MIN_BUFFER_SIZE << i), so buffers grown elsewhere (for example by
+    // BlobCache or readFrom) can be pooled in the largest class they fit.
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private final int mDefaultSize;
+    private final int mCapacityBytes;
+    private final ArrayList<ArrayList<BytesBuffer>> mClasses;
+    private int mSizeBytes;
+
+    // Statistics
+    private int mHitCount;
+    private int mMissCount;
+    private int mDiscardCount;
+    private long mTrimmedBytes;
+
+    public BytesBufferPool(int defaultSize, int capacityBytes) {
+        mDefaultSize = defaultSize;
+        mCapacityBytes = capacityBytes;
+        int n = sizeClassFor(MAX_BUFFER_SIZE) + 1;
+        mClasses = new ArrayList<ArrayList<BytesBuffer>>(n);
+        for (int i = 0; i < n; ++i) {
+            mClasses.add(new ArrayList<BytesBuffer>());
+        }
     }
 
-    public synchronized BytesBuffer get() {
-        int n = mList.size();
-        return n > 0 ? mList.remove(n - 1) : new BytesBuffer(mBufferSize);
+    // Returns the smallest size class which holds at least minCapacity bytes.
+    private static int sizeClassFor(int minCapacity) {
+        int sizeClass = 0;
+        while ((MIN_BUFFER_SIZE << sizeClass) < minCapacity) ++sizeClass;
+        return sizeClass;
+    }
+
+    public BytesBuffer get() {
+        return get(mDefaultSize);
+    }
+
+    // Returns a buffer with a capacity of at least minCapacity bytes.
+    public synchronized BytesBuffer get(int minCapacity) {
+        if (minCapacity > MAX_BUFFER_SIZE) {
+            ++mMissCount;
+            return new BytesBuffer(minCapacity);
+        }
+        int sizeClass = sizeClassFor(minCapacity);
+        ArrayList<BytesBuffer> list = mClasses.get(sizeClass);
+        int n = list.size();
+        if (n > 0) {
+            BytesBuffer buffer = list.remove(n - 1);
+            mSizeBytes -= buffer.data.length;
+            ++mHitCount;
+            return buffer;
+        }
+        ++mMissCount;
+        return new BytesBuffer(MIN_BUFFER_SIZE << sizeClass);
     }
 
     public synchronized void recycle(BytesBuffer buffer) {
-        if (buffer.data.length != mBufferSize) return;
-        if (mList.size() < mPoolSize) {
-            buffer.offset = 0;
-            buffer.length = 0;
-            mList.add(buffer);
+        int length = buffer.data.length;
+        if (length < MIN_BUFFER_SIZE || length > MAX_BUFFER_SIZE
+                || mSizeBytes + length > mCapacityBytes) {
+            ++mDiscardCount;
+            return;
         }
+        int sizeClass = sizeClassFor(length);
+        if ((MIN_BUFFER_SIZE << sizeClass) > length) --sizeClass;
+        buffer.offset = 0;
+        buffer.length = 0;
+        mClasses.get(sizeClass).add(buffer);
+        mSizeBytes += length;
     }
 
     public synchronized void clear() {
-        mList.clear();
+        trimToSize(0);
+    }
+
+    // Releases the pooled buffers, largest first, until the pool holds at
+    // most maxBytes.
+    public synchronized void trimToSize(int maxBytes) {
+        for (int i = mClasses.size() - 1; i >= 0 && mSizeBytes > maxBytes; --i) {
+            ArrayList<BytesBuffer> list = mClasses.get(i);
+            while (!list.isEmpty() && mSizeBytes > maxBytes) {
+                int length = list.remove(list.size() - 1).data.length;
+                mSizeBytes -= length;
+                mTrimmedBytes += length;
+            }
+        }
+    }
+
+    // Returns the number of pooled buffers in each size class.
+    public synchronized int[] getOccupancy() {
+        int[] result = new int[mClasses.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = mClasses.get(i).size();
+        }
+        return result;
+    }
+
+    // Returns the total size in bytes of the pooled buffers.
+    public synchronized int getSize() {
+        return mSizeBytes;
+    }
+
+    public int getCapacity() {
+        return mCapacityBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    // Returns the number of recycled buffers which were not pooled.
+    public synchronized int getDiscardCount() {
+        return mDiscardCount;
+    }
+
+    public synchronized long getTrimmedBytes() {
+        return mTrimmedBytes;
     }
 }
@@ -27,12 +27,25 @@ public class ChangeNotifier {
 
     private MediaSet mMediaSet;
     private AtomicBoolean mContentDirty = new AtomicBoolean(true);
+    // Only the changes in this bucket are notified, if mFilterBucket is set.
+    private boolean mFilterBucket;
+    private int mBucketId;
 
     public ChangeNotifier(MediaSet set, Uri uri, GalleryApp application) {
         mMediaSet = set;
         application.getDataManager().registerChangeNotifier(uri, this);
     }
 
+    // Only notifies the changes of the items in the given bucket, if the uri
+    // is tracked by a MediaStoreTracker.
+    public ChangeNotifier(MediaSet set, Uri uri, int bucketId,
+            GalleryApp application) {
+        mMediaSet = set;
+        mFilterBucket = true;
+        mBucketId = bucketId;
+        application.getDataManager().registerChangeNotifier(uri, this);
+    }
+
     public ChangeNotifier(MediaSet set, Uri[] uris, GalleryApp application) {
         mMediaSet = set;
         for (int i = 0; i < uris.length; i++) {
@@ -49,6 +62,12 @@ public class ChangeNotifier {
         onChange(false);
     }
 
+    void onDelta(MediaStoreTracker.Delta delta) {
+        if (!mFilterBucket || delta.containsBucket(mBucketId)) {
+            onChange(false);
+        }
+    }
+
     protected void onChange(boolean selfChange) {
         if (mContentDirty.compareAndSet(false, true)) {
             mMediaSet.notifyContentChanged();
@@ -23,6 +23,8 @@ public class ClusterAlbum extends MediaSet implements ContentListener {
     private static final String TAG = "ClusterAlbum";
     private ArrayList<Path> mPaths = new ArrayList<Path>();
     private String mName = "";
+    // Used instead of mName if set, see TimeClustering.
+    private TimeClustering.Caption mCaption;
     private DataManager mDataManager;
     private MediaSet mClusterAlbumSet;
     private MediaItem mCover;
@@ -54,11 +56,18 @@ public class ClusterAlbum extends MediaSet implements ContentListener {
 
     public void setName(String name) {
         mName = name;
+        mCaption = null;
+    }
+
+    // The caption is only formatted when the name is asked for.
+    void setCaption(TimeClustering.Caption caption) {
+        mCaption = caption;
     }
 
     @Override
     public String getName() {
-        return mName;
+        TimeClustering.Caption caption = mCaption;
+        return caption != null ? caption.get() : mName;
     }
 
     @Override
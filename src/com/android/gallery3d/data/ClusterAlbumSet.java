@@ -22,6 +22,7 @@ import android.net.Uri;
 import com.android.gallery3d.app.GalleryApp;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class ClusterAlbumSet extends MediaSet implements ContentListener {
@@ -32,6 +33,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     private int mKind;
     private ArrayList<ClusterAlbum> mAlbums = new ArrayList<ClusterAlbum>();
     private boolean mFirstReloadDone;
+    private Clustering mClustering;
+    // The items of the base set when the clusters were last updated.
+    // The version of each clustered item, see getItemVersion().
+    private HashMap<Path, Long> mItemVersions;
+    private ClusterIndex mClusterIndex;
 
     public ClusterAlbumSet(Path path, GalleryApp application,
             MediaSet baseSet, int kind) {
@@ -61,7 +67,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     public long reload() {
         if (mBaseSet.reload() > mDataVersion) {
             if (mFirstReloadDone) {
-                updateClustersContents();
+                if (mClustering instanceof IncrementalClustering) {
+                    if (updateClustersIncrementally()) updateAlbums();
+                } else {
+                    updateClustersContents();
+                }
             } else {
                 updateClusters();
                 mFirstReloadDone = true;
@@ -77,7 +87,41 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
     }
 
     private void updateClusters() {
-        mAlbums.clear();
+        // The incremental clusterings are saved in the ClusterIndex, so after
+        // a restart they are restored and only updated with the changes.
+        if (mClusterIndex == null) {
+            mClusterIndex = new ClusterIndex(mApplication.getAndroidContext());
+        }
+        Clustering clustering = newClustering();
+        HashMap<Path, Long> itemVersions = null;
+        if (clustering instanceof IncrementalClustering) {
+            itemVersions = mClusterIndex.load(mPath, (IncrementalClustering) clustering);
+        }
+        if (itemVersions != null) {
+            mClustering = clustering;
+            mItemVersions = itemVersions;
+            updateClustersIncrementally();
+            updateAlbums();
+            return;
+        }
+
+        // Start over with a new object if the load failed halfway.
+        clustering = newClustering();
+        if (clustering instanceof IncrementalClustering) {
+            // The versions are read before the clustering runs, so an item
+            // changed in between is reclustered by the next update.
+            itemVersions = getItemVersions(mBaseSet);
+            clustering.run(mBaseSet);
+            mItemVersions = getClusteredVersions(clustering, itemVersions);
+            mClusterIndex.save(mPath, (IncrementalClustering) clustering, mItemVersions);
+        } else {
+            clustering.run(mBaseSet);
+        }
+        mClustering = clustering;
+        updateAlbums();
+    }
+
+    private Clustering newClustering() {
         Clustering clustering;
         Context context = mApplication.getAndroidContext();
         switch (mKind) {
@@ -98,17 +142,105 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                 break;
         }
 
-        clustering.run(mBaseSet);
+        return clustering;
+    }
+
+    // Returns a number which changes when the item is edited in place. For
+    // the local items it is the modification date, which stays the same
+    // across restarts.
+    private static long getItemVersion(MediaItem item) {
+        if (item instanceof LocalMediaItem) {
+            return ((LocalMediaItem) item).dateModifiedInSec;
+        }
+        return item.getDataVersion();
+    }
+
+    private static HashMap<Path, Long> getItemVersions(MediaSet set) {
+        final HashMap<Path, Long> versions = new HashMap<Path, Long>();
+        set.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+                versions.put(item.getPath(), getItemVersion(item));
+            }
+        });
+        return versions;
+    }
+
+    // Returns the versions of the clustered items. An item with no version
+    // gets one no item has, so the next update reclusters it.
+    private static HashMap<Path, Long> getClusteredVersions(
+            Clustering clustering, HashMap<Path, Long> versions) {
+        HashMap<Path, Long> clustered = new HashMap<Path, Long>();
+        for (int i = 0, n = clustering.getNumberOfClusters(); i < n; i++) {
+            for (Path path : clustering.getCluster(i)) {
+                Long version = versions.get(path);
+                clustered.put(path, version != null ? version : Long.MIN_VALUE);
+            }
+        }
+        return clustered;
+    }
+
+    // Updates the clusters with the items added to, removed from and changed
+    // in the base set, instead of running the clustering over the whole base
+    // set again. A changed item is removed and added again. Returns false if
+    // nothing has changed.
+    private boolean updateClustersIncrementally() {
+        final HashMap<Path, Long> oldVersions = mItemVersions;
+        final HashMap<Path, Long> versions = new HashMap<Path, Long>();
+        final ArrayList<MediaItem> added = new ArrayList<MediaItem>();
+        final HashSet<Path> removed = new HashSet<Path>();
+        mBaseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
+            @Override
+            public void consume(int index, MediaItem item) {
+                Path path = item.getPath();
+                long version = getItemVersion(item);
+                if (versions.put(path, version) != null) return;
+                Long oldVersion = oldVersions.get(path);
+                if (oldVersion == null) {
+                    added.add(item);
+                } else if (oldVersion != version) {
+                    removed.add(path);
+                    added.add(item);
+                }
+            }
+        });
+
+        for (Path path : oldVersions.keySet()) {
+            if (!versions.containsKey(path)) removed.add(path);
+        }
+        // Not changed after this: it is handed to the ClusterIndex below.
+        mItemVersions = versions;
+        if (added.isEmpty() && removed.isEmpty()) return false;
+
+        IncrementalClustering clustering = (IncrementalClustering) mClustering;
+        // The ClusterIndex may be saving the clustering at the same time.
+        synchronized (clustering) {
+            clustering.update(added, removed);
+        }
+        mClusterIndex.save(mPath, clustering, versions);
+        return true;
+    }
+
+    // Makes mAlbums match the clusters. The albums are looked up by path, so
+    // a cluster keeps its ClusterAlbum as long as its id doesn't change.
+    private void updateAlbums() {
+        Clustering clustering = mClustering;
+        mAlbums.clear();
         int n = clustering.getNumberOfClusters();
         DataManager dataManager = mApplication.getDataManager();
         for (int i = 0; i < n; i++) {
             Path childPath;
-            String childName = clustering.getClusterName(i);
+            // The time captions are formatted when the albums are shown.
+            String childName = (mKind == ClusterSource.CLUSTER_ALBUMSET_TIME)
+                    ? null : clustering.getClusterName(i);
             if (mKind == ClusterSource.CLUSTER_ALBUMSET_TAG) {
                 childPath = mPath.getChild(Uri.encode(childName));
             } else if (mKind == ClusterSource.CLUSTER_ALBUMSET_SIZE) {
                 long minSize = ((SizeClustering) clustering).getMinSize(i);
                 childPath = mPath.getChild(minSize);
+            } else if (clustering instanceof IncrementalClustering) {
+                long id = ((IncrementalClustering) clustering).getClusterId(i);
+                childPath = mPath.getChild(id);
             } else {
                 childPath = mPath.getChild(i);
             }
@@ -121,7 +253,11 @@ public class ClusterAlbumSet extends MediaSet implements ContentListener {
                 }
             }
             album.setMediaItems(clustering.getCluster(i));
-            album.setName(childName);
+            if (mKind == ClusterSource.CLUSTER_ALBUMSET_TIME) {
+                album.setCaption(((TimeClustering) clustering).getCaption(i));
+            } else {
+                album.setName(childName);
+            }
             album.setCoverMediaItem(clustering.getClusterCover(i));
             mAlbums.add(album);
         }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import com.android.gallery3d.common.BlobCache;
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.util.CacheManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Persists the clusters computed by ClusterAlbumSet, so they don't have to be
+// computed over the whole base set again after the process restarts. A
+// restored clustering is brought up to date with
+// IncrementalClustering.update(), so the items added or removed since it
+// was saved are handled one by one. The version of each item is saved with
+// the clusters, so the items which have changed in place since are handled
+// too.
+//
+// An entry is only used if the media database and the caption format (the
+// locale and the current year) are the same as when it was saved.
+//
+// The clusters are saved on a background thread, SAVE_DELAY_MS after the
+// first save() call, and only the latest clustering of each cluster set is
+// written. A save lost when the process dies is harmless: the older entry
+// is brought up to date like any other. The caller must hold the lock of
+// the clustering while it changes it.
+class ClusterIndex {
+    private static final String TAG = "ClusterIndex";
+
+    private static final String CLUSTER_INDEX_FILE = "clusterindex";
+    private static final int CLUSTER_INDEX_MAX_ENTRIES = 64;
+    private static final int CLUSTER_INDEX_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int CLUSTER_INDEX_VERSION = 3;
+
+    private static final int MSG_SAVE = 1;
+    private static final int SAVE_DELAY_MS = 2000;
+
+    private static Looper sSaveLooper;
+
+    private final BlobCache mCache;
+    private final String mGeneration;
+    private final Handler mSaveHandler;
+    // The clusterings waiting to be saved, by the key of their set.
+    private final HashMap<String, PendingSave> mPendingSaves =
+            new HashMap<String, PendingSave>();
+
+    private static class PendingSave {
+        public final IncrementalClustering clustering;
+        public final HashMap<Path, Long> itemVersions;
+
+        public PendingSave(IncrementalClustering clustering,
+                HashMap<Path, Long> itemVersions) {
+            this.clustering = clustering;
+            this.itemVersions = itemVersions;
+        }
+    }
+
+    public ClusterIndex(Context context) {
+        mCache = CacheManager.getCache(context, CLUSTER_INDEX_FILE,
+                CLUSTER_INDEX_MAX_ENTRIES, CLUSTER_INDEX_MAX_BYTES,
+                CLUSTER_INDEX_VERSION);
+        mGeneration = MediaStore.getVersion(context) + "," + Locale.getDefault()
+                + "," + Calendar.getInstance().get(Calendar.YEAR);
+        mSaveHandler = new Handler(getSaveLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SAVE) savePending();
+            }
+        };
+    }
+
+    private static synchronized Looper getSaveLooper() {
+        if (sSaveLooper == null) {
+            HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sSaveLooper = thread.getLooper();
+        }
+        return sSaveLooper;
+    }
+
+    // Restores the clusters of the cluster set from the index, and returns
+    // the versions of the clustered items they were computed from. Returns
+    // null if there is no usable entry.
+    public HashMap<Path, Long> load(Path setPath, IncrementalClustering clustering) {
+        if (mCache == null) return null;
+        String key = setPath.toString();
+        try {
+            byte[] data;
+            synchronized (mCache) {
+                data = mCache.lookup(Utils.crc64Long(key));
+            }
+            if (data == null) return null;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (!key.equals(in.readUTF())) return null;
+            if (!mGeneration.equals(in.readUTF())) return null;
+            if (!clustering.getClass().getName().equals(in.readUTF())) return null;
+            int n = in.readInt();
+            HashMap<Path, Long> itemVersions = new HashMap<Path, Long>(n * 2);
+            for (int i = 0; i < n; i++) {
+                itemVersions.put(Path.fromString(in.readUTF()), in.readLong());
+            }
+            clustering.readFrom(in);
+            return itemVersions;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot load clusters of " + key, e);
+            return null;
+        }
+    }
+
+    // Schedules a save of the clusters of the cluster set, with the versions
+    // of the items they are computed from. A later call for the same set
+    // replaces the clustering which is waiting. The caller must not change
+    // itemVersions afterwards.
+    public void save(Path setPath, IncrementalClustering clustering,
+            HashMap<Path, Long> itemVersions) {
+        if (mCache == null) return;
+        synchronized (mPendingSaves) {
+            boolean scheduled = !mPendingSaves.isEmpty();
+            mPendingSaves.put(setPath.toString(),
+                    new PendingSave(clustering, itemVersions));
+            if (!scheduled) mSaveHandler.sendEmptyMessageDelayed(MSG_SAVE, SAVE_DELAY_MS);
+        }
+    }
+
+    // Called on the save thread.
+    private void savePending() {
+        HashMap<String, PendingSave> pending;
+        synchronized (mPendingSaves) {
+            pending = new HashMap<String, PendingSave>(mPendingSaves);
+            mPendingSaves.clear();
+        }
+        for (Map.Entry<String, PendingSave> entry : pending.entrySet()) {
+            PendingSave save = entry.getValue();
+            write(entry.getKey(), save.clustering, save.itemVersions);
+        }
+    }
+
+    private void write(String key, IncrementalClustering clustering,
+            HashMap<Path, Long> itemVersions) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeUTF(key);
+            out.writeUTF(mGeneration);
+            out.writeUTF(clustering.getClass().getName());
+            out.writeInt(itemVersions.size());
+            for (Map.Entry<Path, Long> entry : itemVersions.entrySet()) {
+                out.writeUTF(entry.getKey().toString());
+                out.writeLong(entry.getValue());
+            }
+            synchronized (clustering) {
+                clustering.writeTo(out);
+            }
+            out.flush();
+            synchronized (mCache) {
+                mCache.insert(Utils.crc64Long(key), bos.toByteArray());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "cannot save clusters of " + key, e);
+        } catch (RuntimeException e) {
+            // The clusters are too large for the index.
+            Log.w(TAG, "cannot save clusters of " + key, e);
+        }
+    }
+}
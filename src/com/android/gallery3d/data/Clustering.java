@@ -16,6 +16,9 @@
 
 package com.android.gallery3d.data;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public abstract class Clustering {
@@ -26,4 +29,25 @@ public abstract class Clustering {
     public MediaItem getClusterCover(int index) {
         return null;
     }
+
+    // Used by the IncrementalClustering implementations to save their
+    // clusters.
+    static void writePaths(DataOutputStream out, ArrayList<Path> paths)
+            throws IOException {
+        int n = paths.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            out.writeUTF(paths.get(i).toString());
+        }
+    }
+
+    static ArrayList<Path> readPaths(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) throw new IOException("bad path count: " + n);
+        ArrayList<Path> paths = new ArrayList<Path>(n);
+        for (int i = 0; i < n; i++) {
+            paths.add(Path.fromString(in.readUTF()));
+        }
+        return paths;
+    }
 }
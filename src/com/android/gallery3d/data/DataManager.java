@@ -16,6 +16,7 @@
 
 package com.android.gallery3d.data;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.net.Uri;
@@ -306,17 +307,32 @@ public class DataManager implements StitchingChangeListener {
     }
 
     public void registerChangeNotifier(Uri uri, ChangeNotifier notifier) {
+        getNotifyBroker(uri).registerNotifier(notifier);
+    }
+
+    // The listener is called with the deltas of a uri tracked by a
+    // MediaStoreTracker, before the change notifiers of the uri.
+    void registerDeltaListener(Uri uri, MediaStoreTracker.Listener listener) {
+        getNotifyBroker(uri).registerDeltaListener(listener);
+    }
+
+    private NotifyBroker getNotifyBroker(Uri uri) {
         NotifyBroker broker = null;
         synchronized (mNotifierMap) {
             broker = mNotifierMap.get(uri);
             if (broker == null) {
                 broker = new NotifyBroker(mDefaultMainHandler);
-                mApplication.getContentResolver()
-                        .registerContentObserver(uri, true, broker);
+                ContentResolver resolver = mApplication.getContentResolver();
+                // The local media are watched by a MediaStoreTracker, which
+                // tells the broker which buckets have changed.
+                ContentObserver observer = MediaStoreTracker.isTracked(uri)
+                        ? new MediaStoreTracker(resolver, uri, mDefaultMainHandler, broker)
+                        : broker;
+                resolver.registerContentObserver(uri, true, observer);
                 mNotifierMap.put(uri, broker);
             }
         }
-        broker.registerNotifier(notifier);
+        return broker;
     }
 
     public void resume() {
@@ -335,9 +351,12 @@ public class DataManager implements StitchingChangeListener {
         }
     }
 
-    private static class NotifyBroker extends ContentObserver {
+    private static class NotifyBroker extends ContentObserver
+            implements MediaStoreTracker.Listener {
         private WeakHashMap<ChangeNotifier, Object> mNotifiers =
                 new WeakHashMap<ChangeNotifier, Object>();
+        private ArrayList<MediaStoreTracker.Listener> mDeltaListeners =
+                new ArrayList<MediaStoreTracker.Listener>();
 
         public NotifyBroker(Handler handler) {
             super(handler);
@@ -347,12 +366,27 @@ public class DataManager implements StitchingChangeListener {
             mNotifiers.put(notifier, null);
         }
 
+        public synchronized void registerDeltaListener(
+                MediaStoreTracker.Listener listener) {
+            mDeltaListeners.add(listener);
+        }
+
         @Override
         public synchronized void onChange(boolean selfChange) {
             for(ChangeNotifier notifier : mNotifiers.keySet()) {
                 notifier.onChange(selfChange);
             }
         }
+
+        @Override
+        public synchronized void onDelta(MediaStoreTracker.Delta delta) {
+            for (MediaStoreTracker.Listener listener : mDeltaListeners) {
+                listener.onDelta(delta);
+            }
+            for (ChangeNotifier notifier : mNotifiers.keySet()) {
+                notifier.onDelta(delta);
+            }
+        }
     }
 
     @Override
@@ -27,7 +27,9 @@ import android.util.FloatMath;
 
 import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.common.ByteBufferInputStream;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.photos.data.GalleryBitmapPool;
 import com.android.gallery3d.ui.Log;
 import com.android.gallery3d.util.ThreadPool.CancelListener;
@@ -36,9 +38,11 @@ import com.android.gallery3d.util.ThreadPool.JobContext;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class DecodeUtils {
     private static final String TAG = "DecodeUtils";
+    private static final int DECODE_TEMP_STORAGE_SIZE = 16 * 1024;
 
     private static class DecodeCanceller implements CancelListener {
         Options mOptions;
@@ -97,6 +101,49 @@ public class DecodeUtils {
         options.inJustDecodeBounds = false;
     }
 
+    // Decodes the remaining bytes of the buffer. A heap buffer is decoded
+    // in place; other buffers (e.g. memory-mapped ones) are streamed to the
+    // decoder so they don't need to be copied to the heap first.
+    public static Bitmap decode(JobContext jc, ByteBuffer buffer, Options options) {
+        if (buffer.hasArray()) {
+            return decode(jc, buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining(), options);
+        }
+        if (options == null) options = new Options();
+        jc.setCancelListener(new DecodeCanceller(options));
+        setOptionsMutable(options);
+        // The decoder needs a scratch buffer to read the stream; use a pooled
+        // one instead of letting it allocate one for each decode.
+        BytesBuffer scratch = null;
+        if (options.inTempStorage == null) {
+            scratch = MediaItem.getBytesBufferPool().get(DECODE_TEMP_STORAGE_SIZE);
+            options.inTempStorage = scratch.data;
+        }
+        try {
+            return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(
+                    new ByteBufferInputStream(buffer), null, options));
+        } finally {
+            if (scratch != null) {
+                options.inTempStorage = null;
+                MediaItem.getBytesBufferPool().recycle(scratch);
+            }
+        }
+    }
+
+    public static void decodeBounds(JobContext jc, ByteBuffer buffer,
+            Options options) {
+        if (buffer.hasArray()) {
+            decodeBounds(jc, buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), options);
+            return;
+        }
+        Utils.assertTrue(options != null);
+        options.inJustDecodeBounds = true;
+        jc.setCancelListener(new DecodeCanceller(options));
+        BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+        options.inJustDecodeBounds = false;
+    }
+
     public static Bitmap decodeThumbnail(
             JobContext jc, String filePath, Options options, int targetSize, int type) {
         FileInputStream fis = null;
@@ -298,6 +345,33 @@ public class DecodeUtils {
         }
     }
 
+    // This is the same as the method above except the source data comes
+    // from a ByteBuffer, which may be a slice of a memory-mapped file.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static Bitmap decodeUsingPool(JobContext jc, ByteBuffer buffer,
+            Options options) {
+        if (options == null) options = new BitmapFactory.Options();
+        if (options.inSampleSize < 1) options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = (options.inSampleSize == 1)
+                ? findCachedBitmap(jc, buffer, options) : null;
+        try {
+            Bitmap bitmap = decode(jc, buffer, options);
+            if (options.inBitmap != null && options.inBitmap != bitmap) {
+                GalleryBitmapPool.getInstance().put(options.inBitmap);
+                options.inBitmap = null;
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+
+            Log.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+            GalleryBitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(jc, buffer, options);
+        }
+    }
+
     private static Bitmap findCachedBitmap(JobContext jc, byte[] data,
             int offset, int length, Options options) {
         decodeBounds(jc, data, offset, length, options);
@@ -309,4 +383,10 @@ public class DecodeUtils {
         decodeBounds(jc, fileDescriptor, options);
         return GalleryBitmapPool.getInstance().get(options.outWidth, options.outHeight);
     }
+
+    private static Bitmap findCachedBitmap(JobContext jc, ByteBuffer buffer,
+            Options options) {
+        decodeBounds(jc, buffer, options);
+        return GalleryBitmapPool.getInstance().get(options.outWidth, options.outHeight);
+    }
 }
@@ -17,6 +17,7 @@
 package com.android.gallery3d.data;
 
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
@@ -30,6 +31,7 @@ import java.net.URL;
 
 public class DownloadUtils {
     private static final String TAG = "DownloadService";
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
 
     public static boolean requestDownload(JobContext jc, URL url, File file) {
         FileOutputStream fos = null;
@@ -45,22 +47,27 @@ public class DownloadUtils {
 
     public static void dump(JobContext jc, InputStream is, OutputStream os)
             throws IOException {
-        byte buffer[] = new byte[4096];
-        int rc = is.read(buffer, 0, buffer.length);
-        final Thread thread = Thread.currentThread();
-        jc.setCancelListener(new CancelListener() {
-            @Override
-            public void onCancel() {
-                thread.interrupt();
+        BytesBuffer pooled = MediaItem.getBytesBufferPool().get(COPY_BUFFER_SIZE);
+        try {
+            byte buffer[] = pooled.data;
+            int rc = is.read(buffer, 0, buffer.length);
+            final Thread thread = Thread.currentThread();
+            jc.setCancelListener(new CancelListener() {
+                @Override
+                public void onCancel() {
+                    thread.interrupt();
+                }
+            });
+            while (rc > 0) {
+                if (jc.isCancelled()) throw new InterruptedIOException();
+                os.write(buffer, 0, rc);
+                rc = is.read(buffer, 0, buffer.length);
             }
-        });
-        while (rc > 0) {
-            if (jc.isCancelled()) throw new InterruptedIOException();
-            os.write(buffer, 0, rc);
-            rc = is.read(buffer, 0, buffer.length);
+            jc.setCancelListener(null);
+            Thread.interrupted(); // consume the interrupt signal
+        } finally {
+            MediaItem.getBytesBufferPool().recycle(pooled);
         }
-        jc.setCancelListener(null);
-        Thread.interrupted(); // consume the interrupt signal
     }
 
     public static boolean download(JobContext jc, URL url, OutputStream output) {
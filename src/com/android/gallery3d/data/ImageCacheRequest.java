@@ -27,9 +27,15 @@ import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.nio.ByteBuffer;
+
 abstract class ImageCacheRequest implements Job<Bitmap> {
     private static final String TAG = "ImageCacheRequest";
 
+    // Encoded micro-thumbnails are much smaller than the default buffer of
+    // the pool, which is sized for thumbnails.
+    private static final int MICROTHUMBNAIL_BUFFER_SIZE = 32 * 1024;
+
     protected GalleryApp mApplication;
     private Path mPath;
     private int mType;
@@ -38,6 +44,11 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
     private String mMimeType;
     private long mTimeModified;
 
+    // See setWarmUp().
+    private boolean mWarmUp;
+    private boolean mCacheHit;
+    private boolean mSkipped;
+
     public ImageCacheRequest(GalleryApp application,
             Path path, long timeModified, int type, int targetSize) {
         mApplication = application;
@@ -55,6 +66,24 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         mMimeType = mimeType;
     }
 
+    // In the warm-up mode the request only makes sure the image is in the
+    // ImageCacheService: nothing is decoded if it is already there, and the
+    // generated bitmap is not kept in the BitmapMemoryCache.
+    void setWarmUp(boolean warmUp) {
+        mWarmUp = warmUp;
+    }
+
+    // Whether the image was already in the cache in the last warm-up run().
+    boolean isCacheHit() {
+        return mCacheHit;
+    }
+
+    // Whether the image is never cached, so the last warm-up run() did
+    // nothing.
+    boolean isSkipped() {
+        return mSkipped;
+    }
+
     private String debugTag() {
         return mPath + "," + mTimeModified + "," +
                 ((mType == MediaItem.TYPE_THUMBNAIL) ? "THUMB" :
@@ -63,38 +92,53 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 
     @Override
     public Bitmap run(JobContext jc) {
+        mCacheHit = false;
+        mSkipped = false;
         if (!TextUtils.isEmpty(mFilePath) && !TextUtils.isEmpty(mMimeType)
                 && !mMimeType.startsWith("video/")) {
             if (DrmHelper.isDrmFile(mFilePath)
                     && mType != MediaItem.TYPE_MICROTHUMBNAIL) {
+                if (mWarmUp) {
+                    mSkipped = true;
+                    return null;
+                }
                 return onDecodeOriginal(jc, mType);
             }
         }
 
         ImageCacheService cacheService = mApplication.getImageCacheService();
-
-        BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
-        try {
-            boolean found = cacheService.getImageData(mPath, mTimeModified, mType, buffer);
-            if (jc.isCancelled()) return null;
-            if (found) {
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-                Bitmap bitmap;
-                if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                } else {
-                    bitmap = DecodeUtils.decodeUsingPool(jc,
-                            buffer.data, buffer.offset, buffer.length, options);
-                }
-                if (bitmap == null && !jc.isCancelled()) {
-                    Log.w(TAG, "decode cached failed " + debugTag());
+        BitmapMemoryCache memoryCache = BitmapMemoryCache.getInstance();
+        if (mWarmUp) {
+            if (cacheService.hasImageData(mPath, mTimeModified, mType)) {
+                mCacheHit = true;
+                return null;
+            }
+        } else {
+            Bitmap cached = memoryCache.get(mPath, mTimeModified, mType);
+            if (cached != null) return cached;
+
+            BytesBuffer buffer = (mType == MediaItem.TYPE_MICROTHUMBNAIL)
+                    ? MediaItem.getBytesBufferPool().get(MICROTHUMBNAIL_BUFFER_SIZE)
+                    : MediaItem.getBytesBufferPool().get();
+            try {
+                // The data is usually a slice of the memory-mapped cache file;
+                // the pooled buffer is only filled if that is not possible.
+                ByteBuffer data = cacheService.getImageBuffer(
+                        mPath, mTimeModified, mType, buffer);
+                if (jc.isCancelled()) return null;
+                if (data != null) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    Bitmap bitmap = DecodeUtils.decodeUsingPool(jc, data, options);
+                    if (bitmap == null && !jc.isCancelled()) {
+                        Log.w(TAG, "decode cached failed " + debugTag());
+                    }
+                    if (bitmap != null) memoryCache.put(mPath, mTimeModified, mType, bitmap);
+                    return bitmap;
                 }
-                return bitmap;
+            } finally {
+                MediaItem.getBytesBufferPool().recycle(buffer);
             }
-        } finally {
-            MediaItem.getBytesBufferPool().recycle(buffer);
         }
 
         Bitmap bitmap = onDecodeOriginal(jc, mType);
@@ -116,6 +160,7 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
         if (jc.isCancelled()) return null;
 
         cacheService.putImageData(mPath, mTimeModified, mType, array);
+        if (!mWarmUp) memoryCache.put(mPath, mTimeModified, mType, bitmap);
         return bitmap;
     }
 
@@ -17,16 +17,21 @@
 package com.android.gallery3d.data;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
 
 import com.android.gallery3d.common.BlobCache;
 import com.android.gallery3d.common.BlobCache.LookupRequest;
-import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
 import com.android.gallery3d.util.CacheManager;
-import com.android.gallery3d.util.GalleryUtils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ImageCacheService {
     @SuppressWarnings("unused")
@@ -35,14 +40,64 @@ public class ImageCacheService {
     private static final String IMAGE_CACHE_FILE = "imgcache";
     private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
     private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-    private static final int IMAGE_CACHE_VERSION = 7;
+    // Version 8 switched to binary keys. The BlobCache is reset when the
+    // version does not match, so entries with the old keys are just dropped.
+    private static final int IMAGE_CACHE_VERSION = 8;
+
+    // An image is identified by a 128-bit key computed from its path,
+    // timeModified and type. The first 64 bits are used as the BlobCache key,
+    // and the other 64 bits are stored in front of the image data so hash
+    // collisions of the BlobCache key can be detected.
+    private static final int KEY_CHECK_SIZE = 8;
+
+    private static final long FNV_64_INIT = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+    private static final long CHECK_INIT = 0x9e3779b97f4a7c15L;
+    private static final long CHECK_PRIME = 0xc2b2ae3d27d4eb4fL;
+
+    // The inserts are queued and written to the BlobCache in batches by a
+    // background thread, so the decoding threads don't wait for the file I/O.
+    // The flush starts FLUSH_DELAY_MS after the first insert, and writes at
+    // most MAX_BATCH_SIZE entries per pass, syncing the index after each, so
+    // the lookups and clearImageData() are not blocked for long. If more than
+    // MAX_PENDING_BYTES are queued, putImageData() writes batches itself until
+    // the queue is under the limit again, so the queue can't grow without
+    // bound when the decoders are faster than the disk.
+    private static final int MSG_FLUSH = 1;
+    private static final int FLUSH_DELAY_MS = 200;
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
 
     private BlobCache mCache;
 
+    // The queued inserts, keyed by BlobCache key. The values are the data as
+    // stored in the BlobCache (i.e. with the key check in front), and they
+    // stay in the map until they are written, so lookups can find them.
+    private final LinkedHashMap<Long, byte[]> mPendingWrites =
+            new LinkedHashMap<Long, byte[]>();
+    private int mPendingBytes;
+    private boolean mFlushScheduled;
+    // Held while a batch is written to the BlobCache.
+    private final Object mFlushLock = new Object();
+    private final Handler mFlushHandler;
+
     public ImageCacheService(Context context) {
-        mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
-                IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+        this(context, IMAGE_CACHE_FILE, IMAGE_CACHE_MAX_ENTRIES,
+                IMAGE_CACHE_MAX_BYTES, IMAGE_CACHE_VERSION);
+    }
+
+    // Creates a cache in its own BlobCache file, with its own limits.
+    ImageCacheService(Context context, String file, int maxEntries,
+            int maxBytes, int version) {
+        mCache = CacheManager.getCache(context, file, maxEntries, maxBytes, version);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mFlushHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) writeBatch();
+            }
+        };
     }
 
     /**
@@ -56,19 +111,32 @@ public class ImageCacheService {
      * @return true if the image data is found; false if not found.
      */
     public boolean getImageData(Path path, long timeModified, int type, BytesBuffer buffer) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
+        String pathString = path.toString();
+        long key = makeKey(pathString, timeModified, type);
+        long check = makeCheck(pathString, timeModified, type);
+        synchronized (mPendingWrites) {
+            byte[] pending = mPendingWrites.get(key);
+            if (pending != null) {
+                if (readCheck(pending) != check) return false;
+                int length = pending.length - KEY_CHECK_SIZE;
+                if (buffer.data == null || buffer.data.length < length) {
+                    buffer.data = new byte[length];
+                }
+                System.arraycopy(pending, KEY_CHECK_SIZE, buffer.data, 0, length);
+                buffer.offset = 0;
+                buffer.length = length;
+                return true;
+            }
+        }
         try {
             LookupRequest request = new LookupRequest();
-            request.key = cacheKey;
+            request.key = key;
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
-            if (isSameKey(key, request.buffer)) {
+            if (!mCache.lookup(request)) return false;
+            if (request.length >= KEY_CHECK_SIZE && readCheck(request.buffer) == check) {
                 buffer.data = request.buffer;
-                buffer.offset = key.length;
-                buffer.length = request.length - buffer.offset;
+                buffer.offset = KEY_CHECK_SIZE;
+                buffer.length = request.length - KEY_CHECK_SIZE;
                 return true;
             }
         } catch (IOException ex) {
@@ -77,47 +145,205 @@ public class ImageCacheService {
         return false;
     }
 
+    /**
+     * Gets the cached image data for the given <code>path</code>,
+     *  <code>timeModified</code> and <code>type</code> as a read-only buffer.
+     *
+     * If possible, the returned buffer is a slice of the memory-mapped cache
+     * file, so no copy of the data is made and it should be consumed right
+     * away. Otherwise the image data is read into <code>buffer.data</code>
+     * as in {@link #getImageData} and the returned buffer wraps it.
+     *
+     * @return the image data, or null if not found.
+     */
+    public ByteBuffer getImageBuffer(Path path, long timeModified, int type,
+            BytesBuffer buffer) {
+        String pathString = path.toString();
+        long key = makeKey(pathString, timeModified, type);
+        long check = makeCheck(pathString, timeModified, type);
+        synchronized (mPendingWrites) {
+            byte[] pending = mPendingWrites.get(key);
+            if (pending != null) {
+                if (readCheck(pending) != check) return null;
+                // The queued arrays are never modified, so they can be shared.
+                return ByteBuffer.wrap(pending, KEY_CHECK_SIZE,
+                        pending.length - KEY_CHECK_SIZE).slice().asReadOnlyBuffer();
+            }
+        }
+        try {
+            LookupRequest request = new LookupRequest();
+            request.key = key;
+            request.buffer = buffer.data;
+            ByteBuffer data = mCache.lookupBuffer(request);
+            if (data == null) return null;
+            if (request.buffer != null) buffer.data = request.buffer;
+            if (data.remaining() >= KEY_CHECK_SIZE && data.getLong(data.position()) == check) {
+                data.position(data.position() + KEY_CHECK_SIZE);
+                return data.slice();
+            }
+        } catch (IOException ex) {
+            // ignore.
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there is image data for the given <code>path</code>,
+     * <code>timeModified</code> and <code>type</code>, without reading it.
+     */
+    public boolean hasImageData(Path path, long timeModified, int type) {
+        long key = makeKey(path.toString(), timeModified, type);
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.containsKey(key)) return true;
+        }
+        return mCache.contains(key);
+    }
+
+    /**
+     * Queues the image data to be written to the cache. The data is visible to
+     * {@link #getImageData} and {@link #getImageBuffer} right away.
+     */
     public void putImageData(Path path, long timeModified, int type, byte[] value) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-        buffer.put(key);
+        String pathString = path.toString();
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_CHECK_SIZE + value.length);
+        buffer.putLong(makeCheck(pathString, timeModified, type));
         buffer.put(value);
-        synchronized (mCache) {
+        byte[] data = buffer.array();
+
+        synchronized (mPendingWrites) {
+            // A newer insert with the same key replaces the queued one.
+            byte[] old = mPendingWrites.put(makeKey(pathString, timeModified, type), data);
+            if (old != null) mPendingBytes -= old.length;
+            mPendingBytes += data.length;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mFlushHandler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY_MS);
+            }
+        }
+
+        // The queue is full: write to the cache on this thread until it is
+        // under the limit, instead of queueing more.
+        while (isQueueFull()) {
+            if (!writeBatch()) break;
+        }
+    }
+
+    private boolean isQueueFull() {
+        synchronized (mPendingWrites) {
+            return mPendingBytes > MAX_PENDING_BYTES;
+        }
+    }
+
+    public void clearImageData(Path path, long timeModified, int type) {
+        long key = makeKey(path.toString(), timeModified, type);
+        // Hold the flush lock so a batch being written can't put it back.
+        synchronized (mFlushLock) {
+            synchronized (mPendingWrites) {
+                byte[] old = mPendingWrites.remove(key);
+                if (old != null) mPendingBytes -= old.length;
+            }
             try {
-                mCache.insert(cacheKey, buffer.array());
+                mCache.clearEntry(key);
             } catch (IOException ex) {
                 // ignore.
             }
         }
     }
 
-    public void clearImageData(Path path, long timeModified, int type) {
-        byte[] key = makeKey(path, timeModified, type);
-        long cacheKey = Utils.crc64Long(key);
-        synchronized (mCache) {
+    /**
+     * Writes all the queued image data to the cache.
+     */
+    public void flushPendingWrites() {
+        while (writeBatch()) {
+            // Write the next batch.
+        }
+    }
+
+    // Writes the oldest MAX_BATCH_SIZE queued entries to the cache and syncs
+    // the index. Returns false if the queue was empty. If entries are left,
+    // the next batch is scheduled right away: the flush lock is released
+    // between the batches so clearImageData() is not blocked for long.
+    private boolean writeBatch() {
+        long[] keys = new long[MAX_BATCH_SIZE];
+        byte[][] values = new byte[MAX_BATCH_SIZE][];
+        synchronized (mFlushLock) {
+            int count = 0;
+            synchronized (mPendingWrites) {
+                mFlushScheduled = false;
+                mFlushHandler.removeMessages(MSG_FLUSH);
+                for (Map.Entry<Long, byte[]> entry : mPendingWrites.entrySet()) {
+                    keys[count] = entry.getKey();
+                    values[count] = entry.getValue();
+                    if (++count == MAX_BATCH_SIZE) break;
+                }
+            }
+            if (count == 0) return false;
+
             try {
-                mCache.clearEntry(cacheKey);
+                // The blobs which are too large for the cache are skipped,
+                // and dropped from the queue like the others.
+                if (mCache.insert(keys, values, count) > 0) mCache.syncIndex();
             } catch (IOException ex) {
-                // ignore.
+                Log.w(TAG, "write image data failed", ex);
             }
+
+            // Drop the written entries unless they were replaced meanwhile.
+            synchronized (mPendingWrites) {
+                for (int i = 0; i < count; i++) {
+                    Long key = keys[i];
+                    if (mPendingWrites.get(key) == values[i]) {
+                        mPendingWrites.remove(key);
+                        mPendingBytes -= values[i].length;
+                    }
+                }
+                if (!mPendingWrites.isEmpty() && !mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mFlushHandler.sendEmptyMessage(MSG_FLUSH);
+                }
+            }
+            return true;
         }
     }
 
-    private static byte[] makeKey(Path path, long timeModified, int type) {
-        return GalleryUtils.getBytes(path.toString() + "+" + timeModified + "+" + type);
+    // The BlobCache key: FNV-1a over the path characters, timeModified and
+    // type, followed by a final mix so the low bits are well distributed.
+    private static long makeKey(String path, long timeModified, int type) {
+        long h = FNV_64_INIT;
+        for (int i = 0, n = path.length(); i < n; ++i) {
+            h = (h ^ path.charAt(i)) * FNV_64_PRIME;
+        }
+        h = (h ^ timeModified) * FNV_64_PRIME;
+        h = (h ^ type) * FNV_64_PRIME;
+        return mix(h);
     }
 
-    private static boolean isSameKey(byte[] key, byte[] buffer) {
-        int n = key.length;
-        if (buffer.length < n) {
-            return false;
+    // The other half of the key, computed with a different hash function.
+    private static long makeCheck(String path, long timeModified, int type) {
+        long h = CHECK_INIT;
+        for (int i = 0, n = path.length(); i < n; ++i) {
+            h = (h + path.charAt(i)) * CHECK_PRIME;
         }
-        for (int i = 0; i < n; ++i) {
-            if (key[i] != buffer[i]) {
-                return false;
-            }
+        h = (h + timeModified) * CHECK_PRIME;
+        h = (h + type) * CHECK_PRIME;
+        return mix(h ^ (h >>> 29));
+    }
+
+    // The 64-bit finalizer of MurmurHash3.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Reads the key check stored by putImageData() in big-endian order.
+    private static long readCheck(byte[] data) {
+        long result = 0;
+        for (int i = 0; i < KEY_CHECK_SIZE; ++i) {
+            result = (result << 8) | (data[i] & 0xff);
         }
-        return true;
+        return result;
     }
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+
+// A Clustering which can be brought up to date with the changes of the base
+// set instead of being run again, and saved in the ClusterIndex.
+public interface IncrementalClustering {
+    // Returns a number identifying the cluster, which stays the same across
+    // update() calls.
+    public long getClusterId(int index);
+
+    // Updates the clusters computed by run() with the items which have been
+    // added to or removed from the base set since. Only the clusters which
+    // contain these items are recomputed: getCluster() returns the same list
+    // as before for the other clusters. An item which has changed in place
+    // is in both removed and added.
+    public void update(ArrayList<MediaItem> added, Set<Path> removed);
+
+    // Saves the clusters and what update() needs to the stream.
+    public void writeTo(DataOutputStream out) throws IOException;
+
+    // Restores the clusters saved by writeTo(), instead of calling run().
+    public void readFrom(DataInputStream in) throws IOException;
+}
@@ -21,6 +21,9 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
@@ -44,6 +47,18 @@ public class LocalAlbum extends MediaSet {
     private static final String[] COUNT_PROJECTION = { "count(*)" };
 
     private static final int INVALID_COUNT = -1;
+
+    // The sort key of every CHECKPOINT_INTERVAL-th item is remembered, so a
+    // page can be queried from the checkpoint before it by comparing the
+    // sort key, instead of making the database skip all the previous rows.
+    private static final int CHECKPOINT_INTERVAL = 64;
+    // Marks a checkpoint whose item has no date taken. The NULL dates are
+    // sorted after all the others.
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    // The thread reading ahead for enumerateMediaItems(), shared by all the
+    // albums. See BatchReader.
+    private static Handler sReadHandler;
     private final String mWhereClause;
     private final String mOrderClause;
     private final Uri mBaseUri;
@@ -56,7 +71,23 @@ public class LocalAlbum extends MediaSet {
     private final boolean mIsImage;
     private final ChangeNotifier mNotifier;
     private final Path mItemPath;
+    private final String mDateTakenColumn;
+    private final int mDateTakenIndex;
     private int mCachedCount = INVALID_COUNT;
+    // The id of the cover item given by setSummary(), 0 if none.
+    private int mCoverId;
+    // Whether reload() has been called. The notifier starts dirty, so the
+    // first reload() keeps the summary.
+    private boolean mReloaded;
+
+    // The checkpoints, indexed by position / CHECKPOINT_INTERVAL. The id is
+    // 0 if the checkpoint hasn't been seen since the last change.
+    private final Object mCheckpointLock = new Object();
+    private long[] mCheckpointDates = new long[0];
+    private int[] mCheckpointIds = new int[0];
+    // Bumped when the checkpoints are cleared, so a query which started
+    // before doesn't add checkpoints from the old contents.
+    private int mCheckpointGeneration;
 
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
             boolean isImage, String name) {
@@ -74,6 +105,8 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Images.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalImage.PROJECTION;
             mItemPath = LocalImage.ITEM_PATH;
+            mDateTakenColumn = ImageColumns.DATE_TAKEN;
+            mDateTakenIndex = LocalImage.INDEX_DATE_TAKEN;
         } else {
             mWhereClause = VideoColumns.BUCKET_ID + " = ?";
             mOrderClause = VideoColumns.DATE_TAKEN + " DESC, "
@@ -81,9 +114,11 @@ public class LocalAlbum extends MediaSet {
             mBaseUri = Video.Media.EXTERNAL_CONTENT_URI;
             mProjection = LocalVideo.PROJECTION;
             mItemPath = LocalVideo.ITEM_PATH;
+            mDateTakenColumn = VideoColumns.DATE_TAKEN;
+            mDateTakenIndex = LocalVideo.INDEX_DATE_TAKEN;
         }
 
-        mNotifier = new ChangeNotifier(this, mBaseUri, application);
+        mNotifier = new ChangeNotifier(this, mBaseUri, bucketId, application);
     }
 
     public LocalAlbum(Path path, GalleryApp application, int bucketId,
@@ -114,26 +149,68 @@ public class LocalAlbum extends MediaSet {
     @Override
     public ArrayList<MediaItem> getMediaItem(int start, int count) {
         DataManager dataManager = mApplication.getDataManager();
-        Uri uri = mBaseUri.buildUpon()
-                .appendQueryParameter("limit", start + "," + count).build();
         ArrayList<MediaItem> list = new ArrayList<MediaItem>();
+
+        // Seek to the nearest checkpoint, so the offset is less than
+        // CHECKPOINT_INTERVAL. Without a checkpoint, start from the beginning.
+        String where = mWhereClause;
+        String[] whereArgs = new String[]{String.valueOf(mBucketId)};
+        int seekPos = 0;
+        boolean seekDate = false;
+        int generation;
+        synchronized (mCheckpointLock) {
+            generation = mCheckpointGeneration;
+            int i = Math.min(start / CHECKPOINT_INTERVAL, mCheckpointIds.length - 1);
+            while (i > 0 && mCheckpointIds[i] == 0) i--;
+            if (i > 0) {
+                seekPos = i * CHECKPOINT_INTERVAL;
+                long date = mCheckpointDates[i];
+                String id = String.valueOf(mCheckpointIds[i]);
+                // The items are sorted by (date taken DESC, _id DESC), with
+                // the NULL dates last. The conditions are written so the
+                // database can seek in its (bucket, date taken) index: an OR
+                // with "date taken IS NULL" would make it scan from the top.
+                if (date == NULL_DATE) {
+                    where += " AND " + mDateTakenColumn + " IS NULL AND _id <= ?";
+                    whereArgs = new String[]{whereArgs[0], id};
+                } else {
+                    String d = String.valueOf(date);
+                    where += " AND " + mDateTakenColumn + " <= ? AND ("
+                            + mDateTakenColumn + " < ? OR _id <= ?)";
+                    whereArgs = new String[]{whereArgs[0], d, d, id};
+                    seekDate = true;
+                }
+            }
+        }
+
         GalleryUtils.assertNotInRenderThread();
-        Cursor cursor = mResolver.query(
-                uri, mProjection, mWhereClause,
-                new String[]{String.valueOf(mBucketId)},
-                mOrderClause);
-        if (cursor == null) {
-            Log.w(TAG, "query fail: " + uri);
-            return list;
+        Cursor cursor = query(where, whereArgs, start - seekPos, count);
+        if (cursor == null) return list;
+
+        // The page may continue with the items without a date taken, which
+        // the seek above leaves out. Query these pages by offset, unless it's
+        // the end of the album. If the count isn't known, check if there are
+        // such items at all.
+        if (seekDate && cursor.getCount() < count
+                && continuesWithNullDates(start + cursor.getCount())) {
+            cursor.close();
+            cursor = query(mWhereClause, new String[]{String.valueOf(mBucketId)},
+                    start, count);
+            if (cursor == null) return list;
         }
 
         try {
+            int pos = start;
             while (cursor.moveToNext()) {
                 int id = cursor.getInt(0);  // _id must be in the first column
+                if (pos % CHECKPOINT_INTERVAL == 0) {
+                    addCheckpoint(generation, pos / CHECKPOINT_INTERVAL, id, cursor);
+                }
                 Path childPath = mItemPath.getChild(id);
                 MediaItem item = loadOrUpdateItem(childPath, cursor,
                         dataManager, mApplication, mIsImage);
                 list.add(item);
+                ++pos;
             }
         } finally {
             cursor.close();
@@ -141,7 +218,235 @@ public class LocalAlbum extends MediaSet {
         return list;
     }
 
-    private static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
+    // Called when a page seeking by date ends at the given position before
+    // its end. Returns true if items without a date taken follow, which the
+    // seek has left out.
+    private boolean continuesWithNullDates(int pos) {
+        int cachedCount = mCachedCount;
+        if (cachedCount != INVALID_COUNT) return pos < cachedCount;
+        Cursor cursor = query(mWhereClause + " AND " + mDateTakenColumn + " IS NULL",
+                new String[]{String.valueOf(mBucketId)}, 0, 1);
+        if (cursor == null) return false;
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor query(String where, String[] whereArgs, int offset, int count) {
+        Uri uri = mBaseUri.buildUpon()
+                .appendQueryParameter("limit", offset + "," + count).build();
+        Cursor cursor = mResolver.query(
+                uri, mProjection, where, whereArgs, mOrderClause);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + uri);
+        }
+        return cursor;
+    }
+
+    private void addCheckpoint(int generation, int index, int id, Cursor cursor) {
+        long date = cursor.isNull(mDateTakenIndex)
+                ? NULL_DATE : cursor.getLong(mDateTakenIndex);
+        synchronized (mCheckpointLock) {
+            if (generation != mCheckpointGeneration) return;
+            if (index >= mCheckpointIds.length) {
+                int size = Math.max(index + 1, mCheckpointIds.length * 2);
+                long[] dates = new long[size];
+                int[] ids = new int[size];
+                System.arraycopy(mCheckpointDates, 0, dates, 0, mCheckpointDates.length);
+                System.arraycopy(mCheckpointIds, 0, ids, 0, mCheckpointIds.length);
+                mCheckpointDates = dates;
+                mCheckpointIds = ids;
+            }
+            mCheckpointDates[index] = date;
+            mCheckpointIds[index] = id;
+        }
+    }
+
+    // Enumerates the items with a single query, instead of a query with an
+    // increasing offset per batch, which makes the database skip over all
+    // the previous rows each time. For large albums, the next batch is read
+    // from the cursor on a background thread while the consumer processes
+    // the current one.
+    @Override
+    protected int enumerateMediaItems(ItemConsumer consumer, int startIndex) {
+        GalleryUtils.assertNotInRenderThread();
+        Cursor cursor = mResolver.query(
+                mBaseUri, mProjection, mWhereClause,
+                new String[]{String.valueOf(mBucketId)},
+                mOrderClause);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mBaseUri);
+            return 0;
+        }
+
+        BatchReader reader = new BatchReader(cursor);
+        int index = 0;
+        if (cursor.getCount() <= MEDIAITEM_BATCH_FETCH_COUNT) {
+            try {
+                ArrayList<MediaItem> items = reader.readBatch();
+                for (int i = 0, n = items.size(); i < n; i++) {
+                    consumer.consume(startIndex + index++, items.get(i));
+                }
+            } finally {
+                cursor.close();
+            }
+            return index;
+        }
+
+        reader.start();
+        try {
+            ArrayList<MediaItem> items;
+            while ((items = reader.takeBatch()) != null) {
+                for (int i = 0, n = items.size(); i < n; i++) {
+                    consumer.consume(startIndex + index++, items.get(i));
+                }
+            }
+            if (!reader.isDone()) {
+                Log.w(TAG, "enumeration of " + mPath + " interrupted at " + index);
+            }
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    private static synchronized Handler getReadHandler() {
+        if (sReadHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sReadHandler = new Handler(thread.getLooper());
+        }
+        return sReadHandler;
+    }
+
+    // Reads the items from the cursor in batches of MEDIAITEM_BATCH_FETCH_COUNT.
+    // Once started, it reads one batch ahead of takeBatch() on the read
+    // thread: each run() reads a single batch and returns, and the next one
+    // is posted when the batch is taken, so the thread is never held by an
+    // enumeration. If the read thread hasn't got to it (e.g. it's reading
+    // for another album), takeBatch() reads the batch itself, so the
+    // enumeration never waits for it.
+    private class BatchReader implements Runnable {
+        private final Cursor mCursor;
+        private final DataManager mDataManager = mApplication.getDataManager();
+        private final Handler mHandler = getReadHandler();
+        // Guarded by this. Only the thread which set mReading uses the cursor.
+        private ArrayList<MediaItem> mNextBatch;
+        private boolean mReading;
+        private boolean mScheduled;
+        private boolean mDone;
+        private boolean mClosed;
+
+        BatchReader(Cursor cursor) {
+            mCursor = cursor;
+        }
+
+        ArrayList<MediaItem> readBatch() {
+            ArrayList<MediaItem> list = new ArrayList<MediaItem>();
+            while (list.size() < MEDIAITEM_BATCH_FETCH_COUNT && mCursor.moveToNext()) {
+                int id = mCursor.getInt(0);  // _id must be in the first column
+                Path childPath = mItemPath.getChild(id);
+                MediaItem item = loadOrUpdateItem(childPath, mCursor,
+                        mDataManager, mApplication, mIsImage);
+                list.add(item);
+            }
+            return list;
+        }
+
+        // Starts reading ahead.
+        synchronized void start() {
+            scheduleRead();
+        }
+
+        // Posts a read of the next batch, unless there is nothing to read.
+        // Called holding this.
+        private void scheduleRead() {
+            if (mScheduled || mNextBatch != null || mDone || mClosed) return;
+            mScheduled = true;
+            mHandler.post(this);
+        }
+
+        // Called on the read thread.
+        @Override
+        public void run() {
+            synchronized (this) {
+                mScheduled = false;
+                if (mNextBatch != null || mReading || mClosed || mDone) return;
+                mReading = true;
+            }
+            ArrayList<MediaItem> batch = read();
+            synchronized (this) {
+                mReading = false;
+                if (batch == null) mDone = true;
+                mNextBatch = batch;
+                notifyAll();
+            }
+        }
+
+        // Reads the next batch, or returns null if there are no more items.
+        // Called holding mReading.
+        private ArrayList<MediaItem> read() {
+            try {
+                ArrayList<MediaItem> batch = readBatch();
+                return batch.isEmpty() ? null : batch;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "cannot read " + mBaseUri, e);
+                return null;
+            }
+        }
+
+        // Returns the next batch, or null if there are no more items or the
+        // thread is interrupted. The interrupt flag is kept in that case.
+        ArrayList<MediaItem> takeBatch() {
+            synchronized (this) {
+                while (mNextBatch == null && !mDone && mReading) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                if (mNextBatch != null || mDone) {
+                    ArrayList<MediaItem> batch = mNextBatch;
+                    mNextBatch = null;
+                    scheduleRead();
+                    return batch;
+                }
+                mReading = true;
+            }
+
+            // The read thread hasn't started on this batch: read it here.
+            ArrayList<MediaItem> batch = read();
+            synchronized (this) {
+                mReading = false;
+                if (batch == null) mDone = true;
+                scheduleRead();
+                notifyAll();
+            }
+            return batch;
+        }
+
+        // Whether all the items have been read.
+        synchronized boolean isDone() {
+            return mDone && mNextBatch == null;
+        }
+
+        // Stops the reading, and closes the cursor once it's not used.
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+                mHandler.removeCallbacks(this);
+                while (mReading) Utils.waitWithoutInterrupt(this);
+            }
+            mCursor.close();
+        }
+    }
+
+    static MediaItem loadOrUpdateItem(Path path, Cursor cursor,
             DataManager dataManager, GalleryApp app, boolean isImage) {
         synchronized (DataManager.LOCK) {
             LocalMediaItem item = (LocalMediaItem) dataManager.peekMediaObject(path);
@@ -246,17 +551,48 @@ public class LocalAlbum extends MediaSet {
         return mCachedCount;
     }
 
+    @Override
+    public MediaItem getCoverMediaItem() {
+        if (mCachedCount == 0) return null;
+        int coverId = mCoverId;
+        if (coverId != 0) {
+            ArrayList<Integer> ids = new ArrayList<Integer>(1);
+            ids.add(coverId);
+            MediaItem cover = getMediaItemById(mApplication, mIsImage, ids)[0];
+            if (cover != null) return cover;
+        }
+        return super.getCoverMediaItem();
+    }
+
+    // Sets the number of items and the id of the cover item, as found in the
+    // BucketIndex, so they don't have to be queried. They are as recent as
+    // the album list: if they differ from what the album has, the album has
+    // changed. They are dropped at the next change of the album.
+    synchronized void setSummary(int count, int coverId) {
+        if (count == mCachedCount && coverId == mCoverId) return;
+        mCachedCount = count;
+        mCoverId = coverId;
+        mDataVersion = nextVersionNumber();
+    }
+
     @Override
     public String getName() {
         return getLocalizedName(mApplication.getResources(), mBucketId, mName);
     }
 
     @Override
-    public long reload() {
-        if (mNotifier.isDirty()) {
+    public synchronized long reload() {
+        if (mNotifier.isDirty() && mReloaded) {
             mDataVersion = nextVersionNumber();
             mCachedCount = INVALID_COUNT;
+            mCoverId = 0;
+            synchronized (mCheckpointLock) {
+                ++mCheckpointGeneration;
+                mCheckpointDates = new long[0];
+                mCheckpointIds = new int[0];
+            }
         }
+        mReloaded = true;
         return mDataVersion;
     }
 
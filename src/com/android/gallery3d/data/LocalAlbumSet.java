@@ -23,6 +23,7 @@ import android.provider.MediaStore.Video;
 
 import com.android.gallery3d.R;
 import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.data.BucketHelper.BucketEntry;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
@@ -57,6 +58,8 @@ public class LocalAlbumSet extends MediaSet
 
     private Future<ArrayList<MediaSet>> mLoadTask;
     private ArrayList<MediaSet> mLoadBuffer;
+    // Identifies the latest AlbumsLoader.
+    private int mLoadGeneration;
 
     public LocalAlbumSet(Path path, GalleryApp application) {
         super(path, nextVersionNumber());
@@ -99,38 +102,83 @@ public class LocalAlbumSet extends MediaSet
     }
 
     private class AlbumsLoader implements ThreadPool.Job<ArrayList<MediaSet>> {
+        private final int mGeneration;
+
+        AlbumsLoader(int generation) {
+            mGeneration = generation;
+        }
 
         @Override
-        @SuppressWarnings("unchecked")
         public ArrayList<MediaSet> run(JobContext jc) {
-            // Note: it will be faster if we only select media_type and bucket_id.
-            //       need to test the performance if that is worth
-            BucketEntry[] entries = BucketHelper.loadBucketEntries(
-                    jc, mApplication.getContentResolver(), mType);
-
-            if (jc.isCancelled()) return null;
-
-            int offset = 0;
-            // Move camera and download bucket to the front, while keeping the
-            // order of others.
-            int index = findBucket(entries, MediaSetUtils.CAMERA_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
-            }
-            index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
-            if (index != -1) {
-                circularShiftRight(entries, offset++, index);
+            if (!ApiHelper.HAS_MEDIA_PROVIDER_FILES_TABLE) {
+                BucketEntry[] entries = BucketHelper.loadBucketEntries(
+                        jc, mApplication.getContentResolver(), mType);
+                if (jc.isCancelled()) return null;
+                return createAlbums(entries);
             }
 
-            ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
-            DataManager dataManager = mApplication.getDataManager();
-            for (BucketEntry entry : entries) {
-                MediaSet album = getLocalAlbum(dataManager,
-                        mType, mPath, entry.bucketId, entry.bucketName);
-                albums.add(album);
+            BucketIndex index = BucketIndex.getInstance(mApplication);
+            if (index.needsVerification()) {
+                // Show the albums saved in the index while it's verified.
+                BucketEntry[] entries = index.peekEntries(mType);
+                if (entries != null) publish(mGeneration, createAlbums(entries));
             }
-            return albums;
+            BucketEntry[] entries = index.getEntries(jc, mType);
+            if (entries == null || jc.isCancelled()) return null;
+            return createAlbums(entries);
+        }
+    }
+
+    private ArrayList<MediaSet> createAlbums(BucketEntry[] entries) {
+        int offset = 0;
+        // Move camera and download bucket to the front, while keeping the
+        // order of others.
+        int index = findBucket(entries, MediaSetUtils.CAMERA_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
         }
+        index = findBucket(entries, MediaSetUtils.DOWNLOAD_BUCKET_ID);
+        if (index != -1) {
+            circularShiftRight(entries, offset++, index);
+        }
+
+        ArrayList<MediaSet> albums = new ArrayList<MediaSet>();
+        DataManager dataManager = mApplication.getDataManager();
+        for (BucketEntry entry : entries) {
+            MediaSet album = getLocalAlbum(dataManager,
+                    mType, mPath, entry.bucketId, entry.bucketName);
+            setSummary(dataManager, PATH_IMAGE, entry.bucketId,
+                    entry.imageCount, entry.imageCoverId);
+            setSummary(dataManager, PATH_VIDEO, entry.bucketId,
+                    entry.videoCount, entry.videoCoverId);
+            albums.add(album);
+        }
+        return albums;
+    }
+
+    // Hands the count and cover item from the BucketIndex to the album of
+    // the bucket, if it has been created.
+    private static void setSummary(DataManager manager, Path parent,
+            int bucketId, int count, int coverId) {
+        if (count == BucketEntry.UNKNOWN_COUNT) return;
+        MediaObject object = manager.peekMediaObject(parent.getChild(bucketId));
+        if (object instanceof LocalAlbum) {
+            ((LocalAlbum) object).setSummary(count, coverId);
+        }
+    }
+
+    // Hands out the albums before the load of the given generation is done.
+    private void publish(int generation, ArrayList<MediaSet> albums) {
+        synchronized (this) {
+            if (generation != mLoadGeneration) return;
+            mLoadBuffer = albums;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyContentChanged();
+            }
+        });
     }
 
     private MediaSet getLocalAlbum(
@@ -167,7 +215,8 @@ public class LocalAlbumSet extends MediaSet
         if (mNotifier.isDirty()) {
             if (mLoadTask != null) mLoadTask.cancel();
             mIsLoading = true;
-            mLoadTask = mApplication.getThreadPool().submit(new AlbumsLoader(), this);
+            mLoadTask = mApplication.getThreadPool().submit(
+                    new AlbumsLoader(++mLoadGeneration), this);
         }
         if (mLoadBuffer != null) {
             mAlbums = mLoadBuffer;
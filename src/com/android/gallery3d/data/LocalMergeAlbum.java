@@ -21,12 +21,8 @@ import android.provider.MediaStore;
 
 import com.android.gallery3d.common.ApiHelper;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 // MergeAlbum merges items from two or more MediaSets. It uses a Comparator to
 // determine the order of items. The items are assumed to be sorted in the input
@@ -38,6 +34,11 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     private static final String TAG = "LocalMergeAlbum";
     private static final int PAGE_SIZE = 64;
 
+    // The positions in the sources are recorded every CHECKPOINT_INTERVAL
+    // merged items, so an item can be found by merging from the checkpoint
+    // before it.
+    private static final int CHECKPOINT_INTERVAL = PAGE_SIZE;
+
     private final Comparator<MediaItem> mComparator;
     private final MediaSet[] mSources;
 
@@ -45,8 +46,17 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     private int mSupportedOperation;
     private int mBucketId;
 
-    // mIndex maps global position to the position of each underlying media sets.
-    private TreeMap<Integer, int[]> mIndex = new TreeMap<Integer, int[]>();
+    // The position in each source of the checkpoints, one after another:
+    // mCheckpoints[i * mSources.length + j] is the position in source j of
+    // the (i * CHECKPOINT_INTERVAL)-th merged item. The checkpoints are
+    // recorded as the merge goes, so there are no gaps between them.
+    private int[] mCheckpoints;
+    private int mCheckpointCount;
+
+    // Where the last getMediaItem() stopped, so the next page can be merged
+    // from there.
+    private int mCursorPos;
+    private int[] mCursorSubPos;
 
     public LocalMergeAlbum(
             Path path, Comparator<MediaItem> comparator, MediaSet[] sources, int bucketId) {
@@ -78,16 +88,33 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
             supported &= mSources[i].getSupportedOperations();
         }
         mSupportedOperation = supported;
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        resetCheckpoints();
     }
 
     private void invalidateCache() {
         for (int i = 0, n = mSources.length; i < n; i++) {
             mFetcher[i].invalidate();
         }
-        mIndex.clear();
-        mIndex.put(0, new int[mSources.length]);
+        resetCheckpoints();
+    }
+
+    private void resetCheckpoints() {
+        // The first checkpoint is at the start of every source.
+        mCheckpoints = new int[mSources.length * 16];
+        mCheckpointCount = 1;
+        mCursorSubPos = null;
+    }
+
+    private void addCheckpoint(int[] subPos) {
+        int n = subPos.length;
+        int offset = mCheckpointCount * n;
+        if (offset + n > mCheckpoints.length) {
+            int[] checkpoints = new int[mCheckpoints.length * 2];
+            System.arraycopy(mCheckpoints, 0, checkpoints, 0, offset);
+            mCheckpoints = checkpoints;
+        }
+        System.arraycopy(subPos, 0, mCheckpoints, offset, n);
+        mCheckpointCount++;
     }
 
     @Override
@@ -117,52 +144,143 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
     }
 
     @Override
-    public ArrayList<MediaItem> getMediaItem(int start, int count) {
-
-        // First find the nearest mark position <= start.
-        SortedMap<Integer, int[]> head = mIndex.headMap(start + 1);
-        int markPos = head.lastKey();
-        int[] subPos = head.get(markPos).clone();
-        MediaItem[] slot = new MediaItem[mSources.length];
-
+    public synchronized ArrayList<MediaItem> getMediaItem(int start, int count) {
         int size = mSources.length;
+        ArrayList<MediaItem> result = new ArrayList<MediaItem>();
+        if (size == 0) return result;
+
+        // Start from where the last call stopped if it's not after start and
+        // is after the nearest checkpoint, otherwise from that checkpoint.
+        int checkpoint = Math.min(start / CHECKPOINT_INTERVAL, mCheckpointCount - 1);
+        int markPos = checkpoint * CHECKPOINT_INTERVAL;
+        int[] subPos;
+        if (mCursorSubPos != null && mCursorPos <= start && mCursorPos > markPos) {
+            markPos = mCursorPos;
+            subPos = mCursorSubPos;
+        } else {
+            subPos = new int[size];
+            System.arraycopy(mCheckpoints, checkpoint * size, subPos, 0, size);
+        }
 
         // fill all slots
+        SourceHeap heap = new SourceHeap(size);
         for (int i = 0; i < size; i++) {
-            slot[i] = mFetcher[i].getItem(subPos[i]);
+            heap.add(i, mFetcher[i].getItem(subPos[i]));
         }
 
-        ArrayList<MediaItem> result = new ArrayList<MediaItem>();
-
-        for (int i = markPos; i < start + count; i++) {
-            int k = -1;  // k points to the best slot up to now.
-            for (int j = 0; j < size; j++) {
-                if (slot[j] != null) {
-                    if (k == -1 || mComparator.compare(slot[j], slot[k]) < 0) {
-                        k = j;
-                    }
-                }
-            }
-
+        int i = markPos;
+        for (int end = start + count; i < end; i++) {
             // If we don't have anything, all streams are exhausted.
-            if (k == -1) break;
+            if (heap.isEmpty()) break;
 
             // Pick the best slot and refill it.
-            subPos[k]++;
+            int k = heap.peekSource();
             if (i >= start) {
-                result.add(slot[k]);
+                result.add(heap.peekItem());
             }
-            slot[k] = mFetcher[k].getItem(subPos[k]);
+            subPos[k]++;
+            heap.replaceTop(mFetcher[k].getItem(subPos[k]));
 
-            // Periodically leave a mark in the index, so we can come back later.
-            if ((i + 1) % PAGE_SIZE == 0) {
-                mIndex.put(i + 1, subPos.clone());
+            // Leave a mark in the index, so we can come back later.
+            if ((i + 1) % CHECKPOINT_INTERVAL == 0
+                    && (i + 1) / CHECKPOINT_INTERVAL == mCheckpointCount) {
+                addCheckpoint(subPos);
             }
         }
 
+        mCursorPos = i;
+        mCursorSubPos = subPos;
         return result;
     }
 
+    // A binary heap of the sources ordered by their next item, so each
+    // merged item takes O(log(number of sources)) comparisons. Sources with
+    // equal items are ordered by their index, like mSources.
+    private class SourceHeap {
+        private final int[] mSource;
+        private final MediaItem[] mItem;
+        private int mSize;
+
+        SourceHeap(int capacity) {
+            mSource = new int[capacity];
+            mItem = new MediaItem[capacity];
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int peekSource() {
+            return mSource[0];
+        }
+
+        MediaItem peekItem() {
+            return mItem[0];
+        }
+
+        void add(int source, MediaItem item) {
+            if (item == null) return;
+            int i = mSize++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!less(source, item, mSource[parent], mItem[parent])) break;
+                mSource[i] = mSource[parent];
+                mItem[i] = mItem[parent];
+                i = parent;
+            }
+            mSource[i] = source;
+            mItem[i] = item;
+        }
+
+        // Replaces the item of the top source with its next item, or removes
+        // the source if it has no more item.
+        void replaceTop(MediaItem item) {
+            int source = mSource[0];
+            if (item == null) {
+                if (--mSize == 0) {
+                    mItem[0] = null;
+                    return;
+                }
+                source = mSource[mSize];
+                item = mItem[mSize];
+                mItem[mSize] = null;
+            }
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) break;
+                if (child + 1 < mSize && less(mSource[child + 1], mItem[child + 1],
+                        mSource[child], mItem[child])) {
+                    child++;
+                }
+                if (!less(mSource[child], mItem[child], source, item)) break;
+                mSource[i] = mSource[child];
+                mItem[i] = mItem[child];
+                i = child;
+            }
+            mSource[i] = source;
+            mItem[i] = item;
+        }
+
+        private boolean less(int sourceA, MediaItem a, int sourceB, MediaItem b) {
+            int result = mComparator.compare(a, b);
+            return result < 0 || (result == 0 && sourceA < sourceB);
+        }
+    }
+
+    // The newest of the covers of the sources, so a source which knows its
+    // cover (see LocalAlbum.setSummary()) doesn't have to be merged for it.
+    @Override
+    public MediaItem getCoverMediaItem() {
+        MediaItem cover = null;
+        for (MediaSet set : mSources) {
+            MediaItem item = set.getCoverMediaItem();
+            if (item == null) continue;
+            if (cover == null || mComparator.compare(item, cover) < 0) cover = item;
+        }
+        return cover;
+    }
+
     @Override
     public int getTotalMediaItemCount() {
         int count = 0;
@@ -180,8 +298,10 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
         if (changed) {
             mDataVersion = nextVersionNumber();
-            updateData();
-            invalidateCache();
+            synchronized (this) {
+                updateData();
+                invalidateCache();
+            }
         }
         return mDataVersion;
     }
@@ -210,9 +330,12 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
     }
 
+    // Keeps the page of the source around the merge position. It's only a
+    // page per source, so it's strongly referenced: a SoftReference is
+    // cleared under memory pressure, right when reloading it hurts most.
     private static class FetchCache {
         private MediaSet mBaseSet;
-        private SoftReference<ArrayList<MediaItem>> mCacheRef;
+        private ArrayList<MediaItem> mCache;
         private int mStartPos;
 
         public FetchCache(MediaSet baseSet) {
@@ -220,25 +343,15 @@ public class LocalMergeAlbum extends MediaSet implements ContentListener {
         }
 
         public void invalidate() {
-            mCacheRef = null;
+            mCache = null;
         }
 
         public MediaItem getItem(int index) {
-            boolean needLoading = false;
-            ArrayList<MediaItem> cache = null;
-            if (mCacheRef == null
+            ArrayList<MediaItem> cache = mCache;
+            if (cache == null
                     || index < mStartPos || index >= mStartPos + PAGE_SIZE) {
-                needLoading = true;
-            } else {
-                cache = mCacheRef.get();
-                if (cache == null) {
-                    needLoading = true;
-                }
-            }
-
-            if (needLoading) {
                 cache = mBaseSet.getMediaItem(index, PAGE_SIZE);
-                mCacheRef = new SoftReference<ArrayList<MediaItem>>(cache);
+                mCache = cache;
                 mStartPos = index;
             }
 
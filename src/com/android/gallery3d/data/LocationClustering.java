@@ -19,7 +19,6 @@ package com.android.gallery3d.data;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.FloatMath;
 import android.widget.Toast;
 
 import com.android.gallery3d.R;
@@ -27,6 +26,10 @@ import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.ReverseGeocoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class LocationClustering extends Clustering {
     @SuppressWarnings("unused")
@@ -38,21 +41,21 @@ class LocationClustering extends Clustering {
 
     // If the total distance change is less than this ratio, stop iterating.
     private static final float STOP_CHANGE_RATIO = 0.01f;
+
+    // The points are put in a grid of cells of about this size, and the
+    // points in the same cell are clustered as a single weighted point.
+    // Photos are often taken in bursts at the same place, so this usually
+    // reduces the number of points a lot.
+    private static final double GRID_CELL_METERS = 50;
+    private static final double EARTH_RADIUS_METERS = 6367000.0;
+    private static final double GRID_CELL_RAD = GRID_CELL_METERS / EARTH_RADIUS_METERS;
+
     private Context mContext;
     private ArrayList<ArrayList<SmallItem>> mClusters;
     private ArrayList<String> mNames;
     private String mNoLocationString;
     private Handler mHandler;
 
-    private static class Point {
-        public Point(double lat, double lng) {
-            latRad = Math.toRadians(lat);
-            lngRad = Math.toRadians(lng);
-        }
-        public Point() {}
-        public double latRad, lngRad;
-    }
-
     private static class SmallItem {
         Path path;
         double lat, lng;
@@ -85,13 +88,11 @@ class LocationClustering extends Clustering {
 
         final ArrayList<SmallItem> withLatLong = new ArrayList<SmallItem>();
         final ArrayList<SmallItem> withoutLatLong = new ArrayList<SmallItem>();
-        final ArrayList<Point> points = new ArrayList<Point>();
         for (int i = 0; i < total; i++) {
             SmallItem s = buf[i];
             if (s == null) continue;
             if (GalleryUtils.isValidLocation(s.lat, s.lng)) {
                 withLatLong.add(s);
-                points.add(new Point(s.lat, s.lng));
             } else {
                 withoutLatLong.add(s);
             }
@@ -102,17 +103,16 @@ class LocationClustering extends Clustering {
         int m = withLatLong.size();
         if (m > 0) {
             // cluster the items with lat-long
-            Point[] pointsArray = new Point[m];
-            pointsArray = points.toArray(pointsArray);
+            Grid grid = new Grid(withLatLong);
             int[] bestK = new int[1];
-            int[] index = kMeans(pointsArray, bestK);
+            int[] index = kMeans(grid, bestK);
 
             for (int i = 0; i < bestK[0]; i++) {
                 clusters.add(new ArrayList<SmallItem>());
             }
 
             for (int i = 0; i < m; i++) {
-                clusters.get(index[i]).add(withLatLong.get(i));
+                clusters.get(index[grid.mCellOf[i]]).add(withLatLong.get(i));
             }
         }
 
@@ -199,118 +199,262 @@ class LocationClustering extends Clustering {
         return mNames.get(index);
     }
 
-    // Input: n points
+    // The cells of the grid which contain at least one point. A cell is
+    // represented by the mean location of its points, weighted by their
+    // number. The locations are stored as unit vectors, so the nearest center
+    // can be found without any trigonometric function.
+    private static class Grid {
+        double[] mX;
+        double[] mY;
+        double[] mZ;
+        int[] mWeight;
+        // The cell of each item.
+        int[] mCellOf;
+
+        Grid(ArrayList<SmallItem> items) {
+            int n = items.size();
+            HashMap<Long, Integer> cells = new HashMap<Long, Integer>();
+            double[] x = new double[n];
+            double[] y = new double[n];
+            double[] z = new double[n];
+            int[] weight = new int[n];
+            mCellOf = new int[n];
+            int cellCount = 0;
+            for (int i = 0; i < n; i++) {
+                SmallItem item = items.get(i);
+                double latRad = Math.toRadians(item.lat);
+                double lngRad = Math.toRadians(item.lng);
+                long key = (((long) Math.floor(latRad / GRID_CELL_RAD)) << 32)
+                        ^ (((long) Math.floor(lngRad / GRID_CELL_RAD)) & 0xffffffffL);
+                Integer cell = cells.get(key);
+                if (cell == null) {
+                    cell = cellCount++;
+                    cells.put(key, cell);
+                }
+                int c = cell;
+                double cosLat = Math.cos(latRad);
+                x[c] += cosLat * Math.cos(lngRad);
+                y[c] += cosLat * Math.sin(lngRad);
+                z[c] += Math.sin(latRad);
+                weight[c]++;
+                mCellOf[i] = c;
+            }
+
+            mX = new double[cellCount];
+            mY = new double[cellCount];
+            mZ = new double[cellCount];
+            mWeight = new int[cellCount];
+            for (int c = 0; c < cellCount; c++) {
+                double norm = Math.sqrt(x[c] * x[c] + y[c] * y[c] + z[c] * z[c]);
+                mX[c] = x[c] / norm;
+                mY[c] = y[c] / norm;
+                mZ[c] = z[c] / norm;
+                mWeight[c] = weight[c];
+            }
+        }
+    }
+
+    // The result of k-means for one value of k.
+    private static class KMeansResult {
+        float score;
+        int realK;
+        int[] grouping;
+    }
+
+    // Input: the grid cells
     // Output: the best k is stored in bestK[0], and the return value is the
-    // an array which specifies the group that each point belongs (0 to k - 1).
-    private static int[] kMeans(Point points[], int[] bestK) {
-        int n = points.length;
+    // an array which specifies the group that each cell belongs (0 to k - 1).
+    //
+    // The values of k are tried in parallel, each one on its own, so the
+    // result doesn't depend on the number of threads.
+    private static int[] kMeans(final Grid grid, int[] bestK) {
+        int n = grid.mWeight.length;
 
         // min and max number of groups wanted
-        int minK = Math.min(n, MIN_GROUPS);
-        int maxK = Math.min(n, MAX_GROUPS);
-
-        Point[] center = new Point[maxK];  // center of each group.
-        Point[] groupSum = new Point[maxK];  // sum of points in each group.
-        int[] groupCount = new int[maxK];  // number of points in each group.
-        int[] grouping = new int[n]; // The group assignment for each point.
+        final int minK = Math.min(n, MIN_GROUPS);
+        final int maxK = Math.min(n, MAX_GROUPS);
 
-        for (int i = 0; i < maxK; i++) {
-            center[i] = new Point();
-            groupSum[i] = new Point();
+        final KMeansResult[] results = new KMeansResult[maxK - minK + 1];
+        // The larger k take longer, so they are started first.
+        final AtomicInteger nextK = new AtomicInteger(maxK);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int k;
+                while ((k = nextK.getAndDecrement()) >= minK) {
+                    results[k - minK] = kMeans(grid, k);
+                }
+            }
+        };
+
+        int threadCount = Math.min(results.length,
+                Runtime.getRuntime().availableProcessors()) - 1;
+        Thread[] threads = new Thread[Math.max(threadCount, 0)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(worker, TAG);
+            threads[i].start();
         }
+        worker.run();
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            while (true) {
+                try {
+                    threads[i].join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
 
         // The score we want to minimize is:
         //   (sum of distance from each point to its group center) * sqrt(k).
-        float bestScore = Float.MAX_VALUE;
-        // The best group assignment up to now.
-        int[] bestGrouping = new int[n];
-        // The best K up to now.
-        bestK[0] = 1;
+        // If several k have the best score, the smallest one is used.
+        KMeansResult best = results[0];
+        for (int i = 1; i < results.length; i++) {
+            if (results[i].score < best.score) best = results[i];
+        }
+        bestK[0] = best.realK;
+        return best.grouping;
+    }
+
+    // Runs k-means with k groups, with the initial centers picked by k-means++.
+    // The distances are measured along the chord, which is the same as along
+    // the surface of the earth at the scale of a group.
+    private static KMeansResult kMeans(Grid grid, int k) {
+        double[] x = grid.mX;
+        double[] y = grid.mY;
+        double[] z = grid.mZ;
+        int[] weight = grid.mWeight;
+        int n = weight.length;
+
+        double[] centerX = new double[k];  // center of each group.
+        double[] centerY = new double[k];
+        double[] centerZ = new double[k];
+        double[] sumX = new double[k];  // sum of points in each group.
+        double[] sumY = new double[k];
+        double[] sumZ = new double[k];
+        int[] groupCount = new int[k];  // number of points in each group.
+        int[] grouping = new int[n]; // The group assignment for each point.
+
+        // step 1: pick the initial centers. Each new center is picked with a
+        // probability proportional to its squared distance to the closest
+        // center so far. The random generator is seeded with k so the result
+        // is the same for the same points.
+        Random random = new Random(k);
+        double[] minDistance2 = new double[n];
+        Arrays.fill(minDistance2, Double.MAX_VALUE);
+        for (int c = 0; c < k; c++) {
+            int next = pickWeighted(random, weight, c == 0 ? null : minDistance2);
+            centerX[c] = x[next];
+            centerY[c] = y[next];
+            centerZ[c] = z[next];
+            for (int i = 0; i < n; i++) {
+                double dx = x[i] - centerX[c];
+                double dy = y[i] - centerY[c];
+                double dz = z[i] - centerZ[c];
+                minDistance2[i] = Math.min(minDistance2[i], dx * dx + dy * dy + dz * dz);
+            }
+        }
 
+        // Distances less than 1 meter are considered as zero.
+        double minDistance2Rad = 1 / (EARTH_RADIUS_METERS * EARTH_RADIUS_METERS);
         float lastDistance = 0;
         float totalDistance = 0;
 
-        for (int k = minK; k <= maxK; k++) {
-            // step 1: (arbitrarily) pick k points as the initial centers.
-            int delta = n / k;
+        for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            // step 2: assign each point to the nearest center.
             for (int i = 0; i < k; i++) {
-                Point p = points[i * delta];
-                center[i].latRad = p.latRad;
-                center[i].lngRad = p.lngRad;
+                sumX[i] = 0;
+                sumY[i] = 0;
+                sumZ[i] = 0;
+                groupCount[i] = 0;
             }
-
-            for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
-                // step 2: assign each point to the nearest center.
-                for (int i = 0; i < k; i++) {
-                    groupSum[i].latRad = 0;
-                    groupSum[i].lngRad = 0;
-                    groupCount[i] = 0;
-                }
-                totalDistance = 0;
-
-                for (int i = 0; i < n; i++) {
-                    Point p = points[i];
-                    float bestDistance = Float.MAX_VALUE;
-                    int bestIndex = 0;
-                    for (int j = 0; j < k; j++) {
-                        float distance = (float) GalleryUtils.fastDistanceMeters(
-                                p.latRad, p.lngRad, center[j].latRad, center[j].lngRad);
-                        // We may have small non-zero distance introduced by
-                        // floating point calculation, so zero out small
-                        // distances less than 1 meter.
-                        if (distance < 1) {
-                            distance = 0;
-                        }
-                        if (distance < bestDistance) {
-                            bestDistance = distance;
-                            bestIndex = j;
-                        }
+            totalDistance = 0;
+
+            for (int i = 0; i < n; i++) {
+                double px = x[i];
+                double py = y[i];
+                double pz = z[i];
+                double bestDistance2 = Double.MAX_VALUE;
+                int bestIndex = 0;
+                for (int j = 0; j < k; j++) {
+                    double dx = px - centerX[j];
+                    double dy = py - centerY[j];
+                    double dz = pz - centerZ[j];
+                    double distance2 = dx * dx + dy * dy + dz * dz;
+                    if (distance2 < minDistance2Rad) {
+                        distance2 = 0;
                     }
-                    grouping[i] = bestIndex;
-                    groupCount[bestIndex]++;
-                    groupSum[bestIndex].latRad += p.latRad;
-                    groupSum[bestIndex].lngRad += p.lngRad;
-                    totalDistance += bestDistance;
-                }
-
-                // step 3: calculate new centers
-                for (int i = 0; i < k; i++) {
-                    if (groupCount[i] > 0) {
-                        center[i].latRad = groupSum[i].latRad / groupCount[i];
-                        center[i].lngRad = groupSum[i].lngRad / groupCount[i];
+                    if (distance2 < bestDistance2) {
+                        bestDistance2 = distance2;
+                        bestIndex = j;
                     }
                 }
-
-                if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
-                        / totalDistance) < STOP_CHANGE_RATIO) {
-                    break;
-                }
-                lastDistance = totalDistance;
+                int w = weight[i];
+                grouping[i] = bestIndex;
+                groupCount[bestIndex] += w;
+                sumX[bestIndex] += px * w;
+                sumY[bestIndex] += py * w;
+                sumZ[bestIndex] += pz * w;
+                totalDistance += (float) (Math.sqrt(bestDistance2) * EARTH_RADIUS_METERS) * w;
             }
 
-            // step 4: remove empty groups and reassign group number
-            int reassign[] = new int[k];
-            int realK = 0;
+            // step 3: calculate new centers, projected back on the sphere.
             for (int i = 0; i < k; i++) {
                 if (groupCount[i] > 0) {
-                    reassign[i] = realK++;
+                    double norm = Math.sqrt(sumX[i] * sumX[i] + sumY[i] * sumY[i]
+                            + sumZ[i] * sumZ[i]);
+                    if (norm == 0) continue;
+                    centerX[i] = sumX[i] / norm;
+                    centerY[i] = sumY[i] / norm;
+                    centerZ[i] = sumZ[i] / norm;
                 }
             }
 
-            // step 5: calculate the final score
-            float score = totalDistance * FloatMath.sqrt(realK);
+            if (totalDistance == 0 || (Math.abs(lastDistance - totalDistance)
+                    / totalDistance) < STOP_CHANGE_RATIO) {
+                break;
+            }
+            lastDistance = totalDistance;
+        }
 
-            if (score < bestScore) {
-                bestScore = score;
-                bestK[0] = realK;
-                for (int i = 0; i < n; i++) {
-                    bestGrouping[i] = reassign[grouping[i]];
-                }
-                if (score == 0) {
-                    break;
-                }
+        // step 4: remove empty groups and reassign group number
+        int reassign[] = new int[k];
+        int realK = 0;
+        for (int i = 0; i < k; i++) {
+            if (groupCount[i] > 0) {
+                reassign[i] = realK++;
             }
         }
-        return bestGrouping;
+        for (int i = 0; i < n; i++) {
+            grouping[i] = reassign[grouping[i]];
+        }
+
+        // step 5: calculate the final score
+        KMeansResult result = new KMeansResult();
+        result.score = totalDistance * (float) Math.sqrt(realK);
+        result.realK = realK;
+        result.grouping = grouping;
+        return result;
+    }
+
+    // Picks a point with a probability proportional to its weight, times
+    // factor[i] if factor is not null. If all the factors are zero, any point
+    // may be picked.
+    private static int pickWeighted(Random random, int[] weight, double[] factor) {
+        int n = weight.length;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += (factor == null) ? weight[i] : weight[i] * factor[i];
+        }
+        if (total <= 0) return random.nextInt(n);
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < n; i++) {
+            r -= (factor == null) ? weight[i] : weight[i] * factor[i];
+            if (r < 0) return i;
+        }
+        return n - 1;
     }
 }
@@ -44,13 +44,13 @@ public abstract class MediaItem extends MediaObject {
     public static final String MIME_TYPE_GIF = "image/gif";
 
     //类型缓冲池大小
-    private static final int BYTESBUFFE_POOL_SIZE = 4;
+    private static final int BYTESBUFFER_POOL_CAPACITY = 2 * 1024 * 1024;
     //类型缓冲大小
     private static final int BYTESBUFFER_SIZE = 200 * 1024;
 
     private static int sMicrothumbnailTargetSize = 200;
     private static final BytesBufferPool sMicroThumbBufferPool =
-            new BytesBufferPool(BYTESBUFFE_POOL_SIZE, BYTESBUFFER_SIZE);
+            new BytesBufferPool(BYTESBUFFER_SIZE, BYTESBUFFER_POOL_CAPACITY);
 
     private static int sThumbnailTargetSize = 640;
 
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.MediaColumns;
+import android.provider.MediaStore.Video;
+
+import com.android.gallery3d.util.IntArray;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the images or the videos in the MediaStore and turns the change
+ * notifications into item-level deltas: which rows were added, updated or
+ * deleted, and in which buckets. The ChangeNotifier of a LocalAlbum is only
+ * triggered if its bucket changed, so taking photos in one album doesn't
+ * make every album reload.
+ *
+ * The tracker keeps a snapshot of the (_id, bucket_id) of all the rows, and
+ * two watermarks: the largest _id and the largest date_modified. A change is
+ * found with a query for the rows above either watermark, and a count query
+ * tells if rows were deleted, in which case the ids are compared with the
+ * snapshot. The rows already at the date watermark are remembered, so they
+ * are not reported again by the next scan.
+ *
+ * Changes which don't move the watermarks or the count (like a rotation of
+ * an image) can't be found. So each notification has to be explained by at
+ * least one changed row, otherwise the scan is reported as a full change.
+ *
+ * The notifications are coalesced for SCAN_DELAY_MS, so a burst of photos
+ * results in a single delta.
+ */
+class MediaStoreTracker extends ContentObserver {
+    private static final String TAG = "MediaStoreTracker";
+
+    private static final int MSG_INIT = 1;
+    private static final int MSG_SCAN = 2;
+
+    private static final long SCAN_DELAY_MS = 100;
+
+    private static final String[] SNAPSHOT_PROJECTION = {
+            MediaColumns._ID, Images.ImageColumns.BUCKET_ID, MediaColumns.DATE_MODIFIED};
+    private static final String[] ID_PROJECTION = {MediaColumns._ID};
+    private static final String[] COUNT_PROJECTION = {"count(*)"};
+
+    public interface Listener {
+        // Called on the main thread.
+        public void onDelta(Delta delta);
+    }
+
+    /**
+     * The rows changed since the previous delta. A row which moved to
+     * another bucket is both deleted (from the old bucket) and added (to the
+     * new one).
+     */
+    public static class Delta {
+        static final Delta FULL = new Delta();
+
+        public final int[] addedIds;
+        public final int[] addedBuckets;
+        public final int[] updatedIds;
+        public final int[] updatedBuckets;
+        public final int[] deletedIds;
+        public final int[] deletedBuckets;
+        private final boolean mFull;
+        // The sorted ids of the buckets above.
+        private final int[] mBuckets;
+
+        private Delta() {
+            int[] empty = new int[0];
+            addedIds = addedBuckets = updatedIds = updatedBuckets = empty;
+            deletedIds = deletedBuckets = empty;
+            mBuckets = empty;
+            mFull = true;
+        }
+
+        Delta(IntArray added, IntArray addedBuckets, IntArray updated,
+                IntArray updatedBuckets, IntArray deleted, IntArray deletedBuckets) {
+            addedIds = added.toArray(null);
+            this.addedBuckets = addedBuckets.toArray(null);
+            updatedIds = updated.toArray(null);
+            this.updatedBuckets = updatedBuckets.toArray(null);
+            deletedIds = deleted.toArray(null);
+            this.deletedBuckets = deletedBuckets.toArray(null);
+            mFull = false;
+
+            int n = this.addedBuckets.length + this.updatedBuckets.length
+                    + this.deletedBuckets.length;
+            int[] buckets = new int[n];
+            int i = 0;
+            for (int b : this.addedBuckets) buckets[i++] = b;
+            for (int b : this.updatedBuckets) buckets[i++] = b;
+            for (int b : this.deletedBuckets) buckets[i++] = b;
+            Arrays.sort(buckets);
+            int m = 0;
+            for (i = 0; i < n; i++) {
+                if (m == 0 || buckets[m - 1] != buckets[i]) buckets[m++] = buckets[i];
+            }
+            mBuckets = Arrays.copyOf(buckets, m);
+        }
+
+        // Whether the changes are unknown, so everything should be reloaded.
+        public boolean isFull() {
+            return mFull;
+        }
+
+        public boolean containsBucket(int bucketId) {
+            return mFull || Arrays.binarySearch(mBuckets, bucketId) >= 0;
+        }
+
+        // The sorted ids of the changed buckets, empty if isFull().
+        public int[] getBuckets() {
+            return mBuckets.clone();
+        }
+    }
+
+    private static Looper sWorkerLooper;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final Handler mMainHandler;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    // The number of notifications since the last scan.
+    private final AtomicInteger mPendingChanges = new AtomicInteger();
+
+    // The snapshot, only used on the worker thread. The ids are sorted.
+    private boolean mInitialized;
+    private int[] mIds = new int[0];
+    private int[] mBuckets = new int[0];
+    private int mCount;
+    private int mMaxId;
+    private long mMaxDateModified;
+    // The sorted ids of the rows whose date_modified is mMaxDateModified.
+    private int[] mWatermarkIds = new int[0];
+
+    public static boolean isTracked(Uri uri) {
+        return Images.Media.EXTERNAL_CONTENT_URI.equals(uri)
+                || Video.Media.EXTERNAL_CONTENT_URI.equals(uri);
+    }
+
+    public MediaStoreTracker(ContentResolver resolver, Uri uri,
+            Handler mainHandler, Listener listener) {
+        super(mainHandler);
+        mResolver = resolver;
+        mUri = uri;
+        mMainHandler = mainHandler;
+        mListener = listener;
+        mHandler = new Handler(getWorkerLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_INIT:
+                        if (!mInitialized) mInitialized = loadSnapshot();
+                        break;
+                    case MSG_SCAN:
+                        scan();
+                        break;
+                }
+            }
+        };
+        mHandler.sendEmptyMessage(MSG_INIT);
+    }
+
+    private static synchronized Looper getWorkerLooper() {
+        if (sWorkerLooper == null) {
+            HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorkerLooper = thread.getLooper();
+        }
+        return sWorkerLooper;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        mPendingChanges.incrementAndGet();
+        // The changes in the next SCAN_DELAY_MS are handled by the same scan.
+        if (!mHandler.hasMessages(MSG_SCAN)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SCAN, SCAN_DELAY_MS);
+        }
+    }
+
+    private void scan() {
+        Delta delta = null;
+        // The notifications which come during the scan are handled by the
+        // next one.
+        int changes = mPendingChanges.getAndSet(0);
+        try {
+            if (mInitialized) delta = computeDelta(changes);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "cannot compute the changes of " + mUri, e);
+        }
+        if (delta == null) {
+            // Start over from a new snapshot.
+            mInitialized = loadSnapshot();
+            delta = Delta.FULL;
+        }
+        dispatch(delta);
+    }
+
+    private void dispatch(final Delta delta) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onDelta(delta);
+            }
+        });
+    }
+
+    private boolean loadSnapshot() {
+        Cursor cursor = mResolver.query(mUri, SNAPSHOT_PROJECTION, null, null,
+                MediaColumns._ID);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + mUri);
+            return false;
+        }
+        try {
+            int n = cursor.getCount();
+            int[] ids = new int[n];
+            int[] buckets = new int[n];
+            long maxDateModified = 0;
+            IntArray watermarkIds = new IntArray();
+            int count = 0;
+            while (count < n && cursor.moveToNext()) {
+                ids[count] = cursor.getInt(0);
+                buckets[count] = cursor.getInt(1);
+                maxDateModified = updateWatermark(watermarkIds, maxDateModified,
+                        ids[count], cursor.getLong(2));
+                count++;
+            }
+            mIds = ids;
+            mBuckets = buckets;
+            mCount = count;
+            mMaxId = count == 0 ? 0 : ids[count - 1];
+            mMaxDateModified = maxDateModified;
+            mWatermarkIds = watermarkIds.toArray(null);
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Adds the id of a row to the ids at the watermark, and returns the new
+    // watermark.
+    private static long updateWatermark(IntArray watermarkIds, long watermark,
+            int id, long dateModified) {
+        if (dateModified > watermark) {
+            watermark = dateModified;
+            watermarkIds.clear();
+        }
+        if (dateModified == watermark) watermarkIds.add(id);
+        return watermark;
+    }
+
+    // Returns null if the snapshot has to be reloaded, or Delta.FULL if the
+    // changes can't be found. changes is the number of notifications.
+    private Delta computeDelta(int changes) {
+        IntArray added = new IntArray();
+        IntArray addedBuckets = new IntArray();
+        IntArray updated = new IntArray();
+        IntArray updatedBuckets = new IntArray();
+        IntArray deleted = new IntArray();
+        IntArray deletedBuckets = new IntArray();
+        long maxDateModified = mMaxDateModified;
+        IntArray watermarkIds = new IntArray();
+
+        // The rows above the id watermark are new.
+        Cursor cursor = mResolver.query(mUri, SNAPSHOT_PROJECTION,
+                MediaColumns._ID + " > ?", new String[] {String.valueOf(mMaxId)},
+                MediaColumns._ID);
+        if (cursor == null) return null;
+        try {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                added.add(id);
+                addedBuckets.add(cursor.getInt(1));
+                maxDateModified = updateWatermark(watermarkIds, maxDateModified,
+                        id, cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        int newCount = added.size();
+
+        // The other rows above the date watermark are updated. The date has
+        // a one second resolution, so the rows at the watermark are included,
+        // except the ones which were already there in the last scan.
+        cursor = mResolver.query(mUri, SNAPSHOT_PROJECTION,
+                MediaColumns._ID + " <= ? AND " + MediaColumns.DATE_MODIFIED + " >= ?",
+                new String[] {String.valueOf(mMaxId), String.valueOf(mMaxDateModified)},
+                MediaColumns._ID);
+        if (cursor == null) return null;
+        try {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                int bucket = cursor.getInt(1);
+                long dateModified = cursor.getLong(2);
+                maxDateModified = updateWatermark(watermarkIds, maxDateModified,
+                        id, dateModified);
+                int index = Arrays.binarySearch(mIds, 0, mCount, id);
+                if (index < 0) return null;
+                if (mBuckets[index] != bucket) {
+                    deleted.add(id);
+                    deletedBuckets.add(mBuckets[index]);
+                    added.add(id);
+                    addedBuckets.add(bucket);
+                    mBuckets[index] = bucket;
+                } else if (dateModified == mMaxDateModified
+                        && Arrays.binarySearch(mWatermarkIds, id) >= 0) {
+                    // Already reported, or in the initial snapshot.
+                    continue;
+                } else {
+                    updated.add(id);
+                    updatedBuckets.add(bucket);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Fewer rows than expected means some were deleted.
+        int count = queryCount();
+        if (count < 0 || count > mCount + newCount) return null;
+        if (count < mCount + newCount) {
+            if (!findDeleted(deleted, deletedBuckets)) return null;
+        }
+
+        appendAdded(added, addedBuckets, newCount);
+        mMaxDateModified = maxDateModified;
+        // The rows above the old watermark are not given in the order of
+        // their ids: the new ones come first.
+        mWatermarkIds = watermarkIds.toArray(null);
+        Arrays.sort(mWatermarkIds);
+
+        // Each notification comes with at least one changed row (a row which
+        // moved is both deleted and added, but counted once here). If there
+        // are fewer rows, the other changes are not seen by the queries.
+        int found = newCount + updated.size() + deleted.size();
+        if (found == 0 || found < changes) return Delta.FULL;
+        return new Delta(added, addedBuckets, updated, updatedBuckets,
+                deleted, deletedBuckets);
+    }
+
+    private int queryCount() {
+        Cursor cursor = mResolver.query(mUri, COUNT_PROJECTION, null, null, null);
+        if (cursor == null) return -1;
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Compares the ids up to the watermark with the snapshot, and removes
+    // the deleted ones from it. Returns false if they don't match.
+    private boolean findDeleted(IntArray deleted, IntArray deletedBuckets) {
+        Cursor cursor = mResolver.query(mUri, ID_PROJECTION,
+                MediaColumns._ID + " <= ?", new String[] {String.valueOf(mMaxId)},
+                MediaColumns._ID);
+        if (cursor == null) return false;
+        int[] ids = mIds;
+        int[] buckets = mBuckets;
+        int kept = 0;
+        int i = 0;
+        try {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                while (i < mCount && ids[i] < id) {
+                    deleted.add(ids[i]);
+                    deletedBuckets.add(buckets[i]);
+                    i++;
+                }
+                // A row which is not in the snapshot.
+                if (i == mCount || ids[i] != id) return false;
+                ids[kept] = ids[i];
+                buckets[kept] = buckets[i];
+                kept++;
+                i++;
+            }
+        } finally {
+            cursor.close();
+        }
+        for (; i < mCount; i++) {
+            deleted.add(ids[i]);
+            deletedBuckets.add(buckets[i]);
+        }
+        mCount = kept;
+        return true;
+    }
+
+    // Appends the first newCount added rows, which are sorted by id and above
+    // the id watermark, to the snapshot.
+    private void appendAdded(IntArray added, IntArray addedBuckets, int newCount) {
+        if (newCount == 0) return;
+        int size = mCount + newCount;
+        if (size > mIds.length) {
+            int capacity = Math.max(size, mIds.length + (mIds.length >> 1));
+            mIds = Arrays.copyOf(mIds, capacity);
+            mBuckets = Arrays.copyOf(mBuckets, capacity);
+        }
+        int[] ids = added.getInternalArray();
+        int[] buckets = addedBuckets.getInternalArray();
+        System.arraycopy(ids, 0, mIds, mCount, newCount);
+        System.arraycopy(buckets, 0, mBuckets, mCount, newCount);
+        mCount = size;
+        mMaxId = mIds[size - 1];
+    }
+}
@@ -22,14 +22,20 @@ import com.android.gallery3d.util.IdentityCache;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
+// Paths are interned: there is at most one Path object for a given path
+// string, so they can be compared by identity. The lookups of existing paths
+// don't take any lock, since they are made for every item of every load.
 public class Path {
     private static final String TAG = "Path";
-    private static Path sRoot = new Path(null, "ROOT");
+    private static volatile Path sRoot = new Path(null, "ROOT");
 
     private final Path mParent;
     private final String mSegment;
-    private WeakReference<MediaObject> mObject;
-    private IdentityCache<String, Path> mChildren;
+    private volatile WeakReference<MediaObject> mObject;
+    private volatile IdentityCache<String, Path> mChildren;
+    // Cached results of toString() and split(), computed on first use.
+    private volatile String mString;
+    private volatile String[] mSegments;
 
     private Path(Path parent, String segment) {
         mParent = parent;
@@ -38,34 +44,26 @@ public class Path {
 
     //获取孩子Path
     public Path getChild(String segment) {
-        synchronized (Path.class) {
-            //如果IdentityCache为空
-            //  就重新new一个IdentityCache
-            //否则
-            //  在IdentityCache中获取segment
-            //  如果获取到了
-            //      return 获取到的这个path
-            //当IdentityCache不为空却又没获取到segment的时候
-            //  根据segment重新创建一个Path
-            //  IdentityCache放入新创建的Path
-            if (mChildren == null) {
-                mChildren = new IdentityCache<String, Path>();
-            } else {
-                Path p = mChildren.get(segment);
-                if (p != null) return p;
+        IdentityCache<String, Path> children = mChildren;
+        if (children == null) {
+            synchronized (this) {
+                children = mChildren;
+                if (children == null) {
+                    children = new IdentityCache<String, Path>();
+                    mChildren = children;
+                }
             }
-
-            Path p = new Path(this, segment);
-            mChildren.put(segment, p);
-            return p;
+        } else {
+            Path p = children.get(segment);
+            if (p != null) return p;
         }
+        // If another thread creates the same child first, its Path is used.
+        return children.putIfAbsent(segment, new Path(this, segment));
     }
 
     //获取ParentPath
     public Path getParent() {
-        synchronized (Path.class) {
-            return mParent;
-        }
+        return mParent;
     }
 
     //根据segment获取Path
@@ -80,7 +78,7 @@ public class Path {
 
 
     public void setObject(MediaObject object) {
-        synchronized (Path.class) {
+        synchronized (this) {
             //如果两个都不为空，则报断言错误
             //虚引用被Gc收掉
             Utils.assertTrue(mObject == null || mObject.get() == null);
@@ -91,24 +89,26 @@ public class Path {
 
     //返回MediaObject
     MediaObject getObject() {
-        synchronized (Path.class) {
-            return (mObject == null) ? null : mObject.get();
-        }
+        WeakReference<MediaObject> object = mObject;
+        return (object == null) ? null : object.get();
     }
 
     @Override
-    // TODO: toString() should be more efficient, will fix it later
     //将segments拼成/xxx/xxxx/xxx/xxx
     public String toString() {
-        synchronized (Path.class) {
+        String s = mString;
+        if (s == null) {
             StringBuilder sb = new StringBuilder();
-            String[] segments = split();
+            String[] segments = getSegments();
             for (int i = 0; i < segments.length; i++) {
                 sb.append("/");
                 sb.append(segments[i]);
             }
-            return sb.toString();
+            // Racing threads compute the same string, so no lock is needed.
+            s = sb.toString();
+            mString = s;
         }
+        return s;
     }
 
     //忽略大小写判断两个path.toString是否相等
@@ -119,30 +119,36 @@ public class Path {
 
     //将String类型转换为Path类型
     public static Path fromString(String s) {
-        synchronized (Path.class) {
-            String[] segments = split(s);
-            Path current = sRoot;
-            for (int i = 0; i < segments.length; i++) {
-                current = current.getChild(segments[i]);
-            }
-            return current;
+        String[] segments = split(s);
+        Path current = sRoot;
+        for (int i = 0; i < segments.length; i++) {
+            current = current.getChild(segments[i]);
         }
+        return current;
     }
 
     //将自己split成segments
     public String[] split() {
-        synchronized (Path.class) {
+        // The cached array is shared, so give the caller a copy.
+        return getSegments().clone();
+    }
+
+    private String[] getSegments() {
+        String[] segments = mSegments;
+        if (segments == null) {
+            Path root = sRoot;
             int n = 0;
-            for (Path p = this; p != sRoot; p = p.mParent) {
+            for (Path p = this; p != root; p = p.mParent) {
                 n++;
             }
-            String[] segments = new String[n];
+            segments = new String[n];
             int i = n - 1;
-            for (Path p = this; p != sRoot; p = p.mParent) {
+            for (Path p = this; p != root; p = p.mParent) {
                 segments[i--] = p.mSegment;
             }
-            return segments;
+            mSegments = segments;
         }
+        return segments;
     }
 
 
@@ -219,16 +225,15 @@ public class Path {
     }
 
     public Path getPrefixPath() {
-        synchronized (Path.class) {
-            Path current = this;
-            if (current == sRoot) {
-                throw new IllegalStateException();
-            }
-            while (current.mParent != sRoot) {
-                current = current.mParent;
-            }
-            return current;
+        Path root = sRoot;
+        Path current = this;
+        if (current == root) {
+            throw new IllegalStateException();
         }
+        while (current.mParent != root) {
+            current = current.mParent;
+        }
+        return current;
     }
 
     //获得后缀
@@ -239,9 +244,7 @@ public class Path {
 
     // Below are for testing/debugging only
     static void clearAll() {
-        synchronized (Path.class) {
-            sRoot = new Path(null, "");
-        }
+        sRoot = new Path(null, "");
     }
 
     static void dumpAll() {
@@ -250,25 +253,24 @@ public class Path {
 
     //抛弃所有
     static void dumpAll(Path p, String prefix1, String prefix2) {
-        synchronized (Path.class) {
-            MediaObject obj = p.getObject();
-            Log.d(TAG, prefix1 + p.mSegment + ":"
-                    + (obj == null ? "null" : obj.getClass().getSimpleName()));
-            if (p.mChildren != null) {
-                ArrayList<String> childrenKeys = p.mChildren.keys();
-                int i = 0, n = childrenKeys.size();
-                for (String key : childrenKeys) {
-                    Path child = p.mChildren.get(key);
-                    if (child == null) {
-                        ++i;
-                        continue;
-                    }
-                    Log.d(TAG, prefix2 + "|");
-                    if (++i < n) {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
-                    } else {
-                        dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
-                    }
+        MediaObject obj = p.getObject();
+        Log.d(TAG, prefix1 + p.mSegment + ":"
+                + (obj == null ? "null" : obj.getClass().getSimpleName()));
+        IdentityCache<String, Path> children = p.mChildren;
+        if (children != null) {
+            ArrayList<String> childrenKeys = children.keys();
+            int i = 0, n = childrenKeys.size();
+            for (String key : childrenKeys) {
+                Path child = children.get(key);
+                if (child == null) {
+                    ++i;
+                    continue;
+                }
+                Log.d(TAG, prefix2 + "|");
+                if (++i < n) {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "|   ");
+                } else {
+                    dumpAll(child, prefix2 + "+-- ", prefix2 + "    ");
                 }
             }
         }
@@ -21,9 +21,14 @@ import android.content.res.Resources;
 
 import com.android.gallery3d.R;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
 
-public class SizeClustering extends Clustering {
+public class SizeClustering extends Clustering implements IncrementalClustering {
     @SuppressWarnings("unused")
     private static final String TAG = "SizeClustering";
 
@@ -32,6 +37,11 @@ public class SizeClustering extends Clustering {
     private String[] mNames;
     private long mMinSizes[];
 
+    // Kept for update(): the items of each size level, and the level of each
+    // item.
+    private ArrayList<Path>[] mGroups;
+    private HashMap<Path, Integer> mLevelOf = new HashMap<Path, Integer>();
+
     private static final long MEGA_BYTES = 1024L*1024;
     private static final long GIGA_BYTES = 1024L*1024*1024;
 
@@ -58,23 +68,107 @@ public class SizeClustering extends Clustering {
             @Override
             public void consume(int index, MediaItem item) {
                 // Find the cluster this item belongs to.
-                long size = item.getSize();
-                int i;
-                for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
-                    if (size < SIZE_LEVELS[i + 1]) {
-                        break;
-                    }
-                }
-
+                int i = getLevel(item.getSize());
                 ArrayList<Path> list = group[i];
                 if (list == null) {
                     list = new ArrayList<Path>();
                     group[i] = list;
                 }
                 list.add(item.getPath());
+                mLevelOf.put(item.getPath(), i);
             }
         });
 
+        mGroups = group;
+        buildClusters();
+    }
+
+    private static int getLevel(long size) {
+        int i;
+        for (i = 0; i < SIZE_LEVELS.length - 1; i++) {
+            if (size < SIZE_LEVELS[i + 1]) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    // The minimum size doesn't change when items are added or removed.
+    @Override
+    public long getClusterId(int index) {
+        return getMinSize(index);
+    }
+
+    @Override
+    public void update(ArrayList<MediaItem> added, Set<Path> removed) {
+        // The lists of the changed levels are copied before they are
+        // modified, so the ones given out by getCluster() don't change.
+        ArrayList<Path>[] group = mGroups;
+        boolean[] copied = new boolean[group.length];
+
+        for (Path path : removed) {
+            Integer level = mLevelOf.remove(path);
+            if (level == null) continue;
+            int i = level;
+            if (group[i] == null) continue;
+            if (!copied[i]) {
+                group[i] = new ArrayList<Path>(group[i]);
+                copied[i] = true;
+            }
+            group[i].remove(path);
+            if (group[i].isEmpty()) group[i] = null;
+        }
+
+        for (int k = 0, n = added.size(); k < n; k++) {
+            MediaItem item = added.get(k);
+            Path path = item.getPath();
+            if (mLevelOf.containsKey(path)) continue;
+            int i = getLevel(item.getSize());
+            if (group[i] == null) {
+                group[i] = new ArrayList<Path>();
+                copied[i] = true;
+            } else if (!copied[i]) {
+                group[i] = new ArrayList<Path>(group[i]);
+                copied[i] = true;
+            }
+            group[i].add(path);
+            mLevelOf.put(path, i);
+        }
+
+        buildClusters();
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        for (int i = 0; i < mGroups.length; i++) {
+            if (mGroups[i] == null) {
+                out.writeInt(0);
+            } else {
+                writePaths(out, mGroups[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        ArrayList<Path>[] group = new ArrayList[SIZE_LEVELS.length];
+        mLevelOf.clear();
+        for (int i = 0; i < group.length; i++) {
+            ArrayList<Path> list = readPaths(in);
+            if (list.isEmpty()) continue;
+            group[i] = list;
+            for (int j = 0, n = list.size(); j < n; j++) {
+                mLevelOf.put(list.get(j), i);
+            }
+        }
+        mGroups = group;
+        buildClusters();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void buildClusters() {
+        ArrayList<Path>[] group = mGroups;
         int count = 0;
         for (int i = 0; i < group.length; i++) {
             if (group[i] != null) {
@@ -19,12 +19,19 @@ package com.android.gallery3d.data;
 import android.content.Context;
 
 import com.android.gallery3d.R;
+import com.android.gallery3d.common.Utils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
-public class TagClustering extends Clustering {
+public class TagClustering extends Clustering implements IncrementalClustering {
     @SuppressWarnings("unused")
     private static final String TAG = "TagClustering";
 
@@ -32,6 +39,12 @@ public class TagClustering extends Clustering {
     private String[] mNames;
     private String mUntaggedString;
 
+    // Kept for update(): the items of each tag, the untagged items, and the
+    // tags of each item (null if untagged).
+    private TreeMap<String, ArrayList<Path>> mMap;
+    private ArrayList<Path> mUntagged;
+    private HashMap<Path, String[]> mTagsOf = new HashMap<Path, String[]>();
+
     public TagClustering(Context context) {
         mUntaggedString = context.getResources().getString(R.string.untagged);
     }
@@ -48,6 +61,7 @@ public class TagClustering extends Clustering {
                 Path path = item.getPath();
 
                 String[] tags = item.getTags();
+                mTagsOf.put(path, tags == null || tags.length == 0 ? null : tags);
                 if (tags == null || tags.length == 0) {
                     untagged.add(path);
                     return;
@@ -64,18 +78,134 @@ public class TagClustering extends Clustering {
             }
         });
 
-        int m = map.size();
+        mMap = map;
+        mUntagged = untagged;
+        buildClusters();
+    }
+
+    private void buildClusters() {
+        int m = mMap.size();
         mClusters = new ArrayList<ArrayList<Path>>();
-        mNames = new String[m + ((untagged.size() > 0) ? 1 : 0)];
+        mNames = new String[m + ((mUntagged.size() > 0) ? 1 : 0)];
         int i = 0;
-        for (Map.Entry<String, ArrayList<Path>> entry : map.entrySet()) {
+        for (Map.Entry<String, ArrayList<Path>> entry : mMap.entrySet()) {
             mNames[i++] = entry.getKey();
             mClusters.add(entry.getValue());
         }
-        if (untagged.size() > 0) {
+        if (mUntagged.size() > 0) {
             mNames[i++] = mUntaggedString;
-            mClusters.add(untagged);
+            mClusters.add(mUntagged);
+        }
+    }
+
+    // The clusters are identified by their tags.
+    @Override
+    public long getClusterId(int index) {
+        return Utils.crc64Long(mNames[index]);
+    }
+
+    @Override
+    public void update(ArrayList<MediaItem> added, Set<Path> removed) {
+        // The lists of the changed tags are copied before they are modified,
+        // so the ones given out by getCluster() don't change.
+        HashSet<String> copied = new HashSet<String>();
+        boolean untaggedCopied = false;
+
+        for (Path path : removed) {
+            if (!mTagsOf.containsKey(path)) continue;
+            String[] tags = mTagsOf.remove(path);
+            if (tags == null) {
+                if (!untaggedCopied) {
+                    mUntagged = new ArrayList<Path>(mUntagged);
+                    untaggedCopied = true;
+                }
+                mUntagged.remove(path);
+                continue;
+            }
+            for (String key : tags) {
+                ArrayList<Path> list = mMap.get(key);
+                if (list == null) continue;
+                if (copied.add(key)) {
+                    list = new ArrayList<Path>(list);
+                    mMap.put(key, list);
+                }
+                list.remove(path);
+                if (list.isEmpty()) mMap.remove(key);
+            }
+        }
+
+        for (int i = 0, n = added.size(); i < n; i++) {
+            MediaItem item = added.get(i);
+            Path path = item.getPath();
+            if (mTagsOf.containsKey(path)) continue;
+            String[] tags = item.getTags();
+            if (tags == null || tags.length == 0) {
+                mTagsOf.put(path, null);
+                if (!untaggedCopied) {
+                    mUntagged = new ArrayList<Path>(mUntagged);
+                    untaggedCopied = true;
+                }
+                mUntagged.add(path);
+                continue;
+            }
+            mTagsOf.put(path, tags);
+            for (String key : tags) {
+                ArrayList<Path> list = mMap.get(key);
+                if (list == null) {
+                    list = new ArrayList<Path>();
+                    mMap.put(key, list);
+                    copied.add(key);
+                } else if (copied.add(key)) {
+                    list = new ArrayList<Path>(list);
+                    mMap.put(key, list);
+                }
+                list.add(path);
+            }
+        }
+
+        buildClusters();
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mMap.size());
+        for (Map.Entry<String, ArrayList<Path>> entry : mMap.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writePaths(out, entry.getValue());
+        }
+        writePaths(out, mUntagged);
+    }
+
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        int m = in.readInt();
+        if (m < 0) throw new IOException("bad tag count: " + m);
+        mMap = new TreeMap<String, ArrayList<Path>>();
+        HashMap<Path, ArrayList<String>> tagsOf = new HashMap<Path, ArrayList<String>>();
+        for (int i = 0; i < m; i++) {
+            String key = in.readUTF();
+            ArrayList<Path> list = readPaths(in);
+            mMap.put(key, list);
+            for (int j = 0, n = list.size(); j < n; j++) {
+                ArrayList<String> tags = tagsOf.get(list.get(j));
+                if (tags == null) {
+                    tags = new ArrayList<String>();
+                    tagsOf.put(list.get(j), tags);
+                }
+                tags.add(key);
+            }
+        }
+        mUntagged = readPaths(in);
+
+        mTagsOf.clear();
+        for (Map.Entry<Path, ArrayList<String>> entry : tagsOf.entrySet()) {
+            ArrayList<String> tags = entry.getValue();
+            mTagsOf.put(entry.getKey(), tags.toArray(new String[tags.size()]));
+        }
+        for (int i = 0, n = mUntagged.size(); i < n; i++) {
+            mTagsOf.put(mUntagged.get(i), null);
         }
+        buildClusters();
     }
 
     @Override
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.MediaColumns;
+import android.provider.MediaStore.Video;
+
+import com.android.gallery3d.app.GalleryApp;
+import com.android.gallery3d.util.ThreadPool.Job;
+import com.android.gallery3d.util.ThreadPool.JobContext;
+
+import java.util.ArrayList;
+
+/**
+ * Puts the thumbnails of media items into the ImageCacheService ahead of
+ * time, so they don't have to be generated when they are first shown.
+ */
+public class ThumbnailWarmer {
+    private static final String TAG = "ThumbnailWarmer";
+
+    private static final String[] COUNT_PROJECTION = {"count(*)"};
+    private static final String[] GENERATION_PROJECTION = {"count(*)",
+            "max(" + MediaColumns._ID + ")", "max(" + MediaColumns.DATE_MODIFIED + ")"};
+
+    // The image was already in the cache.
+    public static final int RESULT_CACHED = 0;
+    // The image was generated and put into the cache.
+    public static final int RESULT_GENERATED = 1;
+    // The image failed to decode.
+    public static final int RESULT_FAILED = 2;
+    // The image is never cached (like the thumbnail of a DRM image).
+    public static final int RESULT_SKIPPED = 3;
+
+    private ThumbnailWarmer() {
+    }
+
+    /**
+     * Makes sure the image of the given type (TYPE_THUMBNAIL or
+     * TYPE_MICROTHUMBNAIL) of the item is in the ImageCacheService. The
+     * cached data is not decoded, and the generated bitmap is not kept in
+     * the BitmapMemoryCache.
+     */
+    public static int warmUp(JobContext jc, MediaItem item, int type) {
+        Job<Bitmap> job = item.requestImage(type);
+        if (!(job instanceof ImageCacheRequest)) return RESULT_FAILED;
+
+        ImageCacheRequest request = (ImageCacheRequest) job;
+        request.setWarmUp(true);
+        Bitmap bitmap = request.run(jc);
+        if (request.isCacheHit()) return RESULT_CACHED;
+        if (request.isSkipped()) return RESULT_SKIPPED;
+        if (bitmap == null) return RESULT_FAILED;
+        // The bitmap is not shared with anyone, and the pool would only keep
+        // it from being collected.
+        bitmap.recycle();
+        return RESULT_GENERATED;
+    }
+
+    /**
+     * Returns a string which changes when local images or videos are added,
+     * removed or modified, or null if the MediaStore can't be queried.
+     */
+    public static String getMediaGeneration(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        StringBuilder generation = new StringBuilder(MediaStore.getVersion(context));
+        Uri[] uris = {Images.Media.EXTERNAL_CONTENT_URI, Video.Media.EXTERNAL_CONTENT_URI};
+        for (Uri uri : uris) {
+            Cursor cursor = resolver.query(uri, GENERATION_PROJECTION, null, null, null);
+            if (cursor == null) {
+                Log.w(TAG, "query fail: " + uri);
+                return null;
+            }
+            try {
+                if (!cursor.moveToNext()) return null;
+                generation.append(':').append(cursor.getInt(0))
+                        .append(':').append(cursor.getLong(1))
+                        .append(':').append(cursor.getLong(2));
+            } finally {
+                cursor.close();
+            }
+        }
+        return generation.toString();
+    }
+
+    /**
+     * Returns the number of local images (or videos) with an id above afterId,
+     * or 0 if the MediaStore can't be queried.
+     */
+    public static int getItemCount(GalleryApp app, boolean isImage, int afterId) {
+        Uri uri = isImage ? Images.Media.EXTERNAL_CONTENT_URI : Video.Media.EXTERNAL_CONTENT_URI;
+        Cursor cursor = app.getContentResolver().query(uri, COUNT_PROJECTION,
+                MediaColumns._ID + " > ?", new String[] {String.valueOf(afterId)}, null);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + uri);
+            return 0;
+        }
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns up to count local images (or videos) with an id above afterId,
+     * in the order of their ids. The items are read from the MediaStore
+     * directly, so the albums shown by the app are not reloaded.
+     */
+    public static ArrayList<LocalMediaItem> getItems(GalleryApp app, boolean isImage,
+            int afterId, int count) {
+        Uri baseUri;
+        String[] projection;
+        Path itemPath;
+        if (isImage) {
+            baseUri = Images.Media.EXTERNAL_CONTENT_URI;
+            projection = LocalImage.PROJECTION;
+            itemPath = LocalImage.ITEM_PATH;
+        } else {
+            baseUri = Video.Media.EXTERNAL_CONTENT_URI;
+            projection = LocalVideo.PROJECTION;
+            itemPath = LocalVideo.ITEM_PATH;
+        }
+
+        ArrayList<LocalMediaItem> list = new ArrayList<LocalMediaItem>();
+        Uri uri = baseUri.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(count)).build();
+        Cursor cursor = app.getContentResolver().query(uri, projection,
+                MediaColumns._ID + " > ?", new String[] {String.valueOf(afterId)},
+                MediaColumns._ID);
+        if (cursor == null) {
+            Log.w(TAG, "query fail: " + uri);
+            return list;
+        }
+        DataManager dataManager = app.getDataManager();
+        try {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);  // _id must be in the first column
+                list.add((LocalMediaItem) LocalAlbum.loadOrUpdateItem(
+                        itemPath.getChild(id), cursor, dataManager, app, isImage));
+            }
+        } finally {
+            cursor.close();
+        }
+        return list;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.android.gallery3d.common.BitmapUtils;
+import com.android.gallery3d.data.BytesBufferPool.BytesBuffer;
+import com.android.photos.data.GalleryBitmapPool;
+
+/**
+ * Keeps the tiles decoded by TileImageView on the disk, so a large image
+ * which is opened again doesn't have to be decoded from the original file.
+ *
+ * A tile is identified by the path and the modification time of the image,
+ * and by its level and position in the tile pyramid. The tiles are kept in
+ * their own BlobCache within a byte budget, and the least recently used
+ * ones are dropped first. Only the down-sampled levels are cached: they are
+ * the most expensive ones to decode, and the full-resolution tiles don't
+ * lose quality to the JPEG compression.
+ */
+public class TileCacheService {
+    @SuppressWarnings("unused")
+    private static final String TAG = "TileCacheService";
+
+    private static final String TILE_CACHE_FILE = "tilecache";
+    private static final int TILE_CACHE_MAX_ENTRIES = 10000;
+    private static final int TILE_CACHE_MAX_BYTES = 100 * 1024 * 1024;
+    private static final int TILE_CACHE_VERSION = 1;
+
+    private static final int TILE_COMPRESS_QUALITY = 90;
+
+    // The smallest level which is cached.
+    public static final int MIN_LEVEL = 1;
+
+    // The position of a tile (in tiles) and its level are packed into the
+    // type of the ImageCacheService key.
+    private static final int LEVEL_BITS = 4;
+    private static final int POSITION_BITS = 13;
+
+    private final Context mContext;
+    private ImageCacheService mCache;
+
+    public TileCacheService(Context context) {
+        mContext = context;
+    }
+
+    // The cache file is opened by the first tile decoder which uses it, so
+    // the main thread doesn't wait for the file I/O.
+    private synchronized ImageCacheService getCache() {
+        if (mCache == null) {
+            mCache = new ImageCacheService(mContext, TILE_CACHE_FILE,
+                    TILE_CACHE_MAX_ENTRIES, TILE_CACHE_MAX_BYTES, TILE_CACHE_VERSION);
+        }
+        return mCache;
+    }
+
+    public static boolean isCacheable(int level, int x, int y, int tileSize) {
+        if (level < MIN_LEVEL || level >= (1 << LEVEL_BITS)) return false;
+        int size = tileSize << level;
+        return x / size < (1 << POSITION_BITS) && y / size < (1 << POSITION_BITS);
+    }
+
+    /**
+     * Returns the tile at (x, y) of the given level (as in
+     * TileImageView.TileSource.getTile), or null if it's not cached. The
+     * tile is decoded into <code>reuse</code> if possible, otherwise
+     * <code>reuse</code> is put back into the GalleryBitmapPool.
+     */
+    public Bitmap getTile(Path path, long timeModified, int level, int x, int y,
+            int tileSize, Bitmap reuse) {
+        Bitmap bitmap = decodeTile(path, timeModified, level, x, y, tileSize, reuse);
+        if (reuse != null && bitmap != reuse) GalleryBitmapPool.getInstance().put(reuse);
+        return bitmap;
+    }
+
+    private Bitmap decodeTile(Path path, long timeModified, int level, int x, int y,
+            int tileSize, Bitmap reuse) {
+        if (!isCacheable(level, x, y, tileSize)) return null;
+        int type = makeType(level, x, y, tileSize);
+        BytesBufferPool bufferPool = MediaItem.getBytesBufferPool();
+        BytesBuffer buffer = bufferPool.get();
+        try {
+            if (!getCache().getImageData(path, timeModified, type, buffer)) return null;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inBitmap = reuse;
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeByteArray(
+                        buffer.data, buffer.offset, buffer.length, options);
+            } catch (IllegalArgumentException e) {
+                // The reused bitmap doesn't fit.
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeByteArray(
+                        buffer.data, buffer.offset, buffer.length, options);
+            }
+            if (bitmap != null && (bitmap.getWidth() != tileSize
+                    || bitmap.getHeight() != tileSize)) {
+                if (bitmap != reuse) GalleryBitmapPool.getInstance().put(bitmap);
+                return null;
+            }
+            return bitmap;
+        } finally {
+            bufferPool.recycle(buffer);
+        }
+    }
+
+    public void putTile(Path path, long timeModified, int level, int x, int y,
+            int tileSize, Bitmap tile) {
+        if (!isCacheable(level, x, y, tileSize)) return;
+        byte[] data = BitmapUtils.compressToBytes(tile, TILE_COMPRESS_QUALITY);
+        getCache().putImageData(path, timeModified, makeType(level, x, y, tileSize), data);
+    }
+
+    private static int makeType(int level, int x, int y, int tileSize) {
+        int size = tileSize << level;
+        return (((x / size) << POSITION_BITS | (y / size)) << LEVEL_BITS) | level;
+    }
+}
@@ -23,11 +23,17 @@ import android.text.format.DateUtils;
 import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.GalleryUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Set;
 
-public class TimeClustering extends Clustering {
+// The items are kept in parallel arrays sorted from the newest to the oldest,
+// and a cluster is a range of these arrays, so no object is allocated per
+// item. The paths of a cluster and its caption are only created when they
+// are asked for.
+public class TimeClustering extends Clustering implements IncrementalClustering {
     @SuppressWarnings("unused")
     private static final String TAG = "TimeClustering";
 
@@ -68,9 +74,26 @@ public class TimeClustering extends Clustering {
     private static final int PARTITION_CLUSTER_SPLIT_TIME_FACTOR = 2;
 
     private Context mContext;
-    private ArrayList<Cluster> mClusters;
-    private String[] mNames;
-    private Cluster mCurrCluster;
+
+    // The items, sorted from the newest to the oldest.
+    private int mCount;
+    private Path[] mPaths = new Path[0];
+    private long[] mDates = new long[0];
+    private double[] mLats = new double[0];
+    private double[] mLngs = new double[0];
+
+    // The clusters, in the same order as the items. Cluster i contains the
+    // items from mClusterEnd[i - 1] (or 0) to mClusterEnd[i] - 1.
+    private int mClusterCount;
+    private int[] mClusterEnd = new int[0];
+    private long[] mClusterIds = new long[0];
+    private boolean[] mGeographicallySeparatedFromPrevCluster = new boolean[0];
+    // Created on demand, and reset when the items of the cluster change.
+    private ArrayList<Path>[] mClusterPaths = newPathListArray(0);
+    private Caption[] mCaptions = new Caption[0];
+
+    // The id of the next new cluster, for update().
+    private long mNextClusterId;
 
     private long mClusterSplitTime =
             (MIN_CLUSTER_SPLIT_TIME_IN_MS + MAX_CLUSTER_SPLIT_TIME_IN_MS) / 2;
@@ -79,57 +102,59 @@ public class TimeClustering extends Clustering {
     private int mMinClusterSize = (MIN_MIN_CLUSTER_SIZE + MAX_MIN_CLUSTER_SIZE) / 2;
     private int mMaxClusterSize = (MIN_MAX_CLUSTER_SIZE + MAX_MAX_CLUSTER_SIZE) / 2;
 
-
-    private static final Comparator<SmallItem> sDateComparator =
-            new DateComparator();
-
-    private static class DateComparator implements Comparator<SmallItem> {
-        @Override
-        public int compare(SmallItem item1, SmallItem item2) {
-            return -Utils.compare(item1.dateInMs, item2.dateInMs);
-        }
-    }
-
     public TimeClustering(Context context) {
         mContext = context;
-        mClusters = new ArrayList<Cluster>();
-        mCurrCluster = new Cluster();
     }
 
     @Override
     public void run(MediaSet baseSet) {
         final int total = baseSet.getTotalMediaItemCount();
-        final SmallItem[] buf = new SmallItem[total];
+        final Path[] paths = new Path[total];
+        final long[] dates = new long[total];
+        final double[] lats = new double[total];
+        final double[] lngs = new double[total];
         final double[] latLng = new double[2];
 
         baseSet.enumerateTotalMediaItems(new MediaSet.ItemConsumer() {
             @Override
             public void consume(int index, MediaItem item) {
                 if (index < 0 || index >= total) return;
-                SmallItem s = new SmallItem();
-                s.path = item.getPath();
-                s.dateInMs = item.getDateInMs();
+                paths[index] = item.getPath();
+                dates[index] = item.getDateInMs();
                 item.getLatLong(latLng);
-                s.lat = latLng[0];
-                s.lng = latLng[1];
-                buf[index] = s;
+                lats[index] = latLng[0];
+                lngs[index] = latLng[1];
             }
         });
 
-        ArrayList<SmallItem> items = new ArrayList<SmallItem>(total);
+        int n = 0;
         for (int i = 0; i < total; i++) {
-            if (buf[i] != null) {
-                items.add(buf[i]);
-            }
+            if (paths[i] == null) continue;
+            paths[n] = paths[i];
+            dates[n] = dates[i];
+            lats[n] = lats[i];
+            lngs[n] = lngs[i];
+            n++;
         }
 
-        Collections.sort(items, sDateComparator);
+        int[] order = sortByDateDescending(dates, n);
+        mCount = n;
+        mPaths = new Path[n];
+        mDates = new long[n];
+        mLats = new double[n];
+        mLngs = new double[n];
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            mPaths[i] = paths[j];
+            mDates[i] = dates[j];
+            mLats[i] = lats[j];
+            mLngs[i] = lngs[j];
+        }
 
-        int n = items.size();
         long minTime = 0;
         long maxTime = 0;
         for (int i = 0; i < n; i++) {
-            long t = items.get(i).dateInMs;
+            long t = mDates[i];
             if (t == 0) continue;
             if (minTime == 0) {
                 minTime = maxTime = t;
@@ -140,38 +165,142 @@ public class TimeClustering extends Clustering {
         }
 
         setTimeRange(maxTime - minTime, n);
+        compute();
+
+        for (int i = 0; i < mClusterCount; i++) {
+            mClusterIds[i] = i;
+        }
+        mNextClusterId = mClusterCount;
+    }
+
+    // The existing clusters are never merged or split here: a removed item
+    // is taken out of its cluster, and an added item joins the nearest
+    // cluster in time if it's close enough, or starts a new one. The split
+    // time computed by run() is kept.
+    @Override
+    public void update(ArrayList<MediaItem> added, Set<Path> removed) {
+        if (!removed.isEmpty()) removeItems(removed);
 
+        int n = added.size();
+        if (n == 0) return;
+        long[] dates = new long[n];
         for (int i = 0; i < n; i++) {
-            compute(items.get(i));
+            dates[i] = added.get(i).getDateInMs();
         }
+        int[] order = sortByDateDescending(dates, n);
+        double[] latLng = new double[2];
+        for (int i = 0; i < n; i++) {
+            MediaItem item = added.get(order[i]);
+            item.getLatLong(latLng);
+            insertItem(item.getPath(), dates[order[i]], latLng[0], latLng[1]);
+        }
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(mClusterSplitTime);
+        out.writeLong(mNextClusterId);
+        out.writeInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            out.writeUTF(mPaths[i].toString());
+            out.writeLong(mDates[i]);
+            out.writeDouble(mLats[i]);
+            out.writeDouble(mLngs[i]);
+        }
+        out.writeInt(mClusterCount);
+        for (int i = 0; i < mClusterCount; i++) {
+            out.writeInt(mClusterEnd[i]);
+            out.writeLong(mClusterIds[i]);
+            out.writeBoolean(mGeographicallySeparatedFromPrevCluster[i]);
+        }
+    }
 
-        compute(null);
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        mClusterSplitTime = in.readLong();
+        mNextClusterId = in.readLong();
+        int n = in.readInt();
+        if (n < 0) throw new IOException("bad item count: " + n);
+        mCount = n;
+        mPaths = new Path[n];
+        mDates = new long[n];
+        mLats = new double[n];
+        mLngs = new double[n];
+        for (int i = 0; i < n; i++) {
+            mPaths[i] = Path.fromString(in.readUTF());
+            mDates[i] = in.readLong();
+            mLats[i] = in.readDouble();
+            mLngs[i] = in.readDouble();
+        }
 
-        int m = mClusters.size();
-        mNames = new String[m];
+        int m = in.readInt();
+        if (m < 0) throw new IOException("bad cluster count: " + m);
+        mClusterCount = 0;
+        ensureClusterCapacity(m);
+        int lastEnd = 0;
         for (int i = 0; i < m; i++) {
-            mNames[i] = mClusters.get(i).generateCaption(mContext);
+            int end = in.readInt();
+            if (end <= lastEnd || end > n) throw new IOException("bad cluster end: " + end);
+            mClusterEnd[i] = end;
+            mClusterIds[i] = in.readLong();
+            mGeographicallySeparatedFromPrevCluster[i] = in.readBoolean();
+            lastEnd = end;
         }
+        if (lastEnd != n) throw new IOException("bad cluster end: " + lastEnd);
+        mClusterCount = m;
     }
 
     @Override
     public int getNumberOfClusters() {
-        return mClusters.size();
+        return mClusterCount;
     }
 
     @Override
     public ArrayList<Path> getCluster(int index) {
-        ArrayList<SmallItem> items = mClusters.get(index).getItems();
-        ArrayList<Path> result = new ArrayList<Path>(items.size());
-        for (int i = 0, n = items.size(); i < n; i++) {
-            result.add(items.get(i).path);
+        ArrayList<Path> paths = mClusterPaths[index];
+        if (paths == null) {
+            int start = getClusterStart(index);
+            int end = mClusterEnd[index];
+            paths = new ArrayList<Path>(end - start);
+            for (int i = start; i < end; i++) {
+                paths.add(mPaths[i]);
+            }
+            mClusterPaths[index] = paths;
         }
-        return result;
+        return paths;
     }
 
     @Override
     public String getClusterName(int index) {
-        return mNames[index];
+        return getCaption(index).get();
+    }
+
+    @Override
+    public long getClusterId(int index) {
+        return mClusterIds[index];
+    }
+
+    // Returns the caption of the cluster, which is only formatted when
+    // Caption.get() is called.
+    public Caption getCaption(int index) {
+        Caption caption = mCaptions[index];
+        if (caption == null) {
+            long minTimestamp = 0;
+            long maxTimestamp = 0;
+            for (int i = getClusterStart(index), end = mClusterEnd[index]; i < end; i++) {
+                long t = mDates[i];
+                if (t == 0) continue;
+                if (minTimestamp == 0) {
+                    minTimestamp = maxTimestamp = t;
+                } else {
+                    minTimestamp = Math.min(minTimestamp, t);
+                    maxTimestamp = Math.max(maxTimestamp, t);
+                }
+            }
+            caption = new Caption(mContext, minTimestamp, maxTimestamp);
+            mCaptions[index] = caption;
+        }
+        return caption;
     }
 
     private void setTimeRange(long timeRange, int numItems) {
@@ -189,99 +318,86 @@ public class TimeClustering extends Clustering {
         mMaxClusterSize = Utils.clamp(mMaxClusterSize, MIN_MAX_CLUSTER_SIZE, MAX_MAX_CLUSTER_SIZE);
     }
 
-    private void compute(SmallItem currentItem) {
-        if (currentItem != null) {
-            int numClusters = mClusters.size();
-            int numCurrClusterItems = mCurrCluster.size();
+    // Splits the sorted items into clusters. The current cluster is the
+    // range [start, end) of the items.
+    private void compute() {
+        mClusterCount = 0;
+        int start = 0;
+        int end = 0;
+        boolean separated = false;
+
+        for (int i = 0; i < mCount; i++) {
+            int numCurrClusterItems = end - start;
             boolean geographicallySeparateItem = false;
             boolean itemAddedToCurrentCluster = false;
 
             // Determine if this item should go in the current cluster or be the
             // start of a new cluster.
             if (numCurrClusterItems == 0) {
-                mCurrCluster.addItem(currentItem);
+                end = i + 1;
+                continue;
+            }
+
+            int prevItem = end - 1;
+            if (isGeographicallySeparated(prevItem, i)) {
+                addCluster(end, separated);
+                geographicallySeparateItem = true;
+            } else if (numCurrClusterItems > mMaxClusterSize) {
+                splitAndAddCluster(start, end, separated);
+            } else if (timeDistance(prevItem, i) < mClusterSplitTime) {
+                end = i + 1;
+                itemAddedToCurrentCluster = true;
+            } else if (mClusterCount > 0 && numCurrClusterItems < mMinClusterSize
+                    && !separated) {
+                mergeAndAddCluster(start, end, separated);
             } else {
-                SmallItem prevItem = mCurrCluster.getLastItem();
-                if (isGeographicallySeparated(prevItem, currentItem)) {
-                    mClusters.add(mCurrCluster);
-                    geographicallySeparateItem = true;
-                } else if (numCurrClusterItems > mMaxClusterSize) {
-                    splitAndAddCurrentCluster();
-                } else if (timeDistance(prevItem, currentItem) < mClusterSplitTime) {
-                    mCurrCluster.addItem(currentItem);
-                    itemAddedToCurrentCluster = true;
-                } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
-                        && !mCurrCluster.mGeographicallySeparatedFromPrevCluster) {
-                    mergeAndAddCurrentCluster();
-                } else {
-                    mClusters.add(mCurrCluster);
-                }
+                addCluster(end, separated);
+            }
 
-                // Creating a new cluster and adding the current item to it.
-                if (!itemAddedToCurrentCluster) {
-                    mCurrCluster = new Cluster();
-                    if (geographicallySeparateItem) {
-                        mCurrCluster.mGeographicallySeparatedFromPrevCluster = true;
-                    }
-                    mCurrCluster.addItem(currentItem);
-                }
+            // Creating a new cluster and adding the current item to it.
+            if (!itemAddedToCurrentCluster) {
+                start = i;
+                end = i + 1;
+                separated = geographicallySeparateItem;
             }
-        } else {
-            if (mCurrCluster.size() > 0) {
-                int numClusters = mClusters.size();
-                int numCurrClusterItems = mCurrCluster.size();
-
-                // The last cluster may potentially be too big or too small.
-                if (numCurrClusterItems > mMaxClusterSize) {
-                    splitAndAddCurrentCluster();
-                } else if (numClusters > 0 && numCurrClusterItems < mMinClusterSize
-                        && !mCurrCluster.mGeographicallySeparatedFromPrevCluster) {
-                    mergeAndAddCurrentCluster();
-                } else {
-                    mClusters.add(mCurrCluster);
-                }
-                mCurrCluster = new Cluster();
+        }
+
+        int numCurrClusterItems = end - start;
+        if (numCurrClusterItems > 0) {
+            // The last cluster may potentially be too big or too small.
+            if (numCurrClusterItems > mMaxClusterSize) {
+                splitAndAddCluster(start, end, separated);
+            } else if (mClusterCount > 0 && numCurrClusterItems < mMinClusterSize
+                    && !separated) {
+                mergeAndAddCluster(start, end, separated);
+            } else {
+                addCluster(end, separated);
             }
         }
     }
 
-    private void splitAndAddCurrentCluster() {
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
-        int numCurrClusterItems = mCurrCluster.size();
-        int secondPartitionStartIndex = getPartitionIndexForCurrentCluster();
+    private void splitAndAddCluster(int start, int end, boolean separated) {
+        int secondPartitionStartIndex = getPartitionIndex(start, end);
         if (secondPartitionStartIndex != -1) {
-            Cluster partitionedCluster = new Cluster();
-            for (int j = 0; j < secondPartitionStartIndex; j++) {
-                partitionedCluster.addItem(currClusterItems.get(j));
-            }
-            mClusters.add(partitionedCluster);
-            partitionedCluster = new Cluster();
-            for (int j = secondPartitionStartIndex; j < numCurrClusterItems; j++) {
-                partitionedCluster.addItem(currClusterItems.get(j));
-            }
-            mClusters.add(partitionedCluster);
+            addCluster(secondPartitionStartIndex, false);
+            addCluster(end, false);
         } else {
-            mClusters.add(mCurrCluster);
+            addCluster(end, separated);
         }
     }
 
-    private int getPartitionIndexForCurrentCluster() {
+    // Returns the index of the first item of the second partition of the
+    // cluster [start, end), or -1 if it shouldn't be split.
+    private int getPartitionIndex(int start, int end) {
         int partitionIndex = -1;
         float largestChange = MIN_PARTITION_CHANGE_FACTOR;
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
-        int numCurrClusterItems = mCurrCluster.size();
         int minClusterSize = mMinClusterSize;
 
-        // Could be slightly more efficient here but this code seems cleaner.
-        if (numCurrClusterItems > minClusterSize + 1) {
-            for (int i = minClusterSize; i < numCurrClusterItems - minClusterSize; i++) {
-                SmallItem prevItem = currClusterItems.get(i - 1);
-                SmallItem currItem = currClusterItems.get(i);
-                SmallItem nextItem = currClusterItems.get(i + 1);
-
-                long timeNext = nextItem.dateInMs;
-                long timeCurr = currItem.dateInMs;
-                long timePrev = prevItem.dateInMs;
+        if (end - start > minClusterSize + 1) {
+            for (int i = start + minClusterSize; i < end - minClusterSize; i++) {
+                long timeNext = mDates[i + 1];
+                long timeCurr = mDates[i];
+                long timePrev = mDates[i - 1];
 
                 if (timeNext == 0 || timeCurr == 0 || timePrev == 0) continue;
 
@@ -290,10 +406,10 @@ public class TimeClustering extends Clustering {
 
                 float change = Math.max(diff1 / (diff2 + 0.01f), diff2 / (diff1 + 0.01f));
                 if (change > largestChange) {
-                    if (timeDistance(currItem, prevItem) > mLargeClusterSplitTime) {
+                    if (diff2 > mLargeClusterSplitTime) {
                         partitionIndex = i;
                         largestChange = change;
-                    } else if (timeDistance(nextItem, currItem) > mLargeClusterSplitTime) {
+                    } else if (diff1 > mLargeClusterSplitTime) {
                         partitionIndex = i + 1;
                         largestChange = change;
                     }
@@ -303,137 +419,331 @@ public class TimeClustering extends Clustering {
         return partitionIndex;
     }
 
-    private void mergeAndAddCurrentCluster() {
-        int numClusters = mClusters.size();
-        Cluster prevCluster = mClusters.get(numClusters - 1);
-        ArrayList<SmallItem> currClusterItems = mCurrCluster.getItems();
-        int numCurrClusterItems = mCurrCluster.size();
-        if (prevCluster.size() < mMinClusterSize) {
-            for (int i = 0; i < numCurrClusterItems; i++) {
-                prevCluster.addItem(currClusterItems.get(i));
-            }
-            mClusters.set(numClusters - 1, prevCluster);
+    private void mergeAndAddCluster(int start, int end, boolean separated) {
+        int last = mClusterCount - 1;
+        if (mClusterEnd[last] - getClusterStart(last) < mMinClusterSize) {
+            // The previous cluster ends where this one starts.
+            mClusterEnd[last] = end;
         } else {
-            mClusters.add(mCurrCluster);
+            addCluster(end, separated);
         }
     }
 
-    // Returns true if a, b are sufficiently geographically separated.
-    private static boolean isGeographicallySeparated(SmallItem itemA, SmallItem itemB) {
-        if (!GalleryUtils.isValidLocation(itemA.lat, itemA.lng)
-                || !GalleryUtils.isValidLocation(itemB.lat, itemB.lng)) {
-            return false;
-        }
+    private void addCluster(int end, boolean separated) {
+        ensureClusterCapacity(mClusterCount + 1);
+        mClusterEnd[mClusterCount] = end;
+        mGeographicallySeparatedFromPrevCluster[mClusterCount] = separated;
+        mClusterCount++;
+    }
 
-        double distance = GalleryUtils.fastDistanceMeters(
-            Math.toRadians(itemA.lat),
-            Math.toRadians(itemA.lng),
-            Math.toRadians(itemB.lat),
-            Math.toRadians(itemB.lng));
-        return (GalleryUtils.toMile(distance) > GEOGRAPHIC_DISTANCE_CUTOFF_IN_MILES);
+    private int getClusterStart(int index) {
+        return index == 0 ? 0 : mClusterEnd[index - 1];
     }
 
-    // Returns the time interval between the two items in milliseconds.
-    private static long timeDistance(SmallItem a, SmallItem b) {
-        return Math.abs(a.dateInMs - b.dateInMs);
+    // Removes the items and the clusters which become empty.
+    private void removeItems(Set<Path> removed) {
+        int dst = 0;
+        int src = 0;
+        int kept = 0;
+        for (int c = 0; c < mClusterCount; c++) {
+            int clusterStart = dst;
+            boolean changed = false;
+            for (int end = mClusterEnd[c]; src < end; src++) {
+                if (removed.contains(mPaths[src])) {
+                    changed = true;
+                    continue;
+                }
+                mPaths[dst] = mPaths[src];
+                mDates[dst] = mDates[src];
+                mLats[dst] = mLats[src];
+                mLngs[dst] = mLngs[src];
+                dst++;
+            }
+            if (dst == clusterStart) continue;
+            mClusterEnd[kept] = dst;
+            mClusterIds[kept] = mClusterIds[c];
+            mGeographicallySeparatedFromPrevCluster[kept] =
+                    mGeographicallySeparatedFromPrevCluster[c];
+            mClusterPaths[kept] = changed ? null : mClusterPaths[c];
+            mCaptions[kept] = changed ? null : mCaptions[c];
+            kept++;
+        }
+        for (int i = dst; i < mCount; i++) {
+            mPaths[i] = null;
+        }
+        for (int i = kept; i < mClusterCount; i++) {
+            mClusterPaths[i] = null;
+            mCaptions[i] = null;
+        }
+        mCount = dst;
+        mClusterCount = kept;
     }
-}
 
-class SmallItem {
-    Path path;
-    long dateInMs;
-    double lat, lng;
-}
+    private void insertItem(Path path, long date, double lat, double lng) {
+        int cluster = findClusterFor(date, lat, lng);
 
-class Cluster {
-    @SuppressWarnings("unused")
-    private static final String TAG = "Cluster";
-    private static final String MMDDYY_FORMAT = "MMddyy";
+        // Keep the items sorted from the newest to the oldest.
+        int lo = getClusterStart(cluster);
+        int hi = mClusterEnd[cluster];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mDates[mid] >= date) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
 
-    // This is for TimeClustering only.
-    public boolean mGeographicallySeparatedFromPrevCluster = false;
+        ensureItemCapacity(mCount + 1);
+        int tail = mCount - lo;
+        System.arraycopy(mPaths, lo, mPaths, lo + 1, tail);
+        System.arraycopy(mDates, lo, mDates, lo + 1, tail);
+        System.arraycopy(mLats, lo, mLats, lo + 1, tail);
+        System.arraycopy(mLngs, lo, mLngs, lo + 1, tail);
+        mPaths[lo] = path;
+        mDates[lo] = date;
+        mLats[lo] = lat;
+        mLngs[lo] = lng;
+        mCount++;
+
+        for (int i = cluster; i < mClusterCount; i++) {
+            mClusterEnd[i]++;
+        }
+        mClusterPaths[cluster] = null;
+        mCaptions[cluster] = null;
+    }
+
+    // Returns the cluster the item should be added to. A new empty cluster is
+    // created if no existing cluster is close enough.
+    private int findClusterFor(long date, double lat, double lng) {
+        // The clusters are sorted from the newest to the oldest. Find the
+        // first one whose oldest item is not newer than the item.
+        int n = mClusterCount;
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mDates[mClusterEnd[mid] - 1] > date) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        // The item is within the time range of that cluster.
+        if (lo < n && mDates[getClusterStart(lo)] >= date) return lo;
 
-    private ArrayList<SmallItem> mItems = new ArrayList<SmallItem>();
+        // Otherwise it's between cluster lo - 1 and cluster lo.
+        int nearest = -1;
+        int nearestItem = -1;
+        if (lo > 0) {
+            nearest = lo - 1;
+            nearestItem = mClusterEnd[lo - 1] - 1;
+        }
+        if (lo < n) {
+            int next = getClusterStart(lo);
+            if (nearestItem == -1 || Math.abs(mDates[next] - date)
+                    < Math.abs(mDates[nearestItem] - date)) {
+                nearest = lo;
+                nearestItem = next;
+            }
+        }
+        if (nearest != -1 && Math.abs(mDates[nearestItem] - date) < mClusterSplitTime
+                && !isGeographicallySeparated(mLats[nearestItem], mLngs[nearestItem],
+                        lat, lng)) {
+            return nearest;
+        }
 
-    public Cluster() {
+        ensureClusterCapacity(mClusterCount + 1);
+        int tail = mClusterCount - lo;
+        System.arraycopy(mClusterEnd, lo, mClusterEnd, lo + 1, tail);
+        System.arraycopy(mClusterIds, lo, mClusterIds, lo + 1, tail);
+        System.arraycopy(mGeographicallySeparatedFromPrevCluster, lo,
+                mGeographicallySeparatedFromPrevCluster, lo + 1, tail);
+        System.arraycopy(mClusterPaths, lo, mClusterPaths, lo + 1, tail);
+        System.arraycopy(mCaptions, lo, mCaptions, lo + 1, tail);
+        mClusterEnd[lo] = getClusterStart(lo);
+        mClusterIds[lo] = mNextClusterId++;
+        mGeographicallySeparatedFromPrevCluster[lo] = false;
+        mClusterPaths[lo] = null;
+        mCaptions[lo] = null;
+        mClusterCount++;
+        return lo;
     }
 
-    public void addItem(SmallItem item) {
-        mItems.add(item);
+    private void ensureItemCapacity(int capacity) {
+        if (mPaths.length >= capacity) return;
+        int size = Math.max(capacity, mPaths.length + (mPaths.length >> 1));
+        Path[] paths = new Path[size];
+        long[] dates = new long[size];
+        double[] lats = new double[size];
+        double[] lngs = new double[size];
+        System.arraycopy(mPaths, 0, paths, 0, mCount);
+        System.arraycopy(mDates, 0, dates, 0, mCount);
+        System.arraycopy(mLats, 0, lats, 0, mCount);
+        System.arraycopy(mLngs, 0, lngs, 0, mCount);
+        mPaths = paths;
+        mDates = dates;
+        mLats = lats;
+        mLngs = lngs;
     }
 
-    public int size() {
-        return mItems.size();
+    private void ensureClusterCapacity(int capacity) {
+        if (mClusterEnd.length >= capacity) return;
+        int size = Math.max(capacity, Math.max(16, mClusterEnd.length * 2));
+        int[] ends = new int[size];
+        long[] ids = new long[size];
+        boolean[] separated = new boolean[size];
+        ArrayList<Path>[] paths = newPathListArray(size);
+        Caption[] captions = new Caption[size];
+        System.arraycopy(mClusterEnd, 0, ends, 0, mClusterCount);
+        System.arraycopy(mClusterIds, 0, ids, 0, mClusterCount);
+        System.arraycopy(mGeographicallySeparatedFromPrevCluster, 0, separated, 0,
+                mClusterCount);
+        System.arraycopy(mClusterPaths, 0, paths, 0, mClusterCount);
+        System.arraycopy(mCaptions, 0, captions, 0, mClusterCount);
+        mClusterEnd = ends;
+        mClusterIds = ids;
+        mGeographicallySeparatedFromPrevCluster = separated;
+        mClusterPaths = paths;
+        mCaptions = captions;
     }
 
-    public SmallItem getLastItem() {
-        int n = mItems.size();
-        return (n == 0) ? null : mItems.get(n - 1);
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Path>[] newPathListArray(int size) {
+        return new ArrayList[size];
     }
 
-    public ArrayList<SmallItem> getItems() {
-        return mItems;
+    // Returns the indexes of the first n dates, ordered from the newest to
+    // the oldest. The sort is stable, and the input is usually already
+    // sorted, in which case it takes linear time.
+    private static int[] sortByDateDescending(long[] dates, int n) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int[] temp = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                if (mid == hi || dates[order[mid - 1]] >= dates[order[mid]]) {
+                    System.arraycopy(order, lo, temp, lo, hi - lo);
+                    continue;
+                }
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    temp[k++] = (dates[order[i]] >= dates[order[j]]) ? order[i++] : order[j++];
+                }
+                while (i < mid) temp[k++] = order[i++];
+                while (j < hi) temp[k++] = order[j++];
+            }
+            int[] swap = order;
+            order = temp;
+            temp = swap;
+        }
+        return order;
     }
 
-    public String generateCaption(Context context) {
-        int n = mItems.size();
-        long minTimestamp = 0;
-        long maxTimestamp = 0;
+    // Returns true if items a, b are sufficiently geographically separated.
+    private boolean isGeographicallySeparated(int a, int b) {
+        return isGeographicallySeparated(mLats[a], mLngs[a], mLats[b], mLngs[b]);
+    }
 
-        for (int i = 0; i < n; i++) {
-            long t = mItems.get(i).dateInMs;
-            if (t == 0) continue;
-            if (minTimestamp == 0) {
-                minTimestamp = maxTimestamp = t;
-            } else {
-                minTimestamp = Math.min(minTimestamp, t);
-                maxTimestamp = Math.max(maxTimestamp, t);
+    private static boolean isGeographicallySeparated(
+            double latA, double lngA, double latB, double lngB) {
+        if (!GalleryUtils.isValidLocation(latA, lngA)
+                || !GalleryUtils.isValidLocation(latB, lngB)) {
+            return false;
+        }
+
+        double distance = GalleryUtils.fastDistanceMeters(
+            Math.toRadians(latA),
+            Math.toRadians(lngA),
+            Math.toRadians(latB),
+            Math.toRadians(lngB));
+        return (GalleryUtils.toMile(distance) > GEOGRAPHIC_DISTANCE_CUTOFF_IN_MILES);
+    }
+
+    // Returns the time interval between items a and b in milliseconds.
+    private long timeDistance(int a, int b) {
+        return Math.abs(mDates[a] - mDates[b]);
+    }
+
+    // The caption of a cluster, formatted from its time range the first time
+    // it's shown.
+    public static class Caption {
+        private static final String MMDDYY_FORMAT = "MMddyy";
+
+        private final Context mContext;
+        private final long mMinTimestamp;
+        private final long mMaxTimestamp;
+        private volatile String mText;
+
+        Caption(Context context, long minTimestamp, long maxTimestamp) {
+            mContext = context;
+            mMinTimestamp = minTimestamp;
+            mMaxTimestamp = maxTimestamp;
+        }
+
+        public String get() {
+            String text = mText;
+            if (text == null) {
+                text = format(mContext, mMinTimestamp, mMaxTimestamp);
+                mText = text;
             }
+            return text;
         }
-        if (minTimestamp == 0) return "";
-
-        String caption;
-        String minDay = DateFormat.format(MMDDYY_FORMAT, minTimestamp)
-                .toString();
-        String maxDay = DateFormat.format(MMDDYY_FORMAT, maxTimestamp)
-                .toString();
-
-        if (minDay.substring(4).equals(maxDay.substring(4))) {
-            // The items are from the same year - show at least as
-            // much granularity as abbrev_all allows.
-            caption = DateUtils.formatDateRange(context, minTimestamp,
-                    maxTimestamp, DateUtils.FORMAT_ABBREV_ALL);
-
-            // Get a more granular date range string if the min and
-            // max timestamp are on the same day and from the
-            // current year.
-            if (minDay.equals(maxDay)) {
-                int flags = DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_DATE;
-                // Contains the year only if the date does not
-                // correspond to the current year.
-                String dateRangeWithOptionalYear = DateUtils.formatDateTime(
-                        context, minTimestamp, flags);
-                String dateRangeWithYear = DateUtils.formatDateTime(
-                        context, minTimestamp, flags | DateUtils.FORMAT_SHOW_YEAR);
-                if (!dateRangeWithOptionalYear.equals(dateRangeWithYear)) {
-                    // This means both dates are from the same year
-                    // - show the time.
-                    // Not enough room to display the time range.
-                    // Pick the mid-point.
-                    long midTimestamp = (minTimestamp + maxTimestamp) / 2;
-                    caption = DateUtils.formatDateRange(context, midTimestamp,
-                            midTimestamp, DateUtils.FORMAT_SHOW_TIME | flags);
+
+        private static String format(Context context, long minTimestamp,
+                long maxTimestamp) {
+            if (minTimestamp == 0) return "";
+
+            String caption;
+            String minDay = DateFormat.format(MMDDYY_FORMAT, minTimestamp)
+                    .toString();
+            String maxDay = DateFormat.format(MMDDYY_FORMAT, maxTimestamp)
+                    .toString();
+
+            if (minDay.substring(4).equals(maxDay.substring(4))) {
+                // The items are from the same year - show at least as
+                // much granularity as abbrev_all allows.
+                caption = DateUtils.formatDateRange(context, minTimestamp,
+                        maxTimestamp, DateUtils.FORMAT_ABBREV_ALL);
+
+                // Get a more granular date range string if the min and
+                // max timestamp are on the same day and from the
+                // current year.
+                if (minDay.equals(maxDay)) {
+                    int flags = DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_DATE;
+                    // Contains the year only if the date does not
+                    // correspond to the current year.
+                    String dateRangeWithOptionalYear = DateUtils.formatDateTime(
+                            context, minTimestamp, flags);
+                    String dateRangeWithYear = DateUtils.formatDateTime(
+                            context, minTimestamp, flags | DateUtils.FORMAT_SHOW_YEAR);
+                    if (!dateRangeWithOptionalYear.equals(dateRangeWithYear)) {
+                        // This means both dates are from the same year
+                        // - show the time.
+                        // Not enough room to display the time range.
+                        // Pick the mid-point.
+                        long midTimestamp = (minTimestamp + maxTimestamp) / 2;
+                        caption = DateUtils.formatDateRange(context, midTimestamp,
+                                midTimestamp, DateUtils.FORMAT_SHOW_TIME | flags);
+                    }
                 }
+            } else {
+                // The items are not from the same year - only show
+                // month and year.
+                int flags = DateUtils.FORMAT_NO_MONTH_DAY
+                        | DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_DATE;
+                caption = DateUtils.formatDateRange(context, minTimestamp,
+                        maxTimestamp, flags);
             }
-        } else {
-            // The items are not from the same year - only show
-            // month and year.
-            int flags = DateUtils.FORMAT_NO_MONTH_DAY
-                    | DateUtils.FORMAT_ABBREV_MONTH | DateUtils.FORMAT_SHOW_DATE;
-            caption = DateUtils.formatDateRange(context, minTimestamp,
-                    maxTimestamp, flags);
-        }
 
-        return caption;
+            return caption;
+        }
     }
 }
@@ -23,10 +23,16 @@ public class FadeInTexture extends FadeTexture implements Texture {
     @SuppressWarnings("unused")
     private static final String TAG = "FadeInTexture";
 
+    // A texture which can be drawn mixed with a color, like TiledTexture.
+    public interface Mixable extends Texture {
+        public void drawMixed(GLCanvas canvas, int color, float ratio,
+                int x, int y, int width, int height);
+    }
+
     private final int mColor;
-    private final TiledTexture mTexture;
+    private final Mixable mTexture;
 
-    public FadeInTexture(int color, TiledTexture texture) {
+    public FadeInTexture(int color, Mixable texture) {
         super(texture.getWidth(), texture.getHeight(), texture.isOpaque());
         mColor = color;
         mTexture = texture;
@@ -98,6 +98,12 @@ public interface GLCanvas {
     public abstract void drawMesh(BasicTexture tex, int x, int y, int xyBuffer,
             int uvBuffer, int indexBuffer, int indexCount);
 
+    // Draws triangles of the texture. The vertices are in the current
+    // coordinate space, and the texture coordinates are normalized to the
+    // texture size (getTextureWidth() x getTextureHeight()).
+    public abstract void drawTriangles(BasicTexture tex, java.nio.FloatBuffer xyBuffer,
+            java.nio.FloatBuffer uvBuffer, int vertexCount);
+
     // Draws the source rectangle part of the texture to the target rectangle.
     public abstract void drawTexture(BasicTexture texture, RectF source, RectF target);
 
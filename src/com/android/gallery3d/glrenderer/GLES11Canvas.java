@@ -91,6 +91,7 @@ public class GLES11Canvas implements GLCanvas {
     int mCountDrawLine;
     int mCountFillRect;
     int mCountDrawMesh;
+    int mCountDrawTriangles;
     int mCountTextureRect;
     int mCountTextureOES;
 
@@ -314,6 +315,34 @@ public class GLES11Canvas implements GLCanvas {
         mCountDrawMesh++;
     }
 
+    @Override
+    public void drawTriangles(BasicTexture tex, FloatBuffer xyBuffer, FloatBuffer uvBuffer,
+            int vertexCount) {
+        float alpha = mAlpha;
+        if (!bindTexture(tex)) return;
+
+        mGLState.setBlendEnabled(mBlendEnabled
+                && (!tex.isOpaque() || alpha < OPAQUE_ALPHA));
+        mGLState.setTextureAlpha(alpha);
+
+        // Reset the texture matrix. We will set our own texture coordinates
+        // below.
+        setTextureCoords(0, 0, 1, 1);
+
+        mGL.glLoadMatrixf(mMatrixValues, 0);
+
+        // The vertices are in client memory, so unbind the buffer object.
+        mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+        mGL.glVertexPointer(2, GL11.GL_FLOAT, 0, xyBuffer);
+        mGL.glTexCoordPointer(2, GL11.GL_FLOAT, 0, uvBuffer);
+        mGL.glDrawArrays(GL11.GL_TRIANGLES, 0, vertexCount);
+
+        mGL.glBindBuffer(GL11.GL_ARRAY_BUFFER, mBoxCoords);
+        mGL.glVertexPointer(2, GL11.GL_FLOAT, 0, 0);
+        mGL.glTexCoordPointer(2, GL11.GL_FLOAT, 0, 0);
+        mCountDrawTriangles++;
+    }
+
     // Transforms two points by the given matrix m. The result
     // {x1', y1', x2', y2'} are stored in mMapPointsBuffer and also returned.
     private float[] mapPoints(float m[], int x1, int y1, int x2, int y2) {
@@ -820,10 +849,11 @@ public class GLES11Canvas implements GLCanvas {
     @Override
     public void dumpStatisticsAndClear() {
         String line = String.format(
-                "MESH:%d, TEX_OES:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d",
-                mCountDrawMesh, mCountTextureRect, mCountTextureOES,
+                "MESH:%d, TRIANGLES:%d, TEX_OES:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d",
+                mCountDrawMesh, mCountDrawTriangles, mCountTextureRect, mCountTextureOES,
                 mCountFillRect, mCountDrawLine);
         mCountDrawMesh = 0;
+        mCountDrawTriangles = 0;
         mCountTextureRect = 0;
         mCountTextureOES = 0;
         mCountFillRect = 0;
@@ -245,6 +245,7 @@ public class GLES20Canvas implements GLCanvas {
 
     // Keep track of statistics for debugging
     private int mCountDrawMesh = 0;
+    private int mCountDrawTriangles = 0;
     private int mCountTextureRect = 0;
     private int mCountFillRect = 0;
     private int mCountDrawLine = 0;
@@ -754,6 +755,37 @@ public class GLES20Canvas implements GLCanvas {
         mCountDrawMesh++;
     }
 
+    @Override
+    public void drawTriangles(BasicTexture texture, FloatBuffer xyBuffer, FloatBuffer uvBuffer,
+            int vertexCount) {
+        prepareTexture(texture, mMeshProgram, mMeshParameters);
+
+        // The vertices are in client memory, no buffer object is bound.
+        int positionHandle = mMeshParameters[INDEX_POSITION].handle;
+        GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, xyBuffer);
+        checkError();
+        int texCoordHandle = mMeshParameters[INDEX_TEXTURE_COORD].handle;
+        GLES20.glVertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
+                false, VERTEX_STRIDE, uvBuffer);
+        checkError();
+
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        checkError();
+        GLES20.glEnableVertexAttribArray(texCoordHandle);
+        checkError();
+
+        setMatrix(mMeshParameters, 0, 0, 1, 1);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+        checkError();
+
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        checkError();
+        GLES20.glDisableVertexAttribArray(texCoordHandle);
+        checkError();
+        mCountDrawTriangles++;
+    }
+
     @Override
     public void drawMixed(BasicTexture texture, int toColor, float ratio, int x, int y, int w, int h) {
         copyTextureCoordinates(texture, mTempSourceRect);
@@ -819,9 +851,11 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void dumpStatisticsAndClear() {
-        String line = String.format("MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d", mCountDrawMesh,
-                mCountTextureRect, mCountFillRect, mCountDrawLine);
+        String line = String.format("MESH:%d, TRIANGLES:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d",
+                mCountDrawMesh, mCountDrawTriangles, mCountTextureRect, mCountFillRect,
+                mCountDrawLine);
         mCountDrawMesh = 0;
+        mCountDrawTriangles = 0;
         mCountTextureRect = 0;
         mCountFillRect = 0;
         mCountDrawLine = 0;
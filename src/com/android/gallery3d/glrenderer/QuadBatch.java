@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+import android.graphics.RectF;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+// QuadBatch collects the regions of a TextureAtlas drawn in a frame, and
+// draws them with one GLCanvas.drawTriangles() call per page of the atlas.
+//
+// The quads are given in the coordinate space of the canvas when draw() is
+// called, so the batch can only be used for content which is not
+// transformed on its own.
+public class QuadBatch {
+    private static final int VERTICES_PER_QUAD = 6;
+    private static final int FLOATS_PER_QUAD = VERTICES_PER_QUAD * 2;
+    private static final int FLOAT_SIZE = Float.SIZE / Byte.SIZE;
+    private static final int INIT_QUADS = 32;
+
+    // The quads of one texture.
+    private static class Group {
+        public BasicTexture texture;
+        public float[] xy = new float[INIT_QUADS * FLOATS_PER_QUAD];
+        public float[] uv = new float[INIT_QUADS * FLOATS_PER_QUAD];
+        public int count;
+    }
+
+    private final ArrayList<Group> mGroups = new ArrayList<Group>();
+    private final float[] mCornerU = new float[4];
+    private final float[] mCornerV = new float[4];
+    private FloatBuffer mXyBuffer;
+    private FloatBuffer mUvBuffer;
+
+    // Adds the region, drawn in the rectangle at (x, y) and rotated by the
+    // given degrees (a multiple of 90) clockwise around its center. The
+    // region must be ready.
+    public void add(TextureAtlas.Region region, float x, float y,
+            float width, float height, int rotation) {
+        BasicTexture texture = region.getPage();
+        Group group = getGroup(texture);
+        if (group.count * FLOATS_PER_QUAD == group.xy.length) {
+            int length = group.xy.length * 2;
+            float[] xy = new float[length];
+            float[] uv = new float[length];
+            System.arraycopy(group.xy, 0, xy, 0, group.xy.length);
+            System.arraycopy(group.uv, 0, uv, 0, group.uv.length);
+            group.xy = xy;
+            group.uv = uv;
+        }
+
+        // The corners of the source, clockwise from the top-left one.
+        RectF source = region.getSource();
+        float tw = texture.getTextureWidth();
+        float th = texture.getTextureHeight();
+        float[] u = mCornerU;
+        float[] v = mCornerV;
+        u[0] = u[3] = source.left / tw;
+        u[1] = u[2] = source.right / tw;
+        v[0] = v[1] = source.top / th;
+        v[2] = v[3] = source.bottom / th;
+
+        // Rotating the content clockwise by k quarters shows the corner i of
+        // the source at the corner i + k of the target.
+        int k = ((rotation / 90) % 4 + 4) % 4;
+        int tl = (4 - k) % 4;
+        int tr = (5 - k) % 4;
+        int br = (6 - k) % 4;
+        int bl = (7 - k) % 4;
+
+        float right = x + width;
+        float bottom = y + height;
+        int i = group.count * FLOATS_PER_QUAD;
+        float[] xy = group.xy;
+        float[] uvs = group.uv;
+        i = putVertex(xy, uvs, i, x, y, u[tl], v[tl]);
+        i = putVertex(xy, uvs, i, right, y, u[tr], v[tr]);
+        i = putVertex(xy, uvs, i, x, bottom, u[bl], v[bl]);
+        i = putVertex(xy, uvs, i, right, y, u[tr], v[tr]);
+        i = putVertex(xy, uvs, i, right, bottom, u[br], v[br]);
+        putVertex(xy, uvs, i, x, bottom, u[bl], v[bl]);
+        ++group.count;
+    }
+
+    private static int putVertex(float[] xy, float[] uv, int i,
+            float x, float y, float u, float v) {
+        xy[i] = x;
+        uv[i] = u;
+        xy[i + 1] = y;
+        uv[i + 1] = v;
+        return i + 2;
+    }
+
+    private Group getGroup(BasicTexture texture) {
+        Group empty = null;
+        for (int i = 0, n = mGroups.size(); i < n; ++i) {
+            Group group = mGroups.get(i);
+            if (group.texture == texture) return group;
+            if (empty == null && group.count == 0) empty = group;
+        }
+        if (empty == null) {
+            empty = new Group();
+            mGroups.add(empty);
+        }
+        empty.texture = texture;
+        return empty;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0, n = mGroups.size(); i < n; ++i) {
+            if (mGroups.get(i).count > 0) return false;
+        }
+        return true;
+    }
+
+    // Draws the quads added since the last call, and clears the batch.
+    public void draw(GLCanvas canvas) {
+        for (int i = 0, n = mGroups.size(); i < n; ++i) {
+            Group group = mGroups.get(i);
+            if (group.count == 0) continue;
+            int length = group.count * FLOATS_PER_QUAD;
+            prepareBuffers(length);
+            mXyBuffer.clear();
+            mXyBuffer.put(group.xy, 0, length).position(0);
+            mUvBuffer.clear();
+            mUvBuffer.put(group.uv, 0, length).position(0);
+            canvas.drawTriangles(group.texture, mXyBuffer, mUvBuffer,
+                    group.count * VERTICES_PER_QUAD);
+            group.count = 0;
+            group.texture = null;
+        }
+    }
+
+    public void clear() {
+        for (int i = 0, n = mGroups.size(); i < n; ++i) {
+            Group group = mGroups.get(i);
+            group.count = 0;
+            group.texture = null;
+        }
+    }
+
+    private void prepareBuffers(int length) {
+        if (mXyBuffer != null && mXyBuffer.capacity() >= length) return;
+        int capacity = Math.max(length, INIT_QUADS * FLOATS_PER_QUAD);
+        mXyBuffer = allocateDirectNativeOrderBuffer(capacity * FLOAT_SIZE).asFloatBuffer();
+        mUvBuffer = allocateDirectNativeOrderBuffer(capacity * FLOAT_SIZE).asFloatBuffer();
+    }
+
+    private static ByteBuffer allocateDirectNativeOrderBuffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import com.android.gallery3d.ui.GLRoot;
+import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import javax.microedition.khronos.opengles.GL11;
+
+// TextureAtlas packs small bitmaps, like the micro-thumbnails of an album,
+// into a few large textures, so a page of them can be drawn with one draw
+// call per texture (see QuadBatch) instead of one or more per bitmap.
+//
+// The atlas is made of pages of ATLAS_SIZE x ATLAS_SIZE, each split into
+// square cells of the same size. A bitmap which fits in a cell is given a
+// Region by allocate(), and it's copied into its cell when the GLRoot is
+// idle, like the textures of a TextureUploader. The pages are created when
+// they are first needed.
+public class TextureAtlas implements OnGLIdleListener {
+    private static final String TAG = "TextureAtlas";
+
+    public static final int ATLAS_SIZE = 2048;
+    private static final int INIT_CAPACITY = 64;
+
+    private final GLRoot mGLRoot;
+    private final UploadScheduler mScheduler;
+    private final int mCellSize;
+    private final int mCellsPerRow;
+    private final int mCellsPerPage;
+
+    // Guarded by this.
+    private final Page[] mPages;
+    private final boolean[] mUsedCells;
+    private final ArrayDeque<Region> mUploadQueue = new ArrayDeque<Region>(INIT_CAPACITY);
+    private boolean mIsQueued = false;
+    private boolean mRecycled = false;
+
+    // A page of the atlas. Like a RawTexture, its content can't be restored
+    // after it's unloaded, so the owner of the atlas recycles it on pause.
+    private static class Page extends BasicTexture {
+        public Page() {
+            setSize(ATLAS_SIZE, ATLAS_SIZE);
+        }
+
+        public void prepare(GLCanvas canvas) {
+            GLId glId = canvas.getGLId();
+            mId = glId.generateTexture();
+            canvas.initializeTextureSize(this, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE);
+            canvas.setTextureParameters(this);
+            mState = STATE_LOADED;
+            setAssociatedCanvas(canvas);
+        }
+
+        // The cells may hold bitmaps with alpha, like a TiledTexture.
+        @Override
+        public boolean isOpaque() {
+            return false;
+        }
+
+        @Override
+        protected boolean onBind(GLCanvas canvas) {
+            if (isLoaded()) return true;
+            Log.w(TAG, "lost the content due to context change");
+            return false;
+        }
+
+        @Override
+        public void yield() {
+            // we cannot free the texture because we have no backup.
+        }
+
+        @Override
+        protected int getTarget() {
+            return GL11.GL_TEXTURE_2D;
+        }
+    }
+
+    // The part of the atlas holding one bitmap.
+    public class Region implements FadeInTexture.Mixable {
+        private final int mCell;
+        private final Page mPage;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mOffsetX;
+        private final int mOffsetY;
+        // The source rectangle in the page, half a texel inside the bitmap
+        // so the bilinear filtering never reads the neighbouring cells.
+        private final RectF mSource = new RectF();
+        private final RectF mTarget = new RectF();
+
+        // Guarded by TextureAtlas.this.
+        private Bitmap mBitmap;
+        private long mQueuedNs;
+        private boolean mIsRecycled;
+        private volatile boolean mIsReady;
+
+        private Region(int cell, Page page, Bitmap bitmap) {
+            mCell = cell;
+            mPage = page;
+            mBitmap = bitmap;
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            int index = cell % mCellsPerPage;
+            mOffsetX = (index % mCellsPerRow) * mCellSize;
+            mOffsetY = (index / mCellsPerRow) * mCellSize;
+            mSource.set(mOffsetX + 0.5f, mOffsetY + 0.5f,
+                    mOffsetX + mWidth - 0.5f, mOffsetY + mHeight - 0.5f);
+        }
+
+        public boolean isReady() {
+            return mIsReady;
+        }
+
+        BasicTexture getPage() {
+            return mPage;
+        }
+
+        RectF getSource() {
+            return mSource;
+        }
+
+        // Called on the GL thread, holding the lock of the atlas.
+        private void upload(GLCanvas canvas) {
+            Bitmap bitmap = mBitmap;
+            if (bitmap == null) return;
+            mBitmap = null;
+            if (!mPage.isLoaded()) mPage.prepare(canvas);
+            canvas.texSubImage2D(mPage, mOffsetX, mOffsetY, bitmap,
+                    GLUtils.getInternalFormat(bitmap), GLUtils.getType(bitmap));
+            mIsReady = true;
+        }
+
+        // Can be called in UI thread.
+        public void recycle() {
+            synchronized (TextureAtlas.this) {
+                if (mIsRecycled) return;
+                mIsRecycled = true;
+                mUsedCells[mCell] = false;
+                mBitmap = null;
+                mIsReady = false;
+                mUploadQueue.remove(this);
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public boolean isOpaque() {
+            return false;
+        }
+
+        @Override
+        public void draw(GLCanvas canvas, int x, int y) {
+            draw(canvas, x, y, mWidth, mHeight);
+        }
+
+        @Override
+        public void draw(GLCanvas canvas, int x, int y, int w, int h) {
+            if (!mIsReady) return;
+            mTarget.set(x, y, x + w, y + h);
+            canvas.drawTexture(mPage, mSource, mTarget);
+        }
+
+        @Override
+        public void drawMixed(GLCanvas canvas, int color, float ratio,
+                int x, int y, int w, int h) {
+            if (!mIsReady) return;
+            mTarget.set(x, y, x + w, y + h);
+            canvas.drawMixed(mPage, color, ratio, mSource, mTarget);
+        }
+    }
+
+    public TextureAtlas(GLRoot root, int cellSize, int maxCells) {
+        this(root, cellSize, maxCells, new UploadScheduler());
+    }
+
+    public TextureAtlas(GLRoot root, int cellSize, int maxCells, UploadScheduler scheduler) {
+        mGLRoot = root;
+        mScheduler = scheduler;
+        mCellSize = cellSize;
+        mCellsPerRow = ATLAS_SIZE / cellSize;
+        mCellsPerPage = mCellsPerRow * mCellsPerRow;
+        if (mCellsPerPage == 0) {
+            // The cells don't fit in a page, nothing can be allocated.
+            Log.w(TAG, "cell too large: " + cellSize);
+            maxCells = 0;
+        }
+        mUsedCells = new boolean[maxCells];
+        mPages = new Page[mCellsPerPage == 0
+                ? 0 : (maxCells + mCellsPerPage - 1) / mCellsPerPage];
+    }
+
+    public UploadScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    // Returns a region for the bitmap, or null if the bitmap doesn't fit in
+    // a cell or all the cells are used. The bitmap must not be recycled
+    // until the region is ready or recycled.
+    public synchronized Region allocate(Bitmap bitmap) {
+        if (mRecycled || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getWidth() > mCellSize || bitmap.getHeight() > mCellSize) {
+            return null;
+        }
+        // Use the first free cell, so the visible regions tend to share a
+        // few pages.
+        for (int i = 0, n = mUsedCells.length; i < n; ++i) {
+            if (mUsedCells[i]) continue;
+            int pageIndex = i / mCellsPerPage;
+            if (mPages[pageIndex] == null) mPages[pageIndex] = new Page();
+            mUsedCells[i] = true;
+            return new Region(i, mPages[pageIndex], bitmap);
+        }
+        return null;
+    }
+
+    public synchronized void addRegion(Region r) {
+        if (r.mIsReady || r.mBitmap == null) return;
+        r.mQueuedNs = mScheduler.now();
+        mUploadQueue.addLast(r);
+
+        if (mIsQueued) return;
+        mIsQueued = true;
+        mGLRoot.addOnGLIdleListener(this);
+    }
+
+    public synchronized void clearUploads() {
+        mUploadQueue.clear();
+    }
+
+    // Frees the pages. The regions can't be used after this.
+    public void recycle() {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        synchronized (this) {
+            mRecycled = true;
+            mUploadQueue.clear();
+            for (int i = 0, n = mPages.length; i < n; ++i) {
+                if (mPages[i] != null) pages.add(mPages[i]);
+                mPages[i] = null;
+            }
+        }
+        for (Page page : pages) {
+            page.recycle();
+        }
+    }
+
+    @Override
+    public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
+        ArrayDeque<Region> deque = mUploadQueue;
+        synchronized (this) {
+            // The regions are copied while holding the lock, so the bitmaps
+            // are not recycled at the same time.
+            mScheduler.beginBatch(renderRequested);
+            while (!deque.isEmpty() && mScheduler.hasBudget(true)) {
+                Region r = deque.removeFirst();
+                long start = mScheduler.now();
+                r.upload(canvas);
+                mScheduler.onUploaded(r.mQueuedNs, start);
+            }
+            if (mScheduler.getBatchCount() > 0) mGLRoot.requestRender();
+            mScheduler.setBacklog(deque.size());
+            mIsQueued = !deque.isEmpty();
+
+            // return true to keep this listener in the queue
+            return mIsQueued;
+        }
+    }
+}
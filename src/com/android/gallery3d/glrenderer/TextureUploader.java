@@ -21,27 +21,50 @@ import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
 
 import java.util.ArrayDeque;
 
+// Uploads the textures of a GLRoot in its GL idle callbacks. The foreground
+// textures are always uploaded before the background ones, and the number
+// of uploads in a callback is decided by an UploadScheduler, from the time
+// left in the frame and the measured cost of an upload.
 public class TextureUploader implements OnGLIdleListener {
     private static final int INIT_CAPACITY = 64;
-    private static final int QUOTA_PER_FRAME = 1;
 
-    private final ArrayDeque<UploadedTexture> mFgTextures =
-            new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
-    private final ArrayDeque<UploadedTexture> mBgTextures =
-            new ArrayDeque<UploadedTexture>(INIT_CAPACITY);
+    private static class Entry {
+        public final UploadedTexture texture;
+        public final long queuedNs;
+
+        public Entry(UploadedTexture texture, long queuedNs) {
+            this.texture = texture;
+            this.queuedNs = queuedNs;
+        }
+    }
+
+    private final ArrayDeque<Entry> mFgTextures =
+            new ArrayDeque<Entry>(INIT_CAPACITY);
+    private final ArrayDeque<Entry> mBgTextures =
+            new ArrayDeque<Entry>(INIT_CAPACITY);
     private final GLRoot mGLRoot;
+    private final UploadScheduler mScheduler;
     private volatile boolean mIsQueued = false;
 
     public TextureUploader(GLRoot root) {
+        this(root, new UploadScheduler());
+    }
+
+    public TextureUploader(GLRoot root, UploadScheduler scheduler) {
         mGLRoot = root;
+        mScheduler = scheduler;
+    }
+
+    public UploadScheduler getScheduler() {
+        return mScheduler;
     }
 
     public synchronized void clear() {
         while (!mFgTextures.isEmpty()) {
-            mFgTextures.pop().setIsUploading(false);
+            mFgTextures.pop().texture.setIsUploading(false);
         }
         while (!mBgTextures.isEmpty()) {
-            mBgTextures.pop().setIsUploading(false);
+            mBgTextures.pop().texture.setIsUploading(false);
         }
     }
 
@@ -54,50 +77,60 @@ public class TextureUploader implements OnGLIdleListener {
 
     public synchronized void addBgTexture(UploadedTexture t) {
         if (t.isContentValid()) return;
-        mBgTextures.addLast(t);
+        mBgTextures.addLast(new Entry(t, mScheduler.now()));
         t.setIsUploading(true);
         queueSelfIfNeed();
     }
 
     public synchronized void addFgTexture(UploadedTexture t) {
         if (t.isContentValid()) return;
-        mFgTextures.addLast(t);
+        mFgTextures.addLast(new Entry(t, mScheduler.now()));
         t.setIsUploading(true);
         queueSelfIfNeed();
     }
 
-    private int upload(GLCanvas canvas, ArrayDeque<UploadedTexture> deque,
-            int uploadQuota, boolean isBackground) {
-        while (uploadQuota > 0) {
-            UploadedTexture t;
+    // Returns the number of uploaded textures.
+    private int upload(GLCanvas canvas, ArrayDeque<Entry> deque, boolean isBackground) {
+        int count = 0;
+        while (mScheduler.hasBudget(!isBackground)) {
+            Entry entry;
+            long start;
             synchronized (this) {
                 if (deque.isEmpty()) break;
-                t = deque.removeFirst();
-                t.setIsUploading(false);
-                if (t.isContentValid()) continue;
+                entry = deque.removeFirst();
+                entry.texture.setIsUploading(false);
+                if (entry.texture.isContentValid()) continue;
 
                 // this has to be protected by the synchronized block
                 // to prevent the inner bitmap get recycled
-                t.updateContent(canvas);
+                start = mScheduler.now();
+                entry.texture.updateContent(canvas);
             }
 
             // It will took some more time for a texture to be drawn for
             // the first time.
             // Thus, when scrolling, if a new column appears on screen,
             // it may cause a UI jank even these textures are uploaded.
-            if (isBackground) t.draw(canvas, 0, 0);
-            --uploadQuota;
+            if (isBackground) entry.texture.draw(canvas, 0, 0);
+            mScheduler.onUploaded(entry.queuedNs, start);
+            ++count;
         }
-        return uploadQuota;
+        return count;
     }
 
     @Override
     public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
-        int uploadQuota = QUOTA_PER_FRAME;
-        uploadQuota = upload(canvas, mFgTextures, uploadQuota, false);
-        if (uploadQuota < QUOTA_PER_FRAME) mGLRoot.requestRender();
-        upload(canvas, mBgTextures, uploadQuota, true);
+        mScheduler.beginBatch(renderRequested);
+        if (upload(canvas, mFgTextures, false) > 0) mGLRoot.requestRender();
+        // The background textures wait until all the foreground ones are
+        // uploaded.
+        boolean fgDone;
+        synchronized (this) {
+            fgDone = mFgTextures.isEmpty();
+        }
+        if (fgDone) upload(canvas, mBgTextures, true);
         synchronized (this) {
+            mScheduler.setBacklog(mFgTextures.size() + mBgTextures.size());
             mIsQueued = !mFgTextures.isEmpty() || !mBgTextures.isEmpty();
             return mIsQueued;
         }
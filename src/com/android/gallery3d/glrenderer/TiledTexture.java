@@ -24,7 +24,6 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
-import android.os.SystemClock;
 
 import com.android.gallery3d.ui.GLRoot;
 import com.android.gallery3d.ui.GLRoot.OnGLIdleListener;
@@ -36,16 +35,12 @@ import java.util.ArrayList;
 // split into tiles. By doing so, we may increase the time required to
 // upload the whole bitmap but we reduce the time of uploading each tile
 // so it make the animation more smooth and prevents jank.
-public class TiledTexture implements Texture {
+public class TiledTexture implements FadeInTexture.Mixable {
     private static final int CONTENT_SIZE = 254;
     private static final int BORDER_SIZE = 1;
     private static final int TILE_SIZE = CONTENT_SIZE + 2 * BORDER_SIZE;
     private static final int INIT_CAPACITY = 8;
 
-    // We are targeting at 60fps, so we have 16ms for each frame.
-    // In this 16ms, we use about 4~8 ms to upload tiles.
-    private static final long UPLOAD_TILE_LIMIT = 4; // ms
-
     private static Tile sFreeTileHead = null;
     private static final Object sFreeTileLock = new Object();
 
@@ -55,6 +50,8 @@ public class TiledTexture implements Texture {
     private static Paint sPaint;
 
     private int mUploadIndex = 0;
+    // The time this texture was added to an Uploader. Guarded by the Uploader.
+    private long mQueuedNs;
 
     private final Tile[] mTiles;  // Can be modified in different threads.
                                   // Should be protected by "synchronized."
@@ -68,10 +65,20 @@ public class TiledTexture implements Texture {
                 new ArrayDeque<TiledTexture>(INIT_CAPACITY);
 
         private final GLRoot mGlRoot;
+        private final UploadScheduler mScheduler;
         private boolean mIsQueued = false;
 
         public Uploader(GLRoot glRoot) {
+            this(glRoot, new UploadScheduler());
+        }
+
+        public Uploader(GLRoot glRoot, UploadScheduler scheduler) {
             mGlRoot = glRoot;
+            mScheduler = scheduler;
+        }
+
+        public UploadScheduler getScheduler() {
+            return mScheduler;
         }
 
         public synchronized void clear() {
@@ -80,6 +87,7 @@ public class TiledTexture implements Texture {
 
         public synchronized void addTexture(TiledTexture t) {
             if (t.isReady()) return;
+            t.mQueuedNs = mScheduler.now();
             mTextures.addLast(t);
 
             if (mIsQueued) return;
@@ -91,16 +99,20 @@ public class TiledTexture implements Texture {
         public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
             ArrayDeque<TiledTexture> deque = mTextures;
             synchronized (this) {
-                long now = SystemClock.uptimeMillis();
-                long dueTime = now + UPLOAD_TILE_LIMIT;
-                while (now < dueTime && !deque.isEmpty()) {
+                // The tiled textures are the ones shown on the screen, so at
+                // least one tile is uploaded in each frame.
+                mScheduler.beginBatch(renderRequested);
+                while (!deque.isEmpty() && mScheduler.hasBudget(true)) {
                     TiledTexture t = deque.peekFirst();
-                    if (t.uploadNextTile(canvas)) {
+                    long start = mScheduler.now();
+                    boolean done = t.uploadNextTile(canvas);
+                    mScheduler.onUploaded(t.mQueuedNs, start);
+                    if (done) {
                         deque.removeFirst();
                         mGlRoot.requestRender();
                     }
-                    now = SystemClock.uptimeMillis();
                 }
+                mScheduler.setBacklog(deque.size());
                 mIsQueued = !mTextures.isEmpty();
 
                 // return true to keep this listener in the queue
@@ -273,6 +285,7 @@ public class TiledTexture implements Texture {
 
     // Draws a mixed color of this texture and a specified color onto the
     // a rectangle. The used color is: from * (1 - ratio) + to * ratio.
+    @Override
     public void drawMixed(GLCanvas canvas, int color, float ratio,
             int x, int y, int width, int height) {
         RectF src = mSrcRect;
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.glrenderer;
+
+// Decides how many textures an uploader can upload in one GL idle callback.
+//
+// The scheduler keeps a moving average of the time an upload takes, and
+// lets the uploads go on while the next one is expected to finish before
+// the deadline of the batch. The deadline is the end of the current frame
+// (minus a safety margin). If that has passed, the deadline is
+// IDLE_BUDGET_NS after the start of the batch when no frame is waiting to
+// be drawn, and the start of the batch otherwise.
+//
+// A foreground batch always uploads at least one texture, so the textures
+// which are shown make progress even when the frames are late. Background
+// uploads only use the time which is left.
+//
+// The time comes from a Clock, and the start of the frames is told by the
+// GLRoot, so the scheduling can be driven by a fake clock and a fake
+// GLCanvas.
+public class UploadScheduler {
+    // We are targeting at 60fps, so we have 16ms for each frame.
+    private static final long FRAME_NS = 16666667;
+    // The time kept for the rendering and the swap at the end of a frame.
+    private static final long SAFETY_NS = 4000000;
+    // The budget of a batch when there is no frame being drawn.
+    private static final long IDLE_BUDGET_NS = 8000000;
+    // The guess of the cost of an upload before any is measured.
+    private static final long INITIAL_COST_NS = 2000000;
+    // The weight of a new measure in the moving average is 1 / COST_WEIGHT.
+    private static final int COST_WEIGHT = 8;
+
+    public interface Clock {
+        public long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // The start of the last frame on the GL thread.
+    private static volatile long sFrameStartNs;
+
+    private final Clock mClock;
+
+    // Only used on the GL thread.
+    private long mCostNs = INITIAL_COST_NS;
+    private long mDeadlineNs;
+    private int mBatchCount;
+
+    // Statistics, which may be read from any thread.
+    private volatile int mUploadCount;
+    private volatile long mUploadTimeNs;
+    private volatile long mLatencyNs;
+    private volatile long mMaxLatencyNs;
+    private volatile int mBacklog;
+
+    public UploadScheduler() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public UploadScheduler(Clock clock) {
+        mClock = clock;
+    }
+
+    // Called by the GLRoot when it starts drawing a frame.
+    public static void onFrameStart(long nowNs) {
+        sFrameStartNs = nowNs;
+    }
+
+    public long now() {
+        return mClock.nanoTime();
+    }
+
+    // Starts a batch of uploads, at the beginning of a GL idle callback.
+    // renderRequested is the one given to the callback.
+    public void beginBatch(boolean renderRequested) {
+        long now = mClock.nanoTime();
+        long elapsed = now - sFrameStartNs;
+        if (elapsed >= 0 && elapsed < FRAME_NS) {
+            mDeadlineNs = sFrameStartNs + FRAME_NS - SAFETY_NS;
+        } else if (!renderRequested) {
+            mDeadlineNs = now + IDLE_BUDGET_NS;
+        } else {
+            // The frame is late and the next one is waiting: only the one
+            // foreground upload is allowed.
+            mDeadlineNs = now;
+        }
+        mBatchCount = 0;
+    }
+
+    // Returns true if the next upload is expected to fit in the batch.
+    public boolean hasBudget(boolean foreground) {
+        if (foreground && mBatchCount == 0) return true;
+        return mClock.nanoTime() + mCostNs <= mDeadlineNs;
+    }
+
+    // Records an upload which started at startNs, of a texture queued at
+    // queuedNs, and returns the current time.
+    public long onUploaded(long queuedNs, long startNs) {
+        long now = mClock.nanoTime();
+        long cost = now - startNs;
+        mCostNs += (cost - mCostNs) / COST_WEIGHT;
+        ++mBatchCount;
+
+        long latency = now - queuedNs;
+        mUploadCount++;
+        mUploadTimeNs += cost;
+        mLatencyNs += latency;
+        if (latency > mMaxLatencyNs) mMaxLatencyNs = latency;
+        return now;
+    }
+
+    // Records the number of textures still waiting, at the end of a batch.
+    public void setBacklog(int backlog) {
+        mBacklog = backlog;
+    }
+
+    // The number of uploads in the current (or last) batch.
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    // The expected time of an upload.
+    public long getCostNs() {
+        return mCostNs;
+    }
+
+    public int getUploadCount() {
+        return mUploadCount;
+    }
+
+    public int getBacklog() {
+        return mBacklog;
+    }
+
+    // The average time taken by an upload.
+    public long getAverageUploadTimeNs() {
+        int count = mUploadCount;
+        return count == 0 ? 0 : mUploadTimeNs / count;
+    }
+
+    // The average time between the queueing and the end of an upload.
+    public long getAverageLatencyNs() {
+        int count = mUploadCount;
+        return count == 0 ? 0 : mLatencyNs / count;
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+}
@@ -27,6 +27,7 @@ import com.android.gallery3d.data.MediaObject;
 import com.android.gallery3d.data.MediaObject.PanoramaSupportCallback;
 import com.android.gallery3d.data.Path;
 import com.android.gallery3d.glrenderer.Texture;
+import com.android.gallery3d.glrenderer.TextureAtlas;
 import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
@@ -37,6 +38,7 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     private static final String TAG = "AlbumSlidingWindow";
 
     private static final int MSG_UPDATE_ENTRY = 0;
+    private static final int MSG_LOAD_DROPPED = 1;
     private static final int JOB_LIMIT = 2;
 
     public static interface Listener {
@@ -52,7 +54,12 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         public int mediaType;
         public boolean isWaitDisplayed;
         public TiledTexture bitmapTexture;
+        // The thumbnail in the atlas, used instead of bitmapTexture if the
+        // thumbnail fits in it.
+        public TextureAtlas.Region atlasRegion;
         public Texture content;
+        // Set by the renderer when the content is drawn in a batch.
+        public boolean isBatched;
         private BitmapLoader contentLoader;
         private PanoSupportListener mPanoSupportListener;
     }
@@ -62,6 +69,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     private final SynchronizedHandler mHandler;
     private final JobLimiter mThreadPool;
     private final TiledTexture.Uploader mTileUploader;
+    private final GLRoot mGLRoot;
+    private TextureAtlas mAtlas;
 
     private int mSize;
 
@@ -98,13 +107,24 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         mHandler = new SynchronizedHandler(activity.getGLRoot()) {
             @Override
             public void handleMessage(Message message) {
-                Utils.assertTrue(message.what == MSG_UPDATE_ENTRY);
-                ((ThumbnailLoader) message.obj).updateEntry();
+                switch (message.what) {
+                    case MSG_UPDATE_ENTRY:
+                        ((ThumbnailLoader) message.obj).updateEntry();
+                        break;
+                    case MSG_LOAD_DROPPED:
+                        ((ThumbnailLoader) message.obj).onDropped();
+                        break;
+                    default:
+                        Utils.fail("unknown message: %s", message.what);
+                }
             }
         };
 
-        mThreadPool = new JobLimiter(activity.getThreadPool(), JOB_LIMIT);
+        // The most recent requests are for the slots the user is looking at
+        // right now (see updateAllImageRequests), so they should run first.
+        mThreadPool = new JobLimiter(activity.getThreadPool(), JOB_LIMIT, cacheSize);
         mTileUploader = new TiledTexture.Uploader(activity.getGLRoot());
+        mGLRoot = activity.getGLRoot();
     }
 
     public void setListener(Listener listener) {
@@ -178,25 +198,28 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         if (mIsActive) updateAllImageRequests();
     }
 
+    private void uploadTexture(AlbumEntry entry) {
+        if (entry.atlasRegion != null) {
+            mAtlas.addRegion(entry.atlasRegion);
+        } else if (entry.bitmapTexture != null) {
+            mTileUploader.addTexture(entry.bitmapTexture);
+        }
+    }
+
     private void uploadBgTextureInSlot(int index) {
         if (index < mContentEnd && index >= mContentStart) {
-            AlbumEntry entry = mData[index % mData.length];
-            if (entry.bitmapTexture != null) {
-                mTileUploader.addTexture(entry.bitmapTexture);
-            }
+            uploadTexture(mData[index % mData.length]);
         }
     }
 
     private void updateTextureUploadQueue() {
         if (!mIsActive) return;
         mTileUploader.clear();
+        mAtlas.clearUploads();
 
         // add foreground textures
         for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
-            AlbumEntry entry = mData[i % mData.length];
-            if (entry.bitmapTexture != null) {
-                mTileUploader.addTexture(entry.bitmapTexture);
-            }
+            uploadTexture(mData[i % mData.length]);
         }
 
         // add background textures
@@ -255,6 +278,9 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         AlbumEntry data[] = mData;
         int index = slotIndex % data.length;
         AlbumEntry entry = data[index];
+        // The region is recycled first, so its bitmap is not copied after the
+        // loader puts it back into the pool.
+        if (entry.atlasRegion != null) entry.atlasRegion.recycle();
         if (entry.contentLoader != null) entry.contentLoader.recycle();
         if (entry.bitmapTexture != null) entry.bitmapTexture.recycle();
         data[index] = null;
@@ -273,10 +299,14 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         mData[slotIndex % mData.length] = entry;
     }
 
+    // The active slots are requested from both ends toward the center, so
+    // the slots in the middle of the screen are started first by the
+    // last-in-first-out JobLimiter.
     private void updateAllImageRequests() {
         mActiveRequestCount = 0;
-        for (int i = mActiveStart, n = mActiveEnd; i < n; ++i) {
+        for (int i = mActiveStart, j = mActiveEnd - 1; i <= j; ++i, --j) {
             if (requestSlotImage(i)) ++mActiveRequestCount;
+            if (i != j && requestSlotImage(j)) ++mActiveRequestCount;
         }
         if (mActiveRequestCount == 0) {
             requestNonactiveImages();
@@ -305,20 +335,37 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
             mHandler.obtainMessage(MSG_UPDATE_ENTRY, this).sendToTarget();
         }
 
+        @Override
+        protected void onLoadDropped() {
+            mHandler.obtainMessage(MSG_LOAD_DROPPED, this).sendToTarget();
+        }
+
+        public void onDropped() {
+            if (isRecycled() || !isActiveSlot(mSlotIndex)) return;
+            // An active slot is still wanted, request it again.
+            if (!requestSlotImage(mSlotIndex)) {
+                --mActiveRequestCount;
+                if (mActiveRequestCount == 0) requestNonactiveImages();
+            }
+        }
+
         public void updateEntry() {
             Bitmap bitmap = getBitmap();
             if (bitmap == null) return; // error or recycled
             AlbumEntry entry = mData[mSlotIndex % mData.length];
-            entry.bitmapTexture = new TiledTexture(bitmap);
-            entry.content = entry.bitmapTexture;
+            entry.atlasRegion = mAtlas.allocate(bitmap);
+            if (entry.atlasRegion != null) {
+                entry.content = entry.atlasRegion;
+            } else {
+                entry.bitmapTexture = new TiledTexture(bitmap);
+                entry.content = entry.bitmapTexture;
+            }
+            uploadTexture(entry);
 
             if (isActiveSlot(mSlotIndex)) {
-                mTileUploader.addTexture(entry.bitmapTexture);
                 --mActiveRequestCount;
                 if (mActiveRequestCount == 0) requestNonactiveImages();
                 if (mListener != null) mListener.onContentChanged();
-            } else {
-                mTileUploader.addTexture(entry.bitmapTexture);
             }
         }
     }
@@ -348,6 +395,8 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     public void resume() {
         mIsActive = true;
         TiledTexture.prepareResources();
+        mAtlas = new TextureAtlas(mGLRoot,
+                MediaItem.getTargetSize(MediaItem.TYPE_MICROTHUMBNAIL), mData.length);
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             prepareSlotContent(i);
         }
@@ -361,5 +410,6 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
         for (int i = mContentStart, n = mContentEnd; i < n; ++i) {
             freeSlotContent(i);
         }
+        mAtlas.recycle();
     }
 }
@@ -23,10 +23,13 @@ import com.android.gallery3d.data.Path;
 import com.android.gallery3d.glrenderer.ColorTexture;
 import com.android.gallery3d.glrenderer.FadeInTexture;
 import com.android.gallery3d.glrenderer.GLCanvas;
+import com.android.gallery3d.glrenderer.QuadBatch;
 import com.android.gallery3d.glrenderer.Texture;
+import com.android.gallery3d.glrenderer.TextureAtlas;
 import com.android.gallery3d.glrenderer.TiledTexture;
 
-public class AlbumSlotRenderer extends AbstractSlotRenderer {
+public class AlbumSlotRenderer extends AbstractSlotRenderer
+        implements SlotView.BatchSlotRenderer {
     @SuppressWarnings("unused")
     private static final String TAG = "AlbumView";
 
@@ -50,6 +53,9 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
 
     private SlotFilter mSlotFilter;
 
+    // The thumbnails in the texture atlas, drawn before the slots.
+    private final QuadBatch mBatch = new QuadBatch();
+
     public AlbumSlotRenderer(AbstractGalleryActivity activity, SlotView slotView,
             SelectionManager selectionManager, int placeholderColor) {
         super(activity);
@@ -94,10 +100,39 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
     }
 
     private static Texture checkTexture(Texture texture) {
-        return (texture instanceof TiledTexture)
-                && !((TiledTexture) texture).isReady()
-                ? null
-                : texture;
+        if ((texture instanceof TiledTexture)
+                && !((TiledTexture) texture).isReady()) return null;
+        if ((texture instanceof TextureAtlas.Region)
+                && !((TextureAtlas.Region) texture).isReady()) return null;
+        return texture;
+    }
+
+    @Override
+    public boolean addSlotToBatch(int index, int x, int y, int width, int height) {
+        if (mSlotFilter != null && !mSlotFilter.acceptSlot(index)) return false;
+
+        AlbumSlidingWindow.AlbumEntry entry = mDataWindow.get(index);
+        TextureAtlas.Region region = entry.atlasRegion;
+
+        // Only the square thumbnails which are not fading in are batched,
+        // the others are drawn by renderSlot().
+        if (region == null || !region.isReady() || entry.isWaitDisplayed
+                || region.getWidth() != region.getHeight()) {
+            return false;
+        }
+        if ((entry.content instanceof FadeInTexture)
+                && ((FadeInTexture) entry.content).isAnimating()) {
+            return false;
+        }
+        int size = Math.min(width, height);
+        mBatch.add(region, x, y, size, size, entry.rotation);
+        entry.isBatched = true;
+        return true;
+    }
+
+    @Override
+    public void drawBatch(GLCanvas canvas) {
+        mBatch.draw(canvas);
     }
 
     @Override
@@ -108,19 +143,11 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
 
         int renderRequestFlags = 0;
 
-        Texture content = checkTexture(entry.content);
-        if (content == null) {
-            content = mWaitLoadingTexture;
-            entry.isWaitDisplayed = true;
-        } else if (entry.isWaitDisplayed) {
-            entry.isWaitDisplayed = false;
-            content = new FadeInTexture(mPlaceholderColor, entry.bitmapTexture);
-            entry.content = content;
-        }
-        drawContent(canvas, content, width, height, entry.rotation);
-        if ((content instanceof FadeInTexture) &&
-                ((FadeInTexture) content).isAnimating()) {
-            renderRequestFlags |= SlotView.RENDER_MORE_FRAME;
+        if (entry.isBatched) {
+            // The content is already drawn by drawBatch().
+            entry.isBatched = false;
+        } else {
+            renderRequestFlags |= renderContent(canvas, entry, width, height);
         }
 
         if (entry.mediaType == MediaObject.MEDIA_TYPE_VIDEO) {
@@ -139,6 +166,29 @@ public class AlbumSlotRenderer extends AbstractSlotRenderer {
         return renderRequestFlags;
     }
 
+    private int renderContent(GLCanvas canvas,
+            AlbumSlidingWindow.AlbumEntry entry, int width, int height) {
+        int renderRequestFlags = 0;
+        Texture content = checkTexture(entry.content);
+        if (content == null) {
+            content = mWaitLoadingTexture;
+            entry.isWaitDisplayed = true;
+        } else if (entry.isWaitDisplayed) {
+            entry.isWaitDisplayed = false;
+            FadeInTexture.Mixable texture = (entry.atlasRegion != null)
+                    ? entry.atlasRegion
+                    : entry.bitmapTexture;
+            content = new FadeInTexture(mPlaceholderColor, texture);
+            entry.content = content;
+        }
+        drawContent(canvas, content, width, height, entry.rotation);
+        if ((content instanceof FadeInTexture) &&
+                ((FadeInTexture) content).isAnimating()) {
+            renderRequestFlags |= SlotView.RENDER_MORE_FRAME;
+        }
+        return renderRequestFlags;
+    }
+
     private int renderOverlay(GLCanvas canvas, int index,
             AlbumSlidingWindow.AlbumEntry entry, int width, int height) {
         int renderRequestFlags = 0;
@@ -21,6 +21,7 @@ import android.graphics.Bitmap;
 import com.android.photos.data.GalleryBitmapPool;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
+import com.android.gallery3d.util.JobLimiter;
 
 // We use this class to
 //     1.) load bitmaps in background.
@@ -31,7 +32,7 @@ public abstract class BitmapLoader implements FutureListener<Bitmap> {
 
     /* Transition Map:
      *   INIT -> REQUESTED, RECYCLED
-     *   REQUESTED -> INIT (cancel), LOADED, ERROR, RECYCLED
+     *   REQUESTED -> INIT (cancel, dropped), LOADED, ERROR, RECYCLED
      *   LOADED, ERROR -> RECYCLED
      */
     private static final int STATE_INIT = 0;
@@ -47,6 +48,7 @@ public abstract class BitmapLoader implements FutureListener<Bitmap> {
 
     @Override
     public void onFutureDone(Future<Bitmap> future) {
+        boolean dropped = false;
         synchronized (this) {
             mTask = null;
             mBitmap = future.get();
@@ -58,13 +60,25 @@ public abstract class BitmapLoader implements FutureListener<Bitmap> {
                 return; // don't call callback
             }
             if (future.isCancelled() && mBitmap == null) {
-                if (mState == STATE_REQUESTED) mTask = submitBitmapTask(this);
-                return; // don't call callback
+                if (mState != STATE_REQUESTED) return; // don't call callback
+                if (JobLimiter.isDropped(future)) {
+                    // The limiter gave up the request in favor of newer ones.
+                    // Go back to INIT so the request can be made again later.
+                    mState = STATE_INIT;
+                    dropped = true;
+                } else {
+                    mTask = submitBitmapTask(this);
+                    return; // don't call callback
+                }
             } else {
                 mState = mBitmap == null ? STATE_ERROR : STATE_LOADED;
             }
         }
-        onLoadComplete(mBitmap);
+        if (dropped) {
+            onLoadDropped();
+        } else {
+            onLoadComplete(mBitmap);
+        }
     }
 
     public synchronized void startLoad() {
@@ -105,4 +119,8 @@ public abstract class BitmapLoader implements FutureListener<Bitmap> {
 
     abstract protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l);
     abstract protected void onLoadComplete(Bitmap bitmap);
+
+    // Called when the request is dropped by a JobLimiter before it starts.
+    protected void onLoadDropped() {
+    }
 }
@@ -37,6 +37,7 @@ import com.android.gallery3d.glrenderer.BasicTexture;
 import com.android.gallery3d.glrenderer.GLCanvas;
 import com.android.gallery3d.glrenderer.GLES11Canvas;
 import com.android.gallery3d.glrenderer.GLES20Canvas;
+import com.android.gallery3d.glrenderer.UploadScheduler;
 import com.android.gallery3d.glrenderer.UploadedTexture;
 import com.android.gallery3d.util.GalleryUtils;
 import com.android.gallery3d.util.MotionEventHelper;
@@ -396,6 +397,7 @@ public class GLRootView extends GLSurfaceView
 
         // reset texture upload limit
         UploadedTexture.resetUploadLimit();
+        UploadScheduler.onFrameStart(System.nanoTime());
 
         mRenderRequested = false;
 
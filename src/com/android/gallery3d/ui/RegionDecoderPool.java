@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.gallery3d.ui;
+
+import android.graphics.BitmapRegionDecoder;
+
+import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.DecodeUtils;
+import com.android.gallery3d.util.ThreadPool;
+
+import java.io.File;
+import java.util.ArrayList;
+
+// A BitmapRegionDecoder can only decode one region at a time, so the tiles
+// of an image are decoded in parallel with several decoders over the same
+// file. The pool starts with the decoder it's given, and opens more decoders
+// on the file when all of them are busy.
+//
+// Each decoder keeps its own copy of the compressed image, so the number of
+// decoders is limited by the file size. Only the decoders opened by the pool
+// are recycled by close(); the first one belongs to the caller.
+class RegionDecoderPool {
+    private static final String TAG = "RegionDecoderPool";
+
+    // The total size of the compressed image held by the decoders.
+    private static final long MAX_POOL_BYTES = 64 * 1024 * 1024;
+
+    private final BitmapRegionDecoder mFirst;
+    private final String mFilePath;
+
+    // Guarded by this.
+    private int mMaxCount;
+    private final ArrayList<BitmapRegionDecoder> mIdle =
+            new ArrayList<BitmapRegionDecoder>();
+    private int mCount = 1;
+    private boolean mClosed;
+
+    // filePath is the file mFirst is decoding, or null if other decoders
+    // can't be opened.
+    public RegionDecoderPool(BitmapRegionDecoder first, String filePath, int maxCount) {
+        mFirst = Utils.checkNotNull(first);
+        mIdle.add(first);
+        if (filePath == null) {
+            mFilePath = null;
+            mMaxCount = 1;
+        } else {
+            long length = Math.max(1, new File(filePath).length());
+            mFilePath = filePath;
+            mMaxCount = (int) Utils.clamp(MAX_POOL_BYTES / length, 1, maxCount);
+        }
+    }
+
+    public BitmapRegionDecoder getFirst() {
+        return mFirst;
+    }
+
+    // Returns a decoder for the exclusive use of the caller until it's given
+    // back with release(). Waits if all the decoders are busy.
+    public BitmapRegionDecoder acquire() {
+        synchronized (this) {
+            while (mIdle.isEmpty() && (mClosed || mCount >= mMaxCount)) {
+                Utils.waitWithoutInterrupt(this);
+            }
+            if (!mIdle.isEmpty()) return mIdle.remove(mIdle.size() - 1);
+            ++mCount;
+        }
+
+        BitmapRegionDecoder decoder = DecodeUtils.createBitmapRegionDecoder(
+                ThreadPool.JOB_CONTEXT_STUB, mFilePath, false);
+        if (decoder != null) return decoder;
+
+        // Don't try again, and wait for one of the open decoders.
+        Log.w(TAG, "cannot open more decoders for " + mFilePath);
+        synchronized (this) {
+            --mCount;
+            mMaxCount = mCount;
+            while (mIdle.isEmpty()) Utils.waitWithoutInterrupt(this);
+            return mIdle.remove(mIdle.size() - 1);
+        }
+    }
+
+    public void release(BitmapRegionDecoder decoder) {
+        synchronized (this) {
+            if (!mClosed || decoder == mFirst) {
+                mIdle.add(decoder);
+                notifyAll();
+                return;
+            }
+        }
+        decoder.recycle();
+    }
+
+    // Recycles the decoders opened by the pool. The busy ones are recycled
+    // when they are released.
+    public void close() {
+        ArrayList<BitmapRegionDecoder> idle;
+        synchronized (this) {
+            mClosed = true;
+            idle = new ArrayList<BitmapRegionDecoder>(mIdle);
+            mIdle.clear();
+            if (idle.remove(mFirst)) mIdle.add(mFirst);
+        }
+        for (BitmapRegionDecoder decoder : idle) {
+            decoder.recycle();
+        }
+    }
+}
@@ -64,6 +64,15 @@ public class SlotView extends GLView {
         public int renderSlot(GLCanvas canvas, int index, int pass, int width, int height);
     }
 
+    // A SlotRenderer which can draw the content of the visible slots with a
+    // few batched draw calls, before the slots are rendered one by one.
+    public static interface BatchSlotRenderer extends SlotRenderer {
+        // Adds the content of the slot at (x, y) to the batch. Returns false
+        // if the content has to be drawn by renderSlot() instead.
+        public boolean addSlotToBatch(int index, int x, int y, int width, int height);
+        public void drawBatch(GLCanvas canvas);
+    }
+
     private final GestureDetector mGestureDetector;
     private final ScrollerHelper mScroller;
     private final Paper mPaper = new Paper();
@@ -293,6 +302,13 @@ public class SlotView extends GLView {
 
         canvas.translate(-mScrollX, -mScrollY);
 
+        // The batch is only drawn when the slots are not transformed on their
+        // own.
+        if ((mRenderer instanceof BatchSlotRenderer) && !paperActive
+                && (mAnimation == null || !mAnimation.isActive())) {
+            renderBatch(canvas, (BatchSlotRenderer) mRenderer);
+        }
+
         int requestCount = 0;
         int requestedSlot[] = expandIntArray(mRequestRenderSlots,
                 mLayout.mVisibleEnd - mLayout.mVisibleStart);
@@ -330,6 +346,15 @@ public class SlotView extends GLView {
         mMoreAnimation = more;
     }
 
+    private void renderBatch(GLCanvas canvas, BatchSlotRenderer renderer) {
+        for (int i = mLayout.mVisibleEnd - 1; i >= mLayout.mVisibleStart; --i) {
+            Rect rect = mLayout.getSlotRect(i, mTempRect);
+            renderer.addSlotToBatch(i, rect.left, rect.top,
+                    rect.right - rect.left, rect.bottom - rect.top);
+        }
+        renderer.drawBatch(canvas);
+    }
+
     private int renderItem(
             GLCanvas canvas, int index, int pass, boolean paperActive) {
         canvas.save(GLCanvas.SAVE_FLAG_ALPHA | GLCanvas.SAVE_FLAG_MATRIX);
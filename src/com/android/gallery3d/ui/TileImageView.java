@@ -32,9 +32,7 @@ import com.android.gallery3d.data.DecodeUtils;
 import com.android.photos.data.GalleryBitmapPool;
 import com.android.gallery3d.glrenderer.GLCanvas;
 import com.android.gallery3d.glrenderer.UploadedTexture;
-import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.ThreadPool;
-import com.android.gallery3d.util.ThreadPool.CancelListener;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -46,6 +44,12 @@ public class TileImageView extends GLView {
     private static final String TAG = "TileImageView";
     private static final int UPLOAD_LIMIT = 1;
 
+    // The number of tiles decoded in parallel. The decoders run in their own
+    // thread pool, so they don't hold up the jobs of the application.
+    static final int DECODER_COUNT =
+            Utils.clamp(Runtime.getRuntime().availableProcessors(), 1, 4);
+    private static ThreadPool sDecodePool;
+
     // TILE_SIZE must be 2^N
     private static int sTileSize;
 
@@ -104,6 +108,15 @@ public class TileImageView extends GLView {
     private final TileQueue mUploadQueue = new TileQueue();
     private final TileQueue mDecodeQueue = new TileQueue();
 
+    // The decoders take the tiles of mDecodeLevel first, and then the ones
+    // nearest to (mDecodeCenterX, mDecodeCenterY). Guarded by
+    // TileImageView.this, like the number of running decoders.
+    private int mDecodeLevel;
+    private int mDecodeCenterX;
+    private int mDecodeCenterY;
+    private int mDecoderCount;
+    private boolean mDecoderStopped;
+
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
     protected int mImageHeight = SIZE_UNKNOWN;
@@ -119,8 +132,6 @@ public class TileImageView extends GLView {
 
     private final TileUploader mTileUploader = new TileUploader();
     private boolean mIsTextureFreed;
-    private Future<Void> mTileDecoder;
-    private final ThreadPool mThreadPool;
     private boolean mBackgroundTileUploaded;
 
     public static interface TileSource {
@@ -152,8 +163,6 @@ public class TileImageView extends GLView {
     }
 
     public TileImageView(GalleryContext context) {
-        mThreadPool = context.getThreadPool();
-        mTileDecoder = mThreadPool.submit(new TileDecoder());
         if (sTileSize == 0) {
             if (isHighResolution(context.getAndroidContext())) {
                 sTileSize = 512 ;
@@ -163,6 +172,12 @@ public class TileImageView extends GLView {
         }
     }
 
+    // Returns the size of the tiles, or 0 if no TileImageView has been
+    // created yet.
+    public static int getTileSize() {
+        return sTileSize;
+    }
+
     public void setModel(TileSource model) {
         mModel = model;
         if (model != null) notifyModelInvalidated();
@@ -247,6 +262,9 @@ public class TileImageView extends GLView {
             mDecodeQueue.clean();
             mUploadQueue.clean();
             mBackgroundTileUploaded = false;
+            mDecodeLevel = mLevel;
+            mDecodeCenterX = centerX;
+            mDecodeCenterY = centerY;
 
             // Recycle unused tiles: if the level of the active tile is outside the
             // range [fromLevel, endLevel) or not in the visible range.
@@ -367,10 +385,10 @@ public class TileImageView extends GLView {
     public void freeTextures() {
         mIsTextureFreed = true;
 
-        if (mTileDecoder != null) {
-            mTileDecoder.cancel();
-            mTileDecoder.get();
-            mTileDecoder = null;
+        synchronized (this) {
+            mDecoderStopped = true;
+            mDecodeQueue.clean();
+            while (mDecoderCount > 0) Utils.waitWithoutInterrupt(this);
         }
 
         int n = mActiveTiles.size();
@@ -394,8 +412,8 @@ public class TileImageView extends GLView {
     }
 
     public void prepareTextures() {
-        if (mTileDecoder == null) {
-            mTileDecoder = mThreadPool.submit(new TileDecoder());
+        synchronized (this) {
+            mDecoderStopped = false;
         }
         if (mIsTextureFreed) {
             layoutTiles(mCenterX, mCenterY, mScale, mRotation);
@@ -485,8 +503,19 @@ public class TileImageView extends GLView {
     synchronized void queueForDecode(Tile tile) {
         if (tile.mTileState == STATE_ACTIVATED) {
             tile.mTileState = STATE_IN_QUEUE;
-            if (mDecodeQueue.push(tile)) notifyAll();
+            mDecodeQueue.push(tile);
+            if (!mDecoderStopped && mDecoderCount < DECODER_COUNT) {
+                ++mDecoderCount;
+                getDecodePool().submit(new TileDecoder());
+            }
+        }
+    }
+
+    private static synchronized ThreadPool getDecodePool() {
+        if (sDecodePool == null) {
+            sDecodePool = new ThreadPool(DECODER_COUNT, DECODER_COUNT);
         }
+        return sDecodePool;
     }
 
     boolean decodeTile(Tile tile) {
@@ -749,38 +778,63 @@ public class TileImageView extends GLView {
             return wasEmpty;
         }
 
+        // Removes the tile of the given level nearest to (centerX, centerY),
+        // or the nearest tile of any level if there is none.
+        public Tile popNearest(int level, int centerX, int centerY) {
+            Tile best = null;
+            Tile bestPrev = null;
+            boolean bestAtLevel = false;
+            long bestDistance = Long.MAX_VALUE;
+            for (Tile prev = null, tile = mHead; tile != null;
+                    prev = tile, tile = tile.mNext) {
+                boolean atLevel = tile.mTileLevel == level;
+                if (bestAtLevel && !atLevel) continue;
+                int half = (sTileSize << tile.mTileLevel) / 2;
+                long dx = tile.mX + half - centerX;
+                long dy = tile.mY + half - centerY;
+                long distance = dx * dx + dy * dy;
+                if (atLevel != bestAtLevel || distance < bestDistance) {
+                    best = tile;
+                    bestPrev = prev;
+                    bestAtLevel = atLevel;
+                    bestDistance = distance;
+                }
+            }
+            if (best == null) return null;
+            if (bestPrev == null) {
+                mHead = best.mNext;
+            } else {
+                bestPrev.mNext = best.mNext;
+            }
+            return best;
+        }
+
         public void clean() {
             mHead = null;
         }
     }
 
+    // Decodes the queued tiles until the queue is empty. Up to DECODER_COUNT
+    // of them run at the same time.
     private class TileDecoder implements ThreadPool.Job<Void> {
 
-        private CancelListener mNotifier = new CancelListener() {
-            @Override
-            public void onCancel() {
-                synchronized (TileImageView.this) {
-                    TileImageView.this.notifyAll();
-                }
-            }
-        };
-
         @Override
         public Void run(JobContext jc) {
+            // The number of decoders is limited by DECODER_COUNT instead.
             jc.setMode(ThreadPool.MODE_NONE);
-            jc.setCancelListener(mNotifier);
-            while (!jc.isCancelled()) {
-                Tile tile = null;
-                synchronized(TileImageView.this) {
-                    tile = mDecodeQueue.pop();
-                    if (tile == null && !jc.isCancelled()) {
-                        Utils.waitWithoutInterrupt(TileImageView.this);
+            while (true) {
+                Tile tile;
+                synchronized (TileImageView.this) {
+                    tile = mDecoderStopped ? null : mDecodeQueue.popNearest(
+                            mDecodeLevel, mDecodeCenterX, mDecodeCenterY);
+                    if (tile == null) {
+                        --mDecoderCount;
+                        TileImageView.this.notifyAll();
+                        return null;
                     }
                 }
-                if (tile == null) continue;
                 if (decodeTile(tile)) queueForUpload(tile);
             }
-            return null;
         }
     }
 }
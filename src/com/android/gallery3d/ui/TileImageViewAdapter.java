@@ -26,6 +26,8 @@ import android.graphics.Rect;
 
 import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.common.Utils;
+import com.android.gallery3d.data.Path;
+import com.android.gallery3d.data.TileCacheService;
 import com.android.photos.data.GalleryBitmapPool;
 
 public class TileImageViewAdapter implements TileImageView.TileSource {
@@ -33,6 +35,16 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
     protected ScreenNail mScreenNail;
     protected boolean mOwnScreenNail;
     protected BitmapRegionDecoder mRegionDecoder;
+    private RegionDecoderPool mDecoderPool;
+    // The decoder pool set aside by setScreenNail(). It's used again if the
+    // same decoder is set next, and closed when another one is set.
+    private RegionDecoderPool mIdlePool;
+    // The decoded tiles are kept in mTileCache, if it's set.
+    private TileCacheService mTileCache;
+    private Path mTilePath;
+    private long mTileTimeModified;
+    // The decoder pool of the image mTileCache is set for.
+    private RegionDecoderPool mTileCachePool;
     protected int mImageWidth;
     protected int mImageHeight;
     protected int mLevelCount;
@@ -45,7 +57,8 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
         mImageWidth = 0;
         mImageHeight = 0;
         mLevelCount = 0;
-        mRegionDecoder = null;
+        setDecoderPool(null);
+        setTileCache(null, null, 0);
     }
 
     // Caller is responsible to recycle the ScreenNail
@@ -55,17 +68,65 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
         mScreenNail = screenNail;
         mImageWidth = width;
         mImageHeight = height;
-        mRegionDecoder = null;
+        // The decoder is usually set again right after, so the decoders the
+        // pool has opened are kept instead of being opened again.
+        setAsideDecoderPool();
+        setTileCache(null, null, 0);
         mLevelCount = 0;
     }
 
     public synchronized void setRegionDecoder(BitmapRegionDecoder decoder) {
-        mRegionDecoder = Utils.checkNotNull(decoder);
+        setRegionDecoder(decoder, null);
+    }
+
+    // The tiles are decoded in parallel by several decoders if the path of
+    // the file the decoder is reading is given.
+    public synchronized void setRegionDecoder(
+            BitmapRegionDecoder decoder, String filePath) {
+        Utils.checkNotNull(decoder);
+        if (mDecoderPool == null || mDecoderPool.getFirst() != decoder) {
+            RegionDecoderPool pool = mIdlePool;
+            if (pool == null || pool.getFirst() != decoder) {
+                pool = new RegionDecoderPool(
+                        decoder, filePath, TileImageView.DECODER_COUNT);
+            }
+            setDecoderPool(pool);
+        }
         mImageWidth = decoder.getWidth();
         mImageHeight = decoder.getHeight();
         mLevelCount = calculateLevelCount();
     }
 
+    // The tiles of the current image are looked up in the cache before they
+    // are decoded, and put into it after. The image is identified by its path
+    // and modification time.
+    public synchronized void setTileCache(
+            TileCacheService cache, Path path, long timeModified) {
+        mTileCache = cache;
+        mTilePath = path;
+        mTileTimeModified = timeModified;
+        mTileCachePool = mDecoderPool;
+    }
+
+    // Must be called with the lock held.
+    private void setDecoderPool(RegionDecoderPool pool) {
+        if (mDecoderPool != null && mDecoderPool != pool) mDecoderPool.close();
+        if (mIdlePool != null && mIdlePool != pool) mIdlePool.close();
+        mIdlePool = null;
+        mDecoderPool = pool;
+        mRegionDecoder = pool == null ? null : pool.getFirst();
+    }
+
+    // Stops decoding with the current pool, without closing it.
+    // Must be called with the lock held.
+    private void setAsideDecoderPool() {
+        if (mDecoderPool == null) return;
+        if (mIdlePool != null) mIdlePool.close();
+        mIdlePool = mDecoderPool;
+        mDecoderPool = null;
+        mRegionDecoder = null;
+    }
+
     private int calculateLevelCount() {
         return Math.max(0, Utils.ceilLog2(
                 (float) mImageWidth / mScreenNail.getWidth()));
@@ -82,29 +143,58 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
     //
     // As a result, we should decode region (50-6, 50-6, 250+6, 250+6) or
     // (44, 44, 256, 256) from the original photo and down sample it to 106.
-    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
     @Override
     public Bitmap getTile(int level, int x, int y, int tileSize) {
+        // The decoder and the cache key are read together, so a tile of one
+        // image is never cached under the key of another.
+        RegionDecoderPool pool;
+        Rect imageRect;
+        TileCacheService cache;
+        Path path;
+        long timeModified;
+        synchronized (this) {
+            pool = mDecoderPool;
+            if (pool == null) return null;
+            imageRect = new Rect(0, 0, mImageWidth, mImageHeight);
+            cache = (mTileCachePool == pool) ? mTileCache : null;
+            path = mTilePath;
+            timeModified = mTileTimeModified;
+        }
+        if (cache == null || !TileCacheService.isCacheable(level, x, y, tileSize)) {
+            return decodeTile(pool, imageRect, level, x, y, tileSize);
+        }
+
+        Bitmap bitmap = cache.getTile(path, timeModified, level, x, y, tileSize,
+                GalleryBitmapPool.getInstance().get(tileSize, tileSize));
+        if (bitmap != null) return bitmap;
+
+        bitmap = decodeTile(pool, imageRect, level, x, y, tileSize);
+        if (bitmap == null) return null;
+        synchronized (this) {
+            // The image has changed during the decoding.
+            if (mDecoderPool != pool || mTileCache != cache
+                    || mTilePath != path || mTileTimeModified != timeModified) {
+                return bitmap;
+            }
+        }
+        cache.putTile(path, timeModified, level, x, y, tileSize, bitmap);
+        return bitmap;
+    }
+
+    @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
+    private Bitmap decodeTile(RegionDecoderPool pool, Rect imageRect,
+            int level, int x, int y, int tileSize) {
         if (!ApiHelper.HAS_REUSING_BITMAP_IN_BITMAP_REGION_DECODER) {
-            return getTileWithoutReusingBitmap(level, x, y, tileSize);
+            return getTileWithoutReusingBitmap(pool, imageRect, level, x, y, tileSize);
         }
 
         int t = tileSize << level;
 
         Rect wantRegion = new Rect(x, y, x + t, y + t);
 
-        boolean needClear;
-        BitmapRegionDecoder regionDecoder = null;
-
-        synchronized (this) {
-            regionDecoder = mRegionDecoder;
-            if (regionDecoder == null) return null;
-
-            // We need to clear a reused bitmap, if wantRegion is not fully
-            // within the image.
-            needClear = !new Rect(0, 0, mImageWidth, mImageHeight)
-                    .contains(wantRegion);
-        }
+        // We need to clear a reused bitmap, if wantRegion is not fully
+        // within the image.
+        boolean needClear = !imageRect.contains(wantRegion);
 
         Bitmap bitmap = GalleryBitmapPool.getInstance().get(tileSize, tileSize);
         if (bitmap != null) {
@@ -119,12 +209,15 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
         options.inSampleSize =  (1 << level);
         options.inBitmap = bitmap;
 
+        BitmapRegionDecoder regionDecoder = pool.acquire();
         try {
-            // In CropImage, we may call the decodeRegion() concurrently.
+            // The first decoder of the pool may also be used by another
+            // adapter, e.g. to prefetch the tiles, or in CropImage.
             synchronized (regionDecoder) {
                 bitmap = regionDecoder.decodeRegion(wantRegion, options);
             }
         } finally {
+            pool.release(regionDecoder);
             if (options.inBitmap != bitmap && options.inBitmap != null) {
                 GalleryBitmapPool.getInstance().put(options.inBitmap);
                 options.inBitmap = null;
@@ -137,20 +230,13 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
         return bitmap;
     }
 
-    private Bitmap getTileWithoutReusingBitmap(
-            int level, int x, int y, int tileSize) {
+    private Bitmap getTileWithoutReusingBitmap(RegionDecoderPool pool,
+            Rect imageRect, int level, int x, int y, int tileSize) {
         int t = tileSize << level;
         Rect wantRegion = new Rect(x, y, x + t, y + t);
 
-        BitmapRegionDecoder regionDecoder;
-        Rect overlapRegion;
-
-        synchronized (this) {
-            regionDecoder = mRegionDecoder;
-            if (regionDecoder == null) return null;
-            overlapRegion = new Rect(0, 0, mImageWidth, mImageHeight);
-            Utils.assertTrue(overlapRegion.intersect(wantRegion));
-        }
+        Rect overlapRegion = new Rect(imageRect);
+        Utils.assertTrue(overlapRegion.intersect(wantRegion));
 
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = Config.ARGB_8888;
@@ -158,9 +244,13 @@ public class TileImageViewAdapter implements TileImageView.TileSource {
         options.inSampleSize =  (1 << level);
         Bitmap bitmap = null;
 
-        // In CropImage, we may call the decodeRegion() concurrently.
-        synchronized (regionDecoder) {
-            bitmap = regionDecoder.decodeRegion(overlapRegion, options);
+        BitmapRegionDecoder regionDecoder = pool.acquire();
+        try {
+            synchronized (regionDecoder) {
+                bitmap = regionDecoder.decodeRegion(overlapRegion, options);
+            }
+        } finally {
+            pool.release(regionDecoder);
         }
 
         if (bitmap == null) {
@@ -19,20 +19,21 @@ package com.android.gallery3d.util;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+// A map from keys to weakly referenced values. Lookups don't take any lock,
+// so it can be shared by many threads.
 public class IdentityCache<K, V> {
 
-    private final HashMap<K, Entry<K, V>> mWeakMap =
-            new HashMap<K, Entry<K, V>>();
-    private ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
+    private final ConcurrentHashMap<K, Entry<K, V>> mWeakMap =
+            new ConcurrentHashMap<K, Entry<K, V>>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<V>();
 
     public IdentityCache() {
     }
 
     private static class Entry<K, V> extends WeakReference<V> {
-        K mKey;
+        final K mKey;
 
         public Entry(K key, V value, ReferenceQueue<V> queue) {
             super(value, queue);
@@ -40,39 +41,46 @@ public class IdentityCache<K, V> {
         }
     }
 
+    @SuppressWarnings("unchecked")
     private void cleanUpWeakMap() {
         Entry<K, V> entry = (Entry<K, V>) mQueue.poll();
         while (entry != null) {
-            mWeakMap.remove(entry.mKey);
+            // The key may have been mapped to a new entry already.
+            mWeakMap.remove(entry.mKey, entry);
             entry = (Entry<K, V>) mQueue.poll();
         }
     }
 
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         cleanUpWeakMap();
         Entry<K, V> entry = mWeakMap.put(
                 key, new Entry<K, V>(key, value, mQueue));
         return entry == null ? null : entry.get();
     }
 
-    public synchronized V get(K key) {
+    // Maps the key to the value unless it is already mapped to a live value.
+    // Returns the value the key is mapped to after the call.
+    public V putIfAbsent(K key, V value) {
         cleanUpWeakMap();
-        Entry<K, V> entry = mWeakMap.get(key);
-        return entry == null ? null : entry.get();
+        Entry<K, V> newEntry = new Entry<K, V>(key, value, mQueue);
+        while (true) {
+            Entry<K, V> entry = mWeakMap.putIfAbsent(key, newEntry);
+            if (entry == null) return value;
+            V old = entry.get();
+            if (old != null) return old;
+            // The old value has been collected; replace it unless another
+            // thread did it first.
+            if (mWeakMap.replace(key, entry, newEntry)) return value;
+        }
     }
 
-    // This is currently unused.
-    /*
-    public synchronized void clear() {
-        mWeakMap.clear();
-        mQueue = new ReferenceQueue<V>();
+    public V get(K key) {
+        Entry<K, V> entry = mWeakMap.get(key);
+        return entry == null ? null : entry.get();
     }
-    */
 
     // This is for debugging only
-    public synchronized ArrayList<K> keys() {
-        Set<K> set = mWeakMap.keySet();
-        ArrayList<K> result = new ArrayList<K>(set);
-        return result;
+    public ArrayList<K> keys() {
+        return new ArrayList<K>(mWeakMap.keySet());
     }
 }
@@ -20,9 +20,16 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 
 // Limit the number of concurrent jobs that has been submitted into a ThreadPool
+//
+// By default the pending jobs are started in the order they are submitted.
+// A limiter created with a maximum number of pending jobs starts the most
+// recently submitted job first instead, and drops the oldest pending job when
+// there are too many. A dropped job is cancelled and its listener is called
+// as usual; isDropped() tells it apart from a job cancelled by the caller.
 @SuppressWarnings("rawtypes")
 public class JobLimiter implements FutureListener {
     private static final String TAG = "JobLimiter";
@@ -36,6 +43,8 @@ public class JobLimiter implements FutureListener {
 
     private final LinkedList<JobWrapper<?>> mJobs = new LinkedList<JobWrapper<?>>();
     private final ThreadPool mPool;
+    private final boolean mLastInFirstOut;
+    private final int mMaxPending;
     private int mLimit;
 
     private static class JobWrapper<T> implements Future<T>, Job<T> {
@@ -44,6 +53,7 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        private boolean mDropped;
 
         public JobWrapper(Job<T> job, FutureListener<T> listener) {
             mJob = job;
@@ -75,6 +85,18 @@ public class JobLimiter implements FutureListener {
             if (listener != null) listener.onFutureDone(this);
         }
 
+        private void drop() {
+            synchronized (this) {
+                if (mState != STATE_INIT) return;
+                mDropped = true;
+            }
+            cancel();
+        }
+
+        public synchronized boolean isDropped() {
+            return mDropped;
+        }
+
         @Override
         public synchronized boolean isCancelled() {
             return mState == STATE_CANCELLED;
@@ -131,19 +153,55 @@ public class JobLimiter implements FutureListener {
     public JobLimiter(ThreadPool pool, int limit) {
         mPool = Utils.checkNotNull(pool);
         mLimit = limit;
+        mLastInFirstOut = false;
+        mMaxPending = Integer.MAX_VALUE;
+    }
+
+    // Creates a limiter which starts the most recently submitted job first
+    // and keeps at most maxPending jobs waiting.
+    public JobLimiter(ThreadPool pool, int limit, int maxPending) {
+        Utils.assertTrue(maxPending > 0);
+        mPool = Utils.checkNotNull(pool);
+        mLimit = limit;
+        mLastInFirstOut = true;
+        mMaxPending = maxPending;
+    }
+
+    // Returns true if the future is a job dropped by a JobLimiter because
+    // there were too many pending jobs.
+    public static boolean isDropped(Future<?> future) {
+        return (future instanceof JobWrapper)
+                && ((JobWrapper<?>) future).isDropped();
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
         JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
-        mJobs.addLast(future);
-        submitTasksIfAllowed();
+        JobWrapper<?> dropped = null;
+        synchronized (this) {
+            mJobs.addLast(future);
+            submitTasksIfAllowed();
+            if (mJobs.size() > mMaxPending) {
+                removeCancelledJobs();
+                if (mJobs.size() > mMaxPending) dropped = mJobs.removeFirst();
+            }
+        }
+        // The listener of the dropped job is called without holding our lock.
+        if (dropped != null) dropped.drop();
         return future;
     }
 
+    private void removeCancelledJobs() {
+        Iterator<JobWrapper<?>> iter = mJobs.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().isCancelled()) iter.remove();
+        }
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
         while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
+            JobWrapper wrapper = mLastInFirstOut
+                    ? mJobs.removeLast() : mJobs.removeFirst();
             if (!wrapper.isCancelled()) {
                 --mLimit;
                 wrapper.setFuture(mPool.submit(wrapper, this));
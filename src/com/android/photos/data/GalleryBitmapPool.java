@@ -16,49 +16,43 @@
 
 package com.android.photos.data;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.graphics.Point;
-import android.util.Pools.Pool;
-import android.util.Pools.SynchronizedPool;
 
-import com.android.photos.data.SparseArrayBitmapPool.Node;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Pool allowing the efficient reuse of bitmaps in order to avoid long
- * garbage collection pauses.
+ * garbage collection pauses. It is shared by gallery3d (tiles, screen nails,
+ * thumbnails, labels) and photos. Filtershow keeps its own BitmapCache, since
+ * its bitmaps may still be referenced after they are given back.
+ *
+ * Bitmaps are bucketed by (width, height, config), so a lookup is a single
+ * hash lookup. When the pool is full, the bitmaps that have been in the pool
+ * the longest are evicted and recycled first.
  */
 public class GalleryBitmapPool {
 
-    private static final int CAPACITY_BYTES = 20971520;
-
-    // We found that Gallery uses bitmaps that are either square (for example,
-    // tiles of large images or square thumbnails), match one of the common
-    // photo aspect ratios (4x3, 3x2, or 16x9), or, less commonly, are of some
-    // other aspect ratio. Taking advantage of this information, we use 3
-    // SparseArrayBitmapPool instances to back the GalleryBitmapPool, which affords
-    // O(1) lookups for square bitmaps, and average-case - but *not* asymptotically -
-    // O(1) lookups for common photo aspect ratios and other miscellaneous aspect
-    // ratios. Beware of the pathological case where there are many bitmaps added
-    // to the pool with different non-square aspect ratios but the same width, as
-    // performance will degrade and the average case lookup will approach
-    // O(# of different aspect ratios).
-    private static final int POOL_INDEX_NONE = -1;
-    private static final int POOL_INDEX_SQUARE = 0;
-    private static final int POOL_INDEX_PHOTO = 1;
-    private static final int POOL_INDEX_MISC = 2;
-
-    private static final Point[] COMMON_PHOTO_ASPECT_RATIOS =
-        { new Point(4, 3), new Point(3, 2), new Point(16, 9) };
+    private static final int CAPACITY_BYTES = (int) Math.min(
+            20 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
 
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets =
+            new HashMap<Long, ArrayList<Bitmap>>();
+    // All the pooled bitmaps in the order they were added, for eviction.
+    // Bitmap does not override equals(), so this is keyed by identity.
+    private final LinkedHashMap<Bitmap, Long> mAge = new LinkedHashMap<Bitmap, Long>();
     private int mCapacityBytes;
-    private SparseArrayBitmapPool [] mPools;
-    private Pool<Node> mSharedNodePool = new SynchronizedPool<Node>(128);
+    private int mSizeBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     private GalleryBitmapPool(int capacityBytes) {
-        mPools = new SparseArrayBitmapPool[3];
-        mPools[POOL_INDEX_SQUARE] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
-        mPools[POOL_INDEX_PHOTO] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
-        mPools[POOL_INDEX_MISC] = new SparseArrayBitmapPool(capacityBytes / 3, mSharedNodePool);
         mCapacityBytes = capacityBytes;
     }
 
@@ -68,36 +62,8 @@ public class GalleryBitmapPool {
         return sInstance;
     }
 
-    private SparseArrayBitmapPool getPoolForDimensions(int width, int height) {
-        int index = getPoolIndexForDimensions(width, height);
-        if (index == POOL_INDEX_NONE) {
-            return null;
-        } else {
-            return mPools[index];
-        }
-    }
-
-    private int getPoolIndexForDimensions(int width, int height) {
-        if (width <= 0 || height <= 0) {
-            return POOL_INDEX_NONE;
-        }
-        if (width == height) {
-            return POOL_INDEX_SQUARE;
-        }
-        int min, max;
-        if (width > height) {
-            min = height;
-            max = width;
-        } else {
-            min = width;
-            max = height;
-        }
-        for (Point ar : COMMON_PHOTO_ASPECT_RATIOS) {
-            if (min * ar.x == max * ar.y) {
-                return POOL_INDEX_PHOTO;
-            }
-        }
-        return POOL_INDEX_MISC;
+    private static long makeKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
     }
 
     /**
@@ -108,54 +74,125 @@ public class GalleryBitmapPool {
     }
 
     /**
-     * @return Approximate total size in bytes of the bitmaps stored in the pool.
+     * Set the maximum capacity of the pool, and if necessary trim it down to size.
      */
-    public int getSize() {
-        // Note that this only returns an approximate size, since multiple threads
-        // might be getting and putting Bitmaps from the pool and we lock at the
-        // sub-pool level to avoid unnecessary blocking.
-        int total = 0;
-        for (SparseArrayBitmapPool p : mPools) {
-            total += p.getSize();
-        }
-        return total;
+    public synchronized void setCapacity(int capacityBytes) {
+        mCapacityBytes = capacityBytes;
+        trimToSize(capacityBytes);
     }
 
     /**
-     * @return Bitmap from the pool with the desired height/width or null if none available.
+     * @return Total size in bytes of the bitmaps stored in the pool.
+     */
+    public synchronized int getSize() {
+        return mSizeBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return ARGB_8888 bitmap from the pool with the desired height/width or
+     * null if none available.
      */
     public Bitmap get(int width, int height) {
-        SparseArrayBitmapPool pool = getPoolForDimensions(width, height);
-        if (pool == null) {
+        return get(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @return Bitmap from the pool with the desired height/width/config or
+     * null if none available.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0 || config == null) return null;
+        ArrayList<Bitmap> bucket = mBuckets.get(makeKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            ++mMissCount;
             return null;
-        } else {
-            return pool.get(width, height);
         }
+        // Take the most recently added one, it's the least likely to be evicted
+        // and it's more likely to be still in the CPU cache.
+        Bitmap b = bucket.remove(bucket.size() - 1);
+        mAge.remove(b);
+        mSizeBytes -= b.getByteCount();
+        ++mHitCount;
+        return b;
     }
 
     /**
-     * Adds the given bitmap to the pool.
+     * Adds the given bitmap to the pool. The caller must not use the bitmap
+     * afterwards.
      * @return Whether the bitmap was added to the pool.
      */
-    public boolean put(Bitmap b) {
-        if (b == null || b.getConfig() != Bitmap.Config.ARGB_8888) {
+    public synchronized boolean put(Bitmap b) {
+        if (b == null || b.isRecycled() || !b.isMutable()
+                || b.getConfig() == null) {
             return false;
         }
-        SparseArrayBitmapPool pool = getPoolForDimensions(b.getWidth(), b.getHeight());
-        if (pool == null) {
+        int bytes = b.getByteCount();
+        if (bytes > mCapacityBytes) {
             b.recycle();
             return false;
-        } else {
-            return pool.put(b);
+        }
+        if (mAge.containsKey(b)) return true; // already in the pool
+
+        // Ensure there is enough room to contain the new bitmap.
+        trimToSize(mCapacityBytes - bytes);
+
+        long key = makeKey(b.getWidth(), b.getHeight(), b.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(4);
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(b);
+        mAge.put(b, key);
+        mSizeBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Releases memory according to the level given to
+     * {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            trimToSize(mCapacityBytes / 2);
         }
     }
 
     /**
      * Empty the pool, recycling all the bitmaps currently in it.
      */
-    public void clear() {
-        for (SparseArrayBitmapPool p : mPools) {
-            p.clear();
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    // Evicts the oldest bitmaps until the pool holds at most maxBytes.
+    // Must be called with the lock held.
+    private void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<Bitmap, Long>> iter = mAge.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<Bitmap, Long> entry = iter.next();
+            Bitmap b = entry.getKey();
+            iter.remove();
+            ArrayList<Bitmap> bucket = mBuckets.get(entry.getValue());
+            bucket.remove(b);
+            if (bucket.isEmpty()) mBuckets.remove(entry.getValue());
+            mSizeBytes -= b.getByteCount();
+            ++mEvictionCount;
+            b.recycle();
         }
     }
 }